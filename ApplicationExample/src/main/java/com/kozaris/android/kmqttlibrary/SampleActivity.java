@@ -75,7 +75,7 @@ public class SampleActivity extends AppCompatActivity implements Connection.IRec
         //Connect
         if (mqttConnection != null) {
             final ActionListener callback = new ActionListener(this, ActionListener.Action.CONNECT, mqttConnection);
-            mqttConnection.getClient().setCallback(new MqttCallbackHandler(this));
+            mqttConnection.getClient().setCallback(new MqttCallbackHandler(this, mqttConnection));
             try {
                 mqttConnection.getClient().connect(mqttConnection.getConnectionOptions(), null, callback);
             } catch (MqttException e) {
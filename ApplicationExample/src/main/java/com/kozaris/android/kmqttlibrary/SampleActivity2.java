@@ -87,7 +87,7 @@ public class SampleActivity2 extends AppCompatActivity implements Connection.IRe
         //Connect
         if (mqttConnection != null) {
             final ActionListener callback = new ActionListener(this, ActionListener.Action.CONNECT, mqttConnection);
-            mqttConnection.getClient().setCallback(new MqttCallbackHandler(this));
+            mqttConnection.getClient().setCallback(new MqttCallbackHandler(this, mqttConnection));
             try {
                 mqttConnection.getClient().connect(mqttConnection.getConnectionOptions(), null, callback);
             } catch (MqttException e) {
@@ -1,13 +1,10 @@
 package com.kozaris.android.k_mqtt;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.util.Log;
 
 import org.eclipse.paho.client.mqttv3.IMqttActionListener;
 import org.eclipse.paho.client.mqttv3.IMqttToken;
-import org.eclipse.paho.client.mqttv3.MqttException;
-import java.util.ArrayList;
 
 /**
  * This Class handles receiving information from the
@@ -49,8 +46,11 @@ public class ActionListener implements IMqttActionListener {
     /**
      * The arguments passed to be used for formatting strings
      **/
-    private final String[] additionalArgs;
+    private final Object[] additionalArgs;
 
+    /**
+     * The {@link Connection} the action is performed on
+     **/
     private final Connection connection;
     /**
      * {@link Context} for performing various operations
@@ -63,10 +63,10 @@ public class ActionListener implements IMqttActionListener {
      * @param context        The application context
      * @param action         The action that is being performed
      * @param connection     The connection
-     * @param additionalArgs Used for as arguments for string formating
+     * @param additionalArgs Used for as arguments for string formating, formatted when the history is read
      */
     public ActionListener(Context context, Action action,
-                          Connection connection, String... additionalArgs) {
+                          Connection connection, Object... additionalArgs) {
         this.context = context;
         this.action = action;
         this.connection = connection;
@@ -104,11 +104,7 @@ public class ActionListener implements IMqttActionListener {
      */
     private void publish() {
 
-        Connection c = MqttClient.getInstance(context).getConnection();
-        @SuppressLint("StringFormatMatches") String actionTaken = context.getString(R.string.toast_pub_success,
-                (Object[]) additionalArgs);
-        c.addAction(actionTaken);
-        System.out.print("Published");
+        connection.addAction(EventLog.Kind.PUBLISHED, additionalArgs);
 
     }
 
@@ -118,11 +114,7 @@ public class ActionListener implements IMqttActionListener {
      * the user of success
      */
     private void subscribe() {
-        Connection c = MqttClient.getInstance(context).getConnection();
-        String actionTaken = context.getString(R.string.toast_sub_success,
-                (Object[]) additionalArgs);
-        c.addAction(actionTaken);
-        System.out.print(actionTaken);
+        connection.addAction(EventLog.Kind.SUBSCRIBED, additionalArgs);
 
     }
 
@@ -132,11 +124,9 @@ public class ActionListener implements IMqttActionListener {
      * then notify the user of success.
      */
     private void disconnect() {
-        Connection c = MqttClient.getInstance(context).getConnection();
-        c.changeConnectionStatus(Connection.ConnectionStatus.DISCONNECTED);
-        String actionTaken = context.getString(R.string.toast_disconnected);
-        c.addAction(actionTaken);
-        Log.i(TAG, c.getId() + " disconnected.");
+        connection.changeConnectionStatus(Connection.ConnectionStatus.DISCONNECTED);
+        connection.addAction(EventLog.Kind.DISCONNECTED);
+        Log.i(TAG, connection.getId() + " disconnected.");
     }
 
     /**
@@ -145,22 +135,9 @@ public class ActionListener implements IMqttActionListener {
      * then notify the user of success.
      */
     private void connect() {
-
-        Connection c = MqttClient.getInstance(context).getConnection();
-        c.changeConnectionStatus(Connection.ConnectionStatus.CONNECTED);
-        c.addAction("Client Connected");
-        Log.i(TAG, c.getId() + " connected.");
-        try {
-
-            ArrayList<Subscription> subscriptions = connection.getSubscriptions();
-            for (Subscription sub : subscriptions) {
-                Log.i(TAG, "Auto-subscribing to: " + sub.getTopic() + "@ QoS: " + sub.getQos());
-                connection.getClient().subscribe(sub.getTopic(), sub.getQos());
-            }
-        } catch (MqttException ex){
-            Log.e(TAG, "Failed to Auto-Subscribe: " + ex.getMessage());
-        }
-
+        connection.connectionEstablished();
+        connection.addAction(EventLog.Kind.CONNECTED);
+        Log.i(TAG, connection.getId() + " connected.");
     }
 
     /**
@@ -194,11 +171,8 @@ public class ActionListener implements IMqttActionListener {
      * @param exception This argument is not used
      */
     private void publish(Throwable exception) {
-        Connection c = MqttClient.getInstance(context).getConnection();
-        @SuppressLint("StringFormatMatches") String action = context.getString(R.string.toast_pub_failed,
-                (Object[]) additionalArgs);
-        c.addAction(action);
-        System.out.print("Publish failed : "+exception.getMessage() );
+        connection.addAction(EventLog.Kind.PUBLISH_FAILED, additionalArgs);
+        Log.w(TAG, "Publish failed : " + exception.getMessage());
 
     }
 
@@ -208,12 +182,8 @@ public class ActionListener implements IMqttActionListener {
      * @param exception This argument is not used
      */
     private void subscribe(Throwable exception) {
-        Connection c = MqttClient.getInstance(context).getConnection();
-        String action = context.getString(R.string.toast_sub_failed,
-                (Object[]) additionalArgs);
-        c.addAction(action);
-        System.out.print(action);
-        System.out.print("Subscribe failed : "+exception.getMessage() );
+        connection.addAction(EventLog.Kind.SUBSCRIBE_FAILED, additionalArgs);
+        Log.w(TAG, "Subscribe failed : " + exception.getMessage());
     }
 
     /**
@@ -222,10 +192,9 @@ public class ActionListener implements IMqttActionListener {
      * @param exception This argument is not used
      */
     private void disconnect(Throwable exception) {
-        Connection c = MqttClient.getInstance(context).getConnection();
-        c.changeConnectionStatus(Connection.ConnectionStatus.DISCONNECTED);
-        c.addAction("Disconnect Failed - an error occurred");
-        System.out.print("Disconnect failed : "+exception.getMessage() );
+        connection.changeConnectionStatus(Connection.ConnectionStatus.DISCONNECTED);
+        connection.addAction(EventLog.Kind.DISCONNECT_FAILED);
+        Log.w(TAG, "Disconnect failed : " + exception.getMessage());
     }
 
     /**
@@ -234,11 +203,9 @@ public class ActionListener implements IMqttActionListener {
      * @param exception This argument is not used
      */
     private void connect(Throwable exception) {
-        Connection c = MqttClient.getInstance(context).getConnection();
-        c.changeConnectionStatus(Connection.ConnectionStatus.ERROR);
-        c.addAction("Client failed to connect");
-        System.out.println("Client failed to connect");
-        System.out.print("Connect failed : "+exception.getMessage() );
+        connection.changeConnectionStatus(Connection.ConnectionStatus.ERROR);
+        connection.addAction(EventLog.Kind.CONNECT_FAILED);
+        Log.w(TAG, "Connect failed : " + exception.getMessage());
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,121 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link Connection.IReceivedMessageListener} that accumulates received messages and hands
+ * them to a {@link Connection.IReceivedMessageBatchListener} as one list.
+ *
+ * A batch is delivered on every tick of a {@link TickSource}, on the ticking thread, which
+ * bounds it to a time window such as one display frame. A batch that reaches its maximum
+ * size is delivered straight away on the thread that received the last message.
+ * Accumulated messages are retained and recycled once the batch listener returns, a batch
+ * listener that keeps a message must {@link ReceivedMessage#retain()} it.
+ */
+public class BatchingListener implements Connection.IReceivedMessageListener, TickSource.Callback {
+
+    /** Batch size that never triggers a delivery on its own **/
+    public static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private final Connection.IReceivedMessageBatchListener listener;
+
+    private final int maxBatchSize;
+
+    /** Held while a batch is taken and delivered so batches are delivered in order **/
+    private final Object deliveryLock = new Object();
+
+    /** Messages accumulated since the last delivery **/
+    private ArrayList<ReceivedMessage> pending = new ArrayList<>();
+
+    /** Source of the ticks batches are delivered on, null if only delivered by size or on demand **/
+    private TickSource tickSource = null;
+
+    /**
+     * Creates a batching listener
+     * @param listener the listener batches are delivered to
+     * @param maxBatchSize the number of messages that triggers a delivery, {@link #UNBOUNDED} to rely on ticks only
+     */
+    public BatchingListener(Connection.IReceivedMessageBatchListener listener, int maxBatchSize) {
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive: " + maxBatchSize);
+        }
+        this.listener = listener;
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void onMessageReceived(ReceivedMessage message) {
+        boolean full;
+        synchronized (this) {
+            pending.add(message.retain());
+            full = pending.size() >= maxBatchSize;
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    /**
+     * Delivers the accumulated messages now, on the calling thread
+     * @return the number of messages delivered
+     */
+    public int flush() {
+        synchronized (deliveryLock) {
+            List<ReceivedMessage> batch;
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    return 0;
+                }
+                batch = takePending();
+            }
+            listener.onMessagesReceived(batch);
+            for (int i = 0, size = batch.size(); i < size; i++) {
+                batch.get(i).recycle();
+            }
+            return batch.size();
+        }
+    }
+
+    /**
+     * Get the number of messages waiting for the next delivery
+     * @return number of accumulated messages
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Delivers a batch on every tick of a tick source, replacing any previous source
+     * @param source the tick source to deliver on
+     */
+    public synchronized void start(TickSource source) {
+        stop();
+        tickSource = source;
+        source.start(this);
+    }
+
+    /**
+     * Stops delivering on ticks, accumulated messages are kept until the next {@link #flush()}
+     */
+    public synchronized void stop() {
+        if (tickSource != null) {
+            tickSource.stop();
+            tickSource = null;
+        }
+    }
+
+    @Override
+    public void onTick(long timeNanos) {
+        flush();
+    }
+
+    /**
+     * Hands the accumulated list over to the caller, the next batch starts in a list sized like the last one
+     */
+    private List<ReceivedMessage> takePending() {
+        ArrayList<ReceivedMessage> batch = pending;
+        pending = new ArrayList<>(Math.min(batch.size(), maxBatchSize));
+        return batch;
+    }
+}
@@ -0,0 +1,236 @@
+package com.kozaris.android.k_mqtt;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of received messages that applies an {@link OverflowPolicy} to every
+ * message offered while it is full.
+ *
+ * Messages with the {@link OverflowPolicy#SPILL_TO_DISK} policy overflow into a {@link SpillFile}.
+ * While the spill file holds messages every new message with that policy is spilled too, and
+ * the spill file is only read once the in-memory queue is empty, which keeps the messages of
+ * a topic in order.
+ */
+public class BoundedMessageQueue {
+
+    private static final String TAG = "BoundedMessageQueue";
+
+    private final ReceivedMessage[] messages;
+    private final OverflowPolicy[] policies;
+
+    /** Index of the oldest message **/
+    private int head = 0;
+
+    /** Number of messages held in memory **/
+    private int count = 0;
+
+    /** Overflow file, null if spilling is not available **/
+    private final SpillFile spillFile;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong spilledCount = new AtomicLong();
+
+    /**
+     * Creates a queue
+     * @param capacity the number of messages held in memory
+     * @param spillFile file used for {@link OverflowPolicy#SPILL_TO_DISK}, if null those messages block instead
+     */
+    public BoundedMessageQueue(int capacity, File spillFile) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        messages = new ReceivedMessage[capacity];
+        policies = new OverflowPolicy[capacity];
+        this.spillFile = spillFile != null ? new SpillFile(spillFile) : null;
+    }
+
+    /**
+     * Adds a message to the queue, applying its overflow policy if the queue is full
+     * @param message the message to add
+     * @param policy what to do if the queue is full
+     * @return false if the message was dropped
+     * @throws InterruptedException if interrupted while waiting for room in the queue
+     */
+    public boolean put(ReceivedMessage message, OverflowPolicy policy) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (policy == OverflowPolicy.SPILL_TO_DISK && spillFile != null && spillFile.size() > 0) {
+                return spill(message);
+            }
+            while (count == messages.length) {
+                switch (policy) {
+                    case DROP_NEWEST:
+                        droppedCount.incrementAndGet();
+                        return false;
+                    case DROP_OLDEST:
+                        if (removeOldestDroppable()) {
+                            droppedCount.incrementAndGet();
+                            continue;
+                        }
+                        // nothing in the queue may be dropped, wait like BLOCK
+                        notFull.await();
+                        break;
+                    case SPILL_TO_DISK:
+                        if (spillFile != null) {
+                            return spill(message);
+                        }
+                        notFull.await();
+                        break;
+                    default:
+                        notFull.await();
+                }
+            }
+            int tail = (head + count) % messages.length;
+            messages[tail] = message;
+            policies[tail] = policy;
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest message, waiting for one if the queue is empty
+     * @return the oldest message
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ReceivedMessage take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (true) {
+                if (count > 0) {
+                    return removeAt(head);
+                }
+                if (spillFile != null && spillFile.size() > 0) {
+                    try {
+                        return spillFile.read();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Failed to read spilled messages, discarding " + spillFile.size(), e);
+                        droppedCount.addAndGet(spillFile.size());
+                        spillFile.close();
+                    }
+                } else {
+                    notEmpty.await();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages waiting in the queue, spilled messages included
+     * @return number of queued messages
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count + (spillFile != null ? spillFile.size() : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of messages dropped since the queue was created
+     * @return number of dropped messages
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Get the number of messages written to the spill file since the queue was created
+     * @return number of spilled messages
+     */
+    public long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * Discards every queued message and deletes the spill file
+     */
+    public void clear() {
+        lock.lock();
+        try {
+            for (int i = 0; i < messages.length; i++) {
+                messages[i] = null;
+                policies[i] = null;
+            }
+            head = 0;
+            count = 0;
+            if (spillFile != null) {
+                spillFile.close();
+            }
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(ReceivedMessage message) {
+        try {
+            spillFile.write(message);
+            spilledCount.incrementAndGet();
+            notEmpty.signal();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to spill message on " + message.getTopic(), e);
+            droppedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Removes the oldest message whose own policy allows it to be dropped
+     * @return false if no message may be dropped
+     */
+    private boolean removeOldestDroppable() {
+        for (int i = 0; i < count; i++) {
+            int index = (head + i) % messages.length;
+            OverflowPolicy p = policies[index];
+            if (p == OverflowPolicy.DROP_OLDEST || p == OverflowPolicy.DROP_NEWEST) {
+                removeAt(index);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a message, shifting the newer messages down to close the gap
+     */
+    private ReceivedMessage removeAt(int index) {
+        ReceivedMessage message = messages[index];
+        int length = messages.length;
+        if (index == head) {
+            messages[head] = null;
+            policies[head] = null;
+            head = (head + 1) % length;
+        } else {
+            int tail = (head + count - 1) % length;
+            for (int i = index; i != tail; i = (i + 1) % length) {
+                int next = (i + 1) % length;
+                messages[i] = messages[next];
+                policies[i] = policies[next];
+            }
+            messages[tail] = null;
+            policies[tail] = null;
+        }
+        count--;
+        notFull.signal();
+        return message;
+    }
+}
@@ -0,0 +1,196 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reuses the payload arrays of outbound messages and counts the copies and allocations made
+ * on the publish path.
+ *
+ * Paho takes the payload of a message as an array whose length is the payload length, so
+ * arrays are pooled by exact length, which suits sources that produce fixed size frames.
+ * An array is returned to the pool once the publish it carried completes.
+ */
+public class BufferPool {
+
+    /** Default number of bytes the pool keeps **/
+    public static final int DEFAULT_MAX_POOLED_BYTES = 1024 * 1024;
+
+    /** Number of arrays of the same length kept by the pool **/
+    static final int MAX_BUFFERS_PER_LENGTH = 16;
+
+    private final int maxPooledBytes;
+
+    /** Free arrays by length, guarded by itself **/
+    private final HashMap<Integer, ArrayDeque<byte[]>> free = new HashMap<>();
+
+    private int pooledBytes = 0;
+
+    private final AtomicLong allocationCount = new AtomicLong();
+    private final AtomicLong reuseCount = new AtomicLong();
+    private final AtomicLong copyCount = new AtomicLong();
+    private final AtomicLong copiedBytes = new AtomicLong();
+
+    /**
+     * Creates a pool
+     * @param maxPooledBytes the number of bytes of free arrays the pool keeps
+     */
+    public BufferPool(int maxPooledBytes) {
+        if (maxPooledBytes < 0) {
+            throw new IllegalArgumentException("Max pooled bytes must not be negative: " + maxPooledBytes);
+        }
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    /**
+     * Takes an array from the pool, or allocates one if none of that length is free
+     * @param length the length of the array
+     * @return an array of exactly that length, its content is undefined
+     */
+    public byte[] acquire(int length) {
+        synchronized (free) {
+            ArrayDeque<byte[]> buffers = free.get(length);
+            if (buffers != null && !buffers.isEmpty()) {
+                pooledBytes -= length;
+                reuseCount.incrementAndGet();
+                return buffers.pop();
+            }
+        }
+        allocationCount.incrementAndGet();
+        return new byte[length];
+    }
+
+    /**
+     * Returns an array to the pool, it is dropped if the pool is full.
+     * The caller must not use the array afterwards
+     * @param buffer the array to return
+     */
+    public void release(byte[] buffer) {
+        int length = buffer.length;
+        synchronized (free) {
+            if (pooledBytes + length > maxPooledBytes) {
+                return;
+            }
+            ArrayDeque<byte[]> buffers = free.get(length);
+            if (buffers == null) {
+                buffers = new ArrayDeque<>(MAX_BUFFERS_PER_LENGTH);
+                free.put(length, buffers);
+            }
+            if (buffers.size() < MAX_BUFFERS_PER_LENGTH) {
+                buffers.push(buffer);
+                pooledBytes += length;
+            }
+        }
+    }
+
+    /**
+     * Wraps the callback of a publish so that its payload array returns to the pool once the
+     * publish completes
+     * @param buffer the payload array of the message
+     * @param callback the callback of the publish, may be null
+     * @return the callback to publish with
+     */
+    public IMqttActionListener releaseOnCompletion(final byte[] buffer, final IMqttActionListener callback) {
+        return new IMqttActionListener() {
+            @Override
+            public void onSuccess(IMqttToken asyncActionToken) {
+                release(buffer);
+                if (callback != null) {
+                    callback.onSuccess(asyncActionToken);
+                }
+            }
+
+            @Override
+            public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+                release(buffer);
+                if (callback != null) {
+                    callback.onFailure(asyncActionToken, exception);
+                }
+            }
+        };
+    }
+
+    /**
+     * Records a payload copied into an array of the pool
+     * @param length the number of bytes copied
+     */
+    void countCopy(int length) {
+        copyCount.incrementAndGet();
+        copiedBytes.addAndGet(length);
+    }
+
+    /**
+     * Get the number of arrays allocated because none was free
+     * @return number of allocations
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+    /**
+     * Get the number of arrays taken from the pool
+     * @return number of reuses
+     */
+    public long getReuseCount() {
+        return reuseCount.get();
+    }
+
+    /**
+     * Get the number of payloads that had to be copied, a heap buffer that wraps a whole array
+     * is published without a copy
+     * @return number of copies
+     */
+    public long getCopyCount() {
+        return copyCount.get();
+    }
+
+    /**
+     * Get the number of bytes copied
+     * @return number of copied bytes
+     */
+    public long getCopiedBytes() {
+        return copiedBytes.get();
+    }
+
+    /**
+     * Get the number of bytes held by free arrays
+     * @return number of pooled bytes
+     */
+    public int getPooledBytes() {
+        synchronized (free) {
+            return pooledBytes;
+        }
+    }
+
+    /**
+     * Resets the counters, the pooled arrays are kept
+     */
+    public void resetCounters() {
+        allocationCount.set(0);
+        reuseCount.set(0);
+        copyCount.set(0);
+        copiedBytes.set(0);
+    }
+
+    /**
+     * Describes a pooled payload in the history without copying it, the array may be reused by
+     * the time the history is read
+     */
+    static final class PayloadDescription {
+
+        private final int length;
+
+        PayloadDescription(int length) {
+            this.length = length;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + length + " bytes]";
+        }
+    }
+}
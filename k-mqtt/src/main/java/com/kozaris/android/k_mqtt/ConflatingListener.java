@@ -0,0 +1,104 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A {@link Connection.IReceivedMessageListener} that only keeps the latest pending message of
+ * every topic and hands them to a wrapped listener when drained.
+ *
+ * Messages that arrive between two drains replace each other, so a consumer that cannot keep up
+ * with the message rate does work proportional to the number of topics and not to the number
+ * of messages. The pending messages are drained on demand with {@link #drain()} or on every
+ * tick of a {@link TickSource}. Pending messages are retained and recycled once delivered
+ * or replaced, so they are safe to keep while the {@link Connection} recycles messages.
+ */
+public class ConflatingListener implements Connection.IReceivedMessageListener, TickSource.Callback {
+
+    /** The listener the latest messages are delivered to **/
+    private final Connection.IReceivedMessageListener listener;
+
+    /** Latest pending message of each topic **/
+    private final ConcurrentHashMap<String, ReceivedMessage> latest = new ConcurrentHashMap<>();
+
+    /** Topics with a pending message, in the order they first became pending **/
+    private final ConcurrentLinkedQueue<String> pendingTopics = new ConcurrentLinkedQueue<>();
+
+    /** Source of the ticks the pending messages are drained on, null if drained on demand **/
+    private TickSource tickSource = null;
+
+    /**
+     * Creates a conflating listener
+     * @param listener the listener the latest messages are delivered to
+     */
+    public ConflatingListener(Connection.IReceivedMessageListener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void onMessageReceived(ReceivedMessage message) {
+        String topic = message.getTopic();
+        ReceivedMessage replaced = latest.put(topic, message.retain());
+        if (replaced == null) {
+            pendingTopics.offer(topic);
+        } else {
+            replaced.recycle();
+        }
+    }
+
+    /**
+     * Delivers the latest pending message of every topic to the wrapped listener,
+     * on the calling thread
+     * @return the number of messages delivered
+     */
+    public int drain() {
+        int delivered = 0;
+        // only drain the topics pending now, topics that become pending meanwhile wait for the next drain
+        for (int i = pendingTopics.size(); i > 0; i--) {
+            String topic = pendingTopics.poll();
+            if (topic == null) {
+                break;
+            }
+            ReceivedMessage message = latest.remove(topic);
+            if (message != null) {
+                listener.onMessageReceived(message);
+                message.recycle();
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Get the number of topics with a pending message
+     * @return number of pending messages
+     */
+    public int getPendingCount() {
+        return latest.size();
+    }
+
+    /**
+     * Drains the pending messages on every tick of a tick source, replacing any previous source
+     * @param source the tick source to drain on
+     */
+    public synchronized void start(TickSource source) {
+        stop();
+        tickSource = source;
+        source.start(this);
+    }
+
+    /**
+     * Stops draining on ticks, pending messages are kept until {@link #drain()} is called
+     */
+    public synchronized void stop() {
+        if (tickSource != null) {
+            tickSource.stop();
+            tickSource = null;
+        }
+    }
+
+    @Override
+    public void onTick(long timeNanos) {
+        drain();
+    }
+}
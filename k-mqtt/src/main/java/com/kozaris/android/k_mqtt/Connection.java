@@ -1,20 +1,26 @@
 package com.kozaris.android.k_mqtt;
 
 import android.content.Context;
+import android.util.Log;
 
 import org.eclipse.paho.android.service.MqttAndroidClient;
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttException;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 /**
  *
@@ -23,6 +29,8 @@ import java.util.Map;
  */
 public class Connection {
 
+    private static final String TAG = "Connection";
+
     //<editor-fold desc="Library Constants">
     public static final String CONNECTION_KEY = "CONNECTION_KEY";
 
@@ -56,14 +64,14 @@ public class Connection {
     /** {@link ConnectionStatus } of the { @link MqttClient} represented by this <code>Connection</code> object. Default value is {@link ConnectionStatus#NONE} **/
     private ConnectionStatus status = ConnectionStatus.NONE;
 
-    /** Te history of the { @link MqttClient} represented by this <code>Connection</code> object **/
-    private ArrayList<String> history = null;
+    /** The history of the { @link MqttClient} represented by this <code>Connection</code> object **/
+    private volatile EventLog history = new EventLog(EventLog.DEFAULT_CAPACITY);
 
     /** The { @link MqttClient} instance this class represents **/
     private MqttAndroidClient client = null;
 
-    /** Collection of {@link java.beans.PropertyChangeListener} **/
-    private final ArrayList<PropertyChangeListener> listeners = new ArrayList<>();
+    /** Collection of {@link java.beans.PropertyChangeListener}, registered from any thread while events are sent on the callback thread **/
+    private final CopyOnWriteArrayList<PropertyChangeListener> listeners = new CopyOnWriteArrayList<>();
 
     /** The {@link Context} of the application this object is part of**/
     private Context context = null;
@@ -78,12 +86,62 @@ public class Connection {
     private long persistenceId = -1;
 
 
-    /** The list of this connection's subscriptions **/
-    private final Map<String, Subscription> subscriptions = new HashMap<>();
+    /** This connection's subscriptions indexed by topic filter, used to route inbound messages **/
+    private final TopicTrie<Subscription> subscriptions = new TopicTrie<>();
+
+    /** Reusable list for the subscriptions matched by the message being delivered, only touched by the callback thread **/
+    private final ArrayList<Subscription> matchedSubscriptions = new ArrayList<>();
+
+    /** Default number of received messages kept by {@link #getMessages()} **/
+    public static final int DEFAULT_MESSAGE_HISTORY_CAPACITY = 32;
+
+    /** The most recent messages received by this connection, null if no messages are kept **/
+    private volatile RingBuffer<ReceivedMessage> messageHistory = new RingBuffer<>(DEFAULT_MESSAGE_HISTORY_CAPACITY);
+
+    /** True if received messages are pooled and recycled once delivered **/
+    private volatile boolean recycleMessages = false;
+
+    /** Listeners notified of received messages, resolved per topic by the dispatcher threads **/
+    private final MessageListenerIndex receivedMessageListeners = new MessageListenerIndex();
+
+    /** Delivers received messages to the listeners **/
+    private volatile MessageDispatcher messageDispatcher = null;
+
+    /** Overflow policy of messages that match no subscription **/
+    private volatile OverflowPolicy defaultOverflowPolicy = OverflowPolicy.BLOCK;
+
+    /** Queues outbound messages and keeps the in-flight window full, created on first use **/
+    private PublishPipeline publishPipeline = null;
+
+    /** Codecs of the published topics by topic filter **/
+    private final TopicTrie<PayloadCodec> publishCodecs = new TopicTrie<>();
 
-    private final ArrayList<ReceivedMessage> messageHistory =  new ArrayList<>();
+    /** Reuses the payload arrays of messages published from buffers **/
+    private final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_MAX_POOLED_BYTES);
 
-    private final ArrayList<IReceivedMessageListener> receivedMessageListeners = new ArrayList<>();
+    /** Latency from queueing a message to its delivery, by qos **/
+    private final LatencyHistogram[] publishLatency = {
+            new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram()};
+
+    /** Executor the outcome of asynchronous actions is recorded on, null unless enabled **/
+    private volatile Executor asyncActionExecutor = null;
+
+    /** Stores messages published while offline, null unless enabled **/
+    private volatile OfflineQueue offlineQueue = null;
+
+    /** Stores received messages in the database, null unless enabled **/
+    private volatile MessageStore messageStore = null;
+
+    /** Appends received messages to memory mapped files, null unless enabled **/
+    private volatile MessageJournal messageJournal = null;
+
+    /** Hands dispatched messages to the listeners **/
+    private final MessageDispatcher.Receiver messageReceiver = new MessageDispatcher.Receiver() {
+        @Override
+        public void deliver(ReceivedMessage message) {
+            deliverMessage(message);
+        }
+    };
 
     /**
      * Connections status for  a connection
@@ -163,27 +221,50 @@ public class Connection {
         this.context = context;
         this.client = client;
         this.tlsConnection = tlsConnection;
-        history = new ArrayList<>();
-        String sb = "Client: " +
-                clientId +
-                " created";
-        addAction(sb);
+        setMessageDispatcher(new DirectDispatcher());
+        addAction(EventLog.Kind.CLIENT_CREATED, clientId);
     }
 
     /**
      * Add an action to the history of the client
-     * @param action the history item to add
+     * @param kind the kind of the action
+     * @param args arguments used to describe the action when the history is read
      */
-    void addAction(String action) {
+    void addAction(EventLog.Kind kind, Object... args) {
+        EventLog log = history;
+        if (log.isEnabled()) {
+            log.add(kind, args);
+            notifyListeners(historyProperty);
+        }
+    }
 
-        Object[] args = new String[1];
-        DateFormat dateTimeFormatter = SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
-        args[0] = dateTimeFormatter.format(new Date());
+    /**
+     * Add a received message to the history of the client
+     * @param topic the topic the message arrived on
+     * @param message the message
+     */
+    void addReceivedAction(String topic, MqttMessage message) {
+        EventLog log = history;
+        if (log.isEnabled()) {
+            log.addMessage(topic, message.getPayload(), message.getQos(), message.isRetained());
+            notifyListeners(historyProperty);
+        }
+    }
 
-        String timestamp = context.getString(R.string.timestamp, args);
-        history.add(action + timestamp);
+    /**
+     * Get the history of the client, formatted with the application's localized strings
+     * @return a description of each recorded action, oldest first
+     */
+    public List<String> getHistory() {
+        return history.format(context);
+    }
 
-        notifyListeners(new PropertyChangeEvent(this, historyProperty, null, null));
+    /**
+     * Set how many actions are kept in the history of the client, the current history is discarded
+     * @param capacity number of actions to keep, zero disables the history
+     */
+    public void setHistoryCapacity(int capacity) {
+        history = new EventLog(capacity);
     }
     /**
      * Determines if the client is connected
@@ -199,7 +280,7 @@ public class Connection {
      */
     public void changeConnectionStatus(ConnectionStatus connectionStatus) {
         status = connectionStatus;
-        notifyListeners((new PropertyChangeEvent(this, ConnectionStatusProperty, null, null)));
+        notifyListeners(ConnectionStatusProperty);
     }
 
     /**
@@ -259,6 +340,15 @@ public class Connection {
 
     }
 
+    /**
+     * Hash code consistent with {@link #equals(Object)}, based on the clientId only
+     * @return hash code of the client Id
+     */
+    @Override
+    public int hashCode() {
+        return clientId != null ? clientId.hashCode() : 0;
+    }
+
     /**
      * Get the client Id for the client this object represents
      * @return the client id for the client this object represents
@@ -309,18 +399,30 @@ public class Connection {
      */
     public void registerChangeListener(PropertyChangeListener listener)
     {
-        if (listeners.indexOf(listener)==-1)
-        {
-            listeners.add(listener);
-        }
+        listeners.addIfAbsent(listener);
     }
 
     /**
-     * Notify {@link PropertyChangeListener} objects that the object has been updated
-     * @param propertyChangeEvent - The property Change event
+     * Remove a {@link PropertyChangeListener} from this object
+     * @param listener the listener to remove
      */
-    private void notifyListeners(PropertyChangeEvent propertyChangeEvent)
+    public void removeChangeListener(PropertyChangeListener listener)
     {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Notify {@link PropertyChangeListener} objects that the object has been updated,
+     * the event is only created if there is a listener
+     * @param propertyName - The name of the property that changed
+     */
+    private void notifyListeners(String propertyName)
+    {
+        if (listeners.isEmpty())
+        {
+            return;
+        }
+        PropertyChangeEvent propertyChangeEvent = new PropertyChangeEvent(this, propertyName, null, null);
         for (PropertyChangeListener listener : listeners)
         {
             listener.propertyChange(propertyChangeEvent);
@@ -361,36 +463,532 @@ public class Connection {
 
 
 
+    /**
+     * Subscribes to a topic, the subscription is persisted in the background by the
+     * {@link PersistenceWriter}
+     * @param subscription the subscription
+     * @throws MqttException If the subscribe request fails
+     */
     public void addNewSubscription(Subscription subscription) throws MqttException {
         if(!subscriptions.containsKey(subscription.getTopic())){
-            try{
-                String[] actionArgs = new String[1];
-                actionArgs[0] = subscription.getTopic();
-                final ActionListener callback = new ActionListener(this.context,
-                        ActionListener.Action.SUBSCRIBE, this, actionArgs);
-                this.getClient().subscribe(subscription.getTopic(), subscription.getQos(), null, callback);
-                Persistence persistence = new Persistence(context);
-                long rowId = persistence.persistSubscription(subscription);
-                subscription.setPersistenceId(rowId);
-                subscriptions.put(subscription.getTopic(), subscription);
-            } catch (Persistence.PersistenceException pe){
-                throw new MqttException(pe);
+            final ActionListener callback = new ActionListener(this.context,
+                    ActionListener.Action.SUBSCRIBE, this, subscription.getTopic());
+            this.getClient().subscribe(subscription.getTopic(), subscription.getQos(), null, callback);
+            PersistenceWriter.getInstance(context).persistSubscription(subscription);
+            subscriptions.put(subscription.getTopic(), subscription);
+        }
+    }
+
+    /**
+     * Subscribes to several topics with a single request to the server, the new subscriptions
+     * are persisted in the background in a single transaction. Topics this connection already
+     * subscribes to are skipped
+     * @param newSubscriptions the subscriptions to add
+     * @throws MqttException If the subscribe request fails
+     */
+    public void addNewSubscriptions(List<Subscription> newSubscriptions) throws MqttException {
+        ArrayList<Subscription> added = new ArrayList<>(newSubscriptions.size());
+        HashSet<String> topics = new HashSet<>();
+        for (Subscription subscription : newSubscriptions) {
+            if (!subscriptions.containsKey(subscription.getTopic()) && topics.add(subscription.getTopic())) {
+                added.add(subscription);
+            }
+        }
+        if (added.isEmpty()) {
+            return;
+        }
+        String[] topicFilters = new String[added.size()];
+        int[] qos = new int[added.size()];
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < topicFilters.length; i++) {
+            topicFilters[i] = added.get(i).getTopic();
+            qos[i] = added.get(i).getQos();
+            description.append(i == 0 ? "" : ", ").append(topicFilters[i]);
+        }
+        final ActionListener callback = new ActionListener(this.context,
+                ActionListener.Action.SUBSCRIBE, this, description.toString());
+        this.getClient().subscribe(topicFilters, qos, null, callback);
+        PersistenceWriter.getInstance(context).persistSubscriptions(added);
+        for (Subscription subscription : added) {
+            subscriptions.put(subscription.getTopic(), subscription);
+        }
+    }
+
+
+    /**
+     * Queue a message for publishing through the {@link PublishPipeline} of this connection,
+     * the result is recorded in the history of the client. The payload is encoded if a codec is
+     * set for the topic, see {@link #setPublishCodec(String, PayloadCodec)}. If the {@link OfflineQueue} is
+     * enabled, messages published while the client is offline are stored until it reconnects
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @return false if the publish queue is full and the message was not accepted
+     */
+    public boolean publish(String topic, MqttMessage message) {
+        MqttMessage encoded = encode(topic, message);
+        if (storeOffline(topic, encoded)) {
+            return true;
+        }
+        ActionListener callback = new ActionListener(context, ActionListener.Action.PUBLISH, this,
+                message, topic);
+        return getPublishPipeline().submit(topic, encoded, callback);
+    }
+
+    /**
+     * Connect the client with the connect options of this connection. The status of the
+     * connection is updated before the future completes, and subscriptions are restored once
+     * it is connected
+     * @return a future completed once the server acknowledges the connection
+     */
+    public MqttFuture connectAsync() {
+        MqttFuture future = new MqttFuture();
+        recordOutcome(future, EventLog.Kind.CONNECTED, EventLog.Kind.CONNECT_FAILED);
+        changeConnectionStatus(ConnectionStatus.CONNECTING);
+        client.setCallback(new MqttCallbackHandler(context, this));
+        try {
+            client.connect(mqttConnectOptions, null, new StatusListener(ActionListener.Action.CONNECT, future));
+        } catch (MqttException e) {
+            changeConnectionStatus(ConnectionStatus.ERROR);
+            future.onFailure(null, e);
+        }
+        return future;
+    }
+
+    /**
+     * Disconnect the client, the status of the connection is updated before the future completes
+     * @return a future completed once the client disconnected
+     */
+    public MqttFuture disconnectAsync() {
+        MqttFuture future = new MqttFuture();
+        recordOutcome(future, EventLog.Kind.DISCONNECTED, EventLog.Kind.DISCONNECT_FAILED);
+        changeConnectionStatus(ConnectionStatus.DISCONNECTING);
+        try {
+            client.disconnect(null, new StatusListener(ActionListener.Action.DISCONNECT, future));
+        } catch (MqttException e) {
+            changeConnectionStatus(ConnectionStatus.DISCONNECTED);
+            future.onFailure(null, e);
+        }
+        return future;
+    }
+
+    /**
+     * Subscribe to a topic and persist the subscription, the future completes straight from the
+     * subscribe token
+     * @param subscription the subscription
+     * @return a future completed once the server acknowledges the subscription, or right away
+     * if the connection already has a subscription to its topic
+     */
+    public MqttFuture subscribeAsync(Subscription subscription) {
+        MqttFuture future = new MqttFuture();
+        if (subscriptions.containsKey(subscription.getTopic())) {
+            future.onSuccess(null);
+            return future;
+        }
+        recordOutcome(future, EventLog.Kind.SUBSCRIBED, EventLog.Kind.SUBSCRIBE_FAILED, subscription.getTopic());
+        try {
+            client.subscribe(subscription.getTopic(), subscription.getQos(), null, future);
+            PersistenceWriter.getInstance(context).persistSubscription(subscription);
+            subscriptions.put(subscription.getTopic(), subscription);
+        } catch (MqttException e) {
+            future.onFailure(null, e);
+        }
+        return future;
+    }
+
+    /**
+     * Queue a message for publishing through the {@link PublishPipeline} of this connection,
+     * the future completes straight from the delivery token. Nothing is recorded in the history
+     * unless {@link #setAsyncActionExecutor(Executor)} enabled it
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @return a future completed once the message is delivered, it fails if the publish queue is
+     * full. A message taken by the {@link OfflineQueue} completes it right away with a null token
+     */
+    public MqttFuture publishAsync(String topic, MqttMessage message) {
+        MqttFuture future = new MqttFuture();
+        recordOutcome(future, EventLog.Kind.PUBLISHED, EventLog.Kind.PUBLISH_FAILED, message, topic);
+        MqttMessage encoded = encode(topic, message);
+        if (storeOffline(topic, encoded)) {
+            future.onSuccess(null);
+        } else if (!getPublishPipeline().submit(topic, encoded, future)) {
+            future.onFailure(null, new MqttException(MqttException.REASON_CODE_MAX_INFLIGHT));
+        }
+        return future;
+    }
+
+    /**
+     * Set the executor the outcome of the asynchronous actions is recorded on. By default the
+     * async actions do not touch the history nor the log, so their acknowledgements only
+     * complete the futures
+     * @param executor the executor that records outcomes in the history and the debug log,
+     *                 or null to record nothing
+     */
+    public void setAsyncActionExecutor(Executor executor) {
+        asyncActionExecutor = executor;
+    }
+
+    /**
+     * Records the outcome of an asynchronous action on the async action executor, if one is set
+     */
+    private void recordOutcome(MqttFuture future, final EventLog.Kind success, final EventLog.Kind failure,
+                               final Object... args) {
+        Executor executor = asyncActionExecutor;
+        if (executor == null) {
+            return;
+        }
+        future.addListener(new MqttFuture.Listener() {
+            @Override
+            public void onComplete(MqttFuture completed) {
+                EventLog.Kind kind = completed.isSuccess() ? success : failure;
+                addAction(kind, args);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, clientId + ": " + kind, completed.getException());
+                }
+            }
+        }, executor);
+    }
+
+    /**
+     * Updates the status of the connection when a connect or disconnect completes, then
+     * completes the future of the action
+     */
+    private final class StatusListener implements IMqttActionListener {
+
+        private final ActionListener.Action action;
+        private final MqttFuture future;
+
+        StatusListener(ActionListener.Action action, MqttFuture future) {
+            this.action = action;
+            this.future = future;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            if (action == ActionListener.Action.CONNECT) {
+                connectionEstablished();
+            } else {
+                changeConnectionStatus(ConnectionStatus.DISCONNECTED);
             }
+            future.onSuccess(asyncActionToken);
+        }
 
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            changeConnectionStatus(action == ActionListener.Action.CONNECT
+                    ? ConnectionStatus.ERROR : ConnectionStatus.DISCONNECTED);
+            future.onFailure(asyncActionToken, exception);
         }
     }
 
+    /**
+     * Marks the connection as connected and subscribes again to its subscriptions
+     */
+    void connectionEstablished() {
+        changeConnectionStatus(ConnectionStatus.CONNECTED);
+        try {
+            for (Subscription sub : getSubscriptions()) {
+                Log.i(TAG, "Auto-subscribing to: " + sub.getTopic() + "@ QoS: " + sub.getQos());
+                client.subscribe(sub.getTopic(), sub.getQos());
+            }
+        } catch (MqttException ex) {
+            Log.e(TAG, "Failed to Auto-Subscribe: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Queue the remaining bytes of a buffer for publishing, the position of the buffer is left
+     * unchanged. A heap buffer that wraps a whole array is published without a copy, any other
+     * buffer is copied once into an array of the {@link BufferPool} that returns to the pool
+     * when the publish completes
+     * @param topic the topic to publish to
+     * @param payload the payload of the message
+     * @param qos the qos of the message
+     * @param retained true if the broker should retain the message
+     * @return false if the publish queue is full and the message was not accepted
+     */
+    public boolean publish(String topic, ByteBuffer payload, int qos, boolean retained) {
+        int length = payload.remaining();
+        boolean wholeArray = payload.hasArray() && payload.arrayOffset() == 0 && payload.position() == 0
+                && length == payload.array().length;
+        byte[] bytes;
+        if (wholeArray) {
+            bytes = payload.array();
+        } else {
+            bytes = bufferPool.acquire(length);
+            int position = payload.position();
+            payload.get(bytes);
+            payload.position(position);
+            bufferPool.countCopy(length);
+        }
+        PayloadCodec codec = getPublishCodec(topic);
+        if (codec != null) {
+            byte[] encoded = PayloadCodecs.encode(codec, bytes, 0, length);
+            if (encoded != null) {
+                if (!wholeArray) {
+                    bufferPool.release(bytes);
+                }
+                bytes = encoded;
+                // the encoded array is not pooled
+                wholeArray = true;
+            }
+        }
+        MqttMessage message = new MqttMessage(bytes);
+        message.setQos(qos);
+        message.setRetained(retained);
+        if (storeOffline(topic, message)) {
+            // the array now belongs to the offline queue and is not returned to the pool
+            return true;
+        }
+
+        ActionListener history = new ActionListener(context, ActionListener.Action.PUBLISH, this,
+                new BufferPool.PayloadDescription(length), topic);
+        if (wholeArray) {
+            return getPublishPipeline().submit(topic, message, history);
+        }
+        if (!getPublishPipeline().submit(topic, message, bufferPool.releaseOnCompletion(bytes, history))) {
+            bufferPool.release(bytes);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Set the codec the messages published to a topic are encoded with. Messages that do not
+     * get smaller are published as they are
+     * @param topicFilter the topics the codec applies to, wildcards are allowed
+     * @param codec the codec, or null to publish the topics as they are
+     */
+    public void setPublishCodec(String topicFilter, PayloadCodec codec) {
+        if (codec != null) {
+            publishCodecs.put(topicFilter, codec);
+        } else {
+            publishCodecs.remove(topicFilter);
+        }
+    }
+
+    /**
+     * Get the codec the messages published to a topic are encoded with
+     * @param topic the topic
+     * @return a codec whose filter matches the topic, or null
+     */
+    public PayloadCodec getPublishCodec(String topic) {
+        if (publishCodecs.size() == 0) {
+            return null;
+        }
+        // a list per lookup, so publishing threads match under the trie's read lock together
+        ArrayList<PayloadCodec> matched = new ArrayList<>(1);
+        return publishCodecs.match(topic, matched) == 0 ? null : matched.get(0);
+    }
+
+    /**
+     * Encodes a message with the codec of its topic
+     * @return a copy of the message holding the encoded payload, or the message itself
+     */
+    private MqttMessage encode(String topic, MqttMessage message) {
+        PayloadCodec codec = getPublishCodec(topic);
+        if (codec == null) {
+            return message;
+        }
+        byte[] payload = message.getPayload();
+        byte[] encoded = PayloadCodecs.encode(codec, payload, 0, payload.length);
+        if (encoded == null) {
+            return message;
+        }
+        MqttMessage encodedMessage = new MqttMessage(encoded);
+        encodedMessage.setQos(message.getQos());
+        encodedMessage.setRetained(message.isRetained());
+        return encodedMessage;
+    }
+
+    /**
+     * Stores a message in the offline queue if it is enabled and the message cannot be
+     * published right away without overtaking stored messages
+     * @return true if the message was stored
+     */
+    private boolean storeOffline(String topic, MqttMessage message) {
+        OfflineQueue queue = offlineQueue;
+        if (queue != null && (!isConnected() || queue.hasBacklog())) {
+            queue.store(topic, message);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records the latency of a message published through the {@link PublishPipeline}, called
+     * when its PUBACK or PUBCOMP arrives, or once it is written for qos 0. The token of a
+     * pipeline publish carries the time the message was queued, so nothing is looked up
+     * @param token the delivery token of the message
+     */
+    void deliveryComplete(IMqttDeliveryToken token) {
+        Object context = token.getUserContext();
+        if (context instanceof PublishPipeline.PendingPublish) {
+            PublishPipeline.PendingPublish pending = (PublishPipeline.PendingPublish) context;
+            publishLatency[pending.message.getQos()].record(System.nanoTime() - pending.enqueuedAt);
+        }
+    }
+
+    /**
+     * Get the latency from queueing a message in the {@link PublishPipeline} to its delivery,
+     * the histogram keeps recording while the snapshot is taken
+     * @param qos the qos of the messages
+     * @return a snapshot of the latencies of the messages published with that qos
+     */
+    public LatencyHistogram.Snapshot getPublishLatency(int qos) {
+        return publishLatency[qos].snapshot();
+    }
+
+    /**
+     * Get the latency from queueing a message in the {@link PublishPipeline} to its delivery,
+     * for every qos
+     * @return a snapshot of the latencies of every published message
+     */
+    public LatencyHistogram.Snapshot getPublishLatency() {
+        return publishLatency[0].snapshot().merge(publishLatency[1].snapshot()).merge(publishLatency[2].snapshot());
+    }
+
+    /**
+     * Discards the recorded publish latencies
+     */
+    public void resetPublishLatency() {
+        for (LatencyHistogram histogram : publishLatency) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Get the pool of payload arrays of messages published from buffers, along with its copy
+     * and allocation counters
+     * @return the buffer pool of this connection
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Get the pipeline outbound messages are queued in, it is created on first use
+     * @return the publish pipeline of this connection
+     */
+    public synchronized PublishPipeline getPublishPipeline() {
+        if (publishPipeline == null) {
+            publishPipeline = new PublishPipeline(this, PublishPipeline.DEFAULT_QUEUE_CAPACITY);
+        }
+        return publishPipeline;
+    }
+
+    /**
+     * Enables the {@link OfflineQueue} of this connection, messages it stored in an earlier
+     * process are published once the client is connected
+     * @param maxAgeMillis stored messages older than this are dropped
+     * @param maxMessages the number of stored messages kept, the oldest ones are dropped beyond it
+     */
+    public synchronized void enableOfflineQueue(long maxAgeMillis, int maxMessages) {
+        if (offlineQueue != null) {
+            offlineQueue.shutdown();
+        }
+        offlineQueue = new OfflineQueue(context, this, maxAgeMillis, maxMessages);
+    }
+
+    /**
+     * Disables the {@link OfflineQueue} of this connection, the messages it stored are kept
+     * until it is enabled again
+     */
+    public synchronized void disableOfflineQueue() {
+        if (offlineQueue != null) {
+            offlineQueue.shutdown();
+            offlineQueue = null;
+        }
+    }
+
+    /**
+     * Get the offline queue of this connection
+     * @return the offline queue, null unless enabled
+     */
+    public OfflineQueue getOfflineQueue() {
+        return offlineQueue;
+    }
+
+    /**
+     * Enables the {@link MessageStore} of this connection, every message received from now on
+     * is written to the database
+     * @param maxAgeMillis stored messages older than this are dropped
+     * @param maxMessages the number of stored messages kept, the oldest ones are dropped beyond it
+     */
+    public synchronized void enableMessageStore(long maxAgeMillis, int maxMessages) {
+        if (messageStore != null) {
+            messageStore.shutdown();
+        }
+        messageStore = new MessageStore(context, this, maxAgeMillis, maxMessages);
+    }
+
+    /**
+     * Disables the {@link MessageStore} of this connection, the messages it stored are kept
+     * and can still be read once it is enabled again
+     */
+    public synchronized void disableMessageStore() {
+        if (messageStore != null) {
+            messageStore.shutdown();
+            messageStore = null;
+        }
+    }
+
+    /**
+     * Get the received message store of this connection
+     * @return the message store, null unless enabled
+     */
+    public MessageStore getMessageStore() {
+        return messageStore;
+    }
+
+    /**
+     * Enables the {@link MessageJournal} of this connection, the messages of subscriptions whose
+     * storage is {@link MessageStorage#JOURNAL} are appended to it from now on
+     * @param maxAgeMillis segments whose last message is older than this are deleted
+     * @param maxBytes the oldest segments are deleted once the journal is larger than this
+     * @throws IOException if the files of the journal cannot be opened
+     */
+    public synchronized void enableMessageJournal(long maxAgeMillis, long maxBytes) throws IOException {
+        if (messageJournal != null) {
+            messageJournal.shutdown();
+            messageJournal = null;
+        }
+        messageJournal = new MessageJournal(context, this, maxAgeMillis, maxBytes);
+    }
+
+    /**
+     * Disables the {@link MessageJournal} of this connection, the messages it stored are kept
+     * and can still be read once it is enabled again
+     */
+    public synchronized void disableMessageJournal() {
+        if (messageJournal != null) {
+            messageJournal.shutdown();
+            messageJournal = null;
+        }
+    }
+
+    /**
+     * Get the received message journal of this connection
+     * @return the message journal, null unless enabled
+     */
+    public MessageJournal getMessageJournal() {
+        return messageJournal;
+    }
 
     public void unsubscribe (Subscription subscription) throws MqttException {
         if(subscriptions.containsKey(subscription.getTopic())){
             this.getClient().unsubscribe(subscription.getTopic());
-            subscriptions.remove(subscription.getTopic());
-            Persistence persistence = new Persistence(context);
-            persistence.deleteSubscription(subscription);
+            // the stored subscription holds the persistence id, the argument may only match its topic
+            Subscription stored = subscriptions.remove(subscription.getTopic());
+            PersistenceWriter.getInstance(context).deleteSubscription(stored != null ? stored : subscription);
         }
 
     }
 
+    /**
+     * Adds subscriptions that are already persisted and subscribed to, such as those restored
+     * from the database. New subscriptions go through {@link #addNewSubscriptions(List)}
+     * @param newSubs the subscriptions
+     */
     public void setSubscriptions(ArrayList<Subscription> newSubs){
         for(Subscription sub : newSubs){
             subscriptions.put(sub.getTopic(), sub);
@@ -398,34 +996,252 @@ public class Connection {
     }
 
     public ArrayList<Subscription> getSubscriptions(){
-        ArrayList<Subscription> subs = new ArrayList<>(subscriptions.values());
-        return subs;
+        return subscriptions.values();
+    }
+
+    /**
+     * Get every subscription whose topic filter matches a topic, wildcards included
+     * @param topic the topic name a message was published to
+     * @return the matching subscriptions
+     */
+    public List<Subscription> getMatchingSubscriptions(String topic){
+        return subscriptions.match(topic);
     }
 
     public void addReceivedMessageListener(IReceivedMessageListener listener){
-      if(receivedMessageListeners.indexOf(listener)==-1)
-      {
-          receivedMessageListeners.add(listener);
-      }
+        receivedMessageListeners.add(listener);
+    }
+
+    /**
+     * Register a listener for the messages whose topic matches a topic filter.
+     * A listener registered with several matching filters receives each message once
+     * @param topicFilter the topic filter, may contain <code>+</code> and <code>#</code> wildcards
+     * @param listener the listener to add
+     */
+    public void addReceivedMessageListener(String topicFilter, IReceivedMessageListener listener){
+        receivedMessageListeners.add(topicFilter, listener);
+    }
+
+    /**
+     * Register a listener that only receives the latest message of each topic matching a filter,
+     * delivered on every tick of a {@link TickSource}.
+     * Unregister it with {@link #removeConflatingListener(ConflatingListener)}
+     * @param topicFilter the topic filter, may contain <code>+</code> and <code>#</code> wildcards
+     * @param listener the listener the latest messages are delivered to
+     * @param tickSource the source of the ticks the latest messages are delivered on
+     * @return the conflating listener registered with this connection
+     */
+    public ConflatingListener addConflatingListener(String topicFilter, IReceivedMessageListener listener, TickSource tickSource){
+        ConflatingListener conflatingListener = new ConflatingListener(listener);
+        receivedMessageListeners.add(topicFilter, conflatingListener);
+        conflatingListener.start(tickSource);
+        return conflatingListener;
+    }
+
+    /**
+     * Unregister a conflating listener and stop its ticks
+     * @param conflatingListener the listener returned by {@link #addConflatingListener(String, IReceivedMessageListener, TickSource)}
+     */
+    public void removeConflatingListener(ConflatingListener conflatingListener){
+        receivedMessageListeners.remove(conflatingListener);
+        conflatingListener.stop();
+    }
+
+    /**
+     * Register a listener that receives the messages of the topics matching a filter in batches.
+     * A batch is delivered on every tick of a {@link TickSource}, for instance once per display frame
+     * with a {@link FrameTickSource}, or as soon as it holds <code>maxBatchSize</code> messages.
+     * Unregister it with {@link #removeBatchingListener(BatchingListener)}
+     * @param topicFilter the topic filter, may contain <code>+</code> and <code>#</code> wildcards
+     * @param listener the listener batches are delivered to
+     * @param maxBatchSize the number of messages that triggers a delivery, {@link BatchingListener#UNBOUNDED} to rely on ticks only
+     * @param tickSource the source of the ticks batches are delivered on
+     * @return the batching listener registered with this connection
+     */
+    public BatchingListener addReceivedMessageBatchListener(String topicFilter, IReceivedMessageBatchListener listener,
+                                                            int maxBatchSize, TickSource tickSource){
+        BatchingListener batchingListener = new BatchingListener(listener, maxBatchSize);
+        receivedMessageListeners.add(topicFilter, batchingListener);
+        batchingListener.start(tickSource);
+        return batchingListener;
+    }
+
+    /**
+     * Unregister a batching listener and stop its ticks, messages it still holds are discarded
+     * @param batchingListener the listener returned by {@link #addReceivedMessageBatchListener(String, IReceivedMessageBatchListener, int, TickSource)}
+     */
+    public void removeBatchingListener(BatchingListener batchingListener){
+        receivedMessageListeners.remove(batchingListener);
+        batchingListener.stop();
+    }
+
+    /**
+     * Unregister a listener from every message and every topic filter it was registered with
+     * @param listener the listener to remove
+     */
+    public void removeReceivedMessageListener(IReceivedMessageListener listener){
+        receivedMessageListeners.remove(listener);
+    }
+
+    /**
+     * Unregister a listener from a topic filter
+     * @param topicFilter the topic filter the listener was registered with
+     * @param listener the listener to remove
+     */
+    public void removeReceivedMessageListener(String topicFilter, IReceivedMessageListener listener){
+        receivedMessageListeners.remove(topicFilter, listener);
+    }
+
+    /**
+     * Set the {@link MessageDispatcher} that delivers received messages to the listeners,
+     * the previous dispatcher is shut down.
+     * By default messages are delivered on the MQTT callback thread by a {@link DirectDispatcher}
+     * @param dispatcher the dispatcher to use
+     */
+    public synchronized void setMessageDispatcher(MessageDispatcher dispatcher){
+        if (messageDispatcher != null) {
+            messageDispatcher.shutdown();
+        }
+        dispatcher.start(messageReceiver);
+        messageDispatcher = dispatcher;
+    }
+
+    /**
+     * Get the {@link MessageDispatcher} that delivers received messages to the listeners
+     * @return the dispatcher of this connection
+     */
+    public MessageDispatcher getMessageDispatcher(){
+        return messageDispatcher;
+    }
+
+    /**
+     * Set the overflow policy of received messages that match none of the subscriptions
+     * @param policy the policy to apply, {@link OverflowPolicy#BLOCK} by default
+     */
+    public void setDefaultOverflowPolicy(OverflowPolicy policy){
+        defaultOverflowPolicy = policy;
+    }
+
+    /**
+     * Get the number of received messages waiting to be delivered to the listeners
+     * @return number of queued messages
+     */
+    public int getQueuedMessageCount(){
+        return messageDispatcher.getQueuedCount();
+    }
+
+    /**
+     * Get the number of received messages discarded because the inbound queue was full
+     * @return number of dropped messages
+     */
+    public long getDroppedMessageCount(){
+        return messageDispatcher.getDroppedCount();
+    }
+
+    /**
+     * Get the number of received messages that overflowed to disk
+     * @return number of spilled messages
+     */
+    public long getSpilledMessageCount(){
+        return messageDispatcher.getSpilledCount();
     }
 
     public void messageArrived(String topic, MqttMessage message){
-        ReceivedMessage msg = new ReceivedMessage(topic, message);
-        if (messageHistory.size()>20){
-            messageHistory.clear();
+        RingBuffer<ReceivedMessage> history = messageHistory;
+        ReceivedMessage msg;
+        if (history != null) {
+            msg = new ReceivedMessage(topic, message);
+            history.add(msg);
+        } else if (recycleMessages) {
+            msg = ReceivedMessage.obtain(topic, message);
+        } else {
+            msg = new ReceivedMessage(topic, message);
         }
-        messageHistory.add(msg);
-        if(subscriptions.containsKey(topic)){
-            subscriptions.get(topic).setLastMessage(new String(message.getPayload()));
+        OverflowPolicy policy = null;
+        MessageStorage storage = null;
+        if(subscriptions.match(topic, matchedSubscriptions) > 0){
+            byte[] payload = message.getPayload();
+            for(Subscription subscription : matchedSubscriptions){
+                subscription.setLastPayload(payload);
+                policy = subscription.getOverflowPolicy().strongest(policy);
+                storage = subscription.getStorage().preferred(storage);
+                PayloadCodec codec = subscription.getCodec();
+                if (codec != null) {
+                    msg.setCodec(codec);
+                }
+            }
+            matchedSubscriptions.clear();
         }
+        storeReceived(topic, message, storage != null ? storage : MessageStorage.DATABASE);
 
-        for(IReceivedMessageListener listener : receivedMessageListeners){
-            listener.onMessageReceived(msg);
+        messageDispatcher.dispatch(msg, policy != null ? policy : defaultOverflowPolicy);
+    }
+
+    /**
+     * Stores a received message in the storage its subscriptions selected, if it is enabled
+     */
+    private void storeReceived(String topic, MqttMessage message, MessageStorage storage) {
+        if (storage == MessageStorage.NONE) {
+            return;
+        }
+        MessageJournal journal = messageJournal;
+        if (storage == MessageStorage.JOURNAL && journal != null) {
+            journal.store(topic, message);
+            return;
+        }
+        MessageStore store = messageStore;
+        if (store != null) {
+            store.store(topic, message);
         }
+    }
 
+    /**
+     * Delivers a message to the listeners, called on the dispatcher's thread
+     * @param message the received message
+     */
+    private void deliverMessage(ReceivedMessage message){
+        for(IReceivedMessageListener listener : receivedMessageListeners.resolve(message.getTopic())){
+            listener.onMessageReceived(message);
+        }
+        // no effect unless the message was obtained from the pool
+        message.recycle();
     }
-    public ArrayList<ReceivedMessage> getMessages(){
-        return messageHistory;
+
+    /**
+     * Get the most recent messages received by this connection, oldest first
+     * @return a read only snapshot of the message history
+     */
+    public List<ReceivedMessage> getMessages(){
+        RingBuffer<ReceivedMessage> history = messageHistory;
+        return history != null ? history.snapshot() : Collections.<ReceivedMessage>emptyList();
+    }
+
+    /**
+     * Set how many received messages are kept by this connection, the current history is discarded
+     * @param capacity number of messages to keep, rounded up to the next power of two, zero keeps none
+     */
+    public void setMessageHistoryCapacity(int capacity){
+        messageHistory = capacity > 0 ? new RingBuffer<ReceivedMessage>(capacity) : null;
+    }
+
+    /**
+     * Get how many received messages are kept by this connection
+     * @return the capacity of the message history
+     */
+    public int getMessageHistoryCapacity(){
+        RingBuffer<ReceivedMessage> history = messageHistory;
+        return history != null ? history.capacity() : 0;
+    }
+
+    /**
+     * Pool received messages and recycle them once every listener has returned, so the receive
+     * path stops allocating them. Listeners that keep a message must {@link ReceivedMessage#retain()} it.
+     * Messages are only recycled while the message history is disabled with
+     * {@link #setMessageHistoryCapacity(int)}, since the history hands them out to any reader
+     * @param recycle true to recycle received messages
+     */
+    public void setRecycleMessages(boolean recycle){
+        recycleMessages = recycle;
     }
 
 
@@ -433,4 +1249,15 @@ public class Connection {
 
         void onMessageReceived(ReceivedMessage message);
     }
+
+    /**
+     * Receives the messages of a connection in batches, see {@link BatchingListener}
+     */
+    public interface IReceivedMessageBatchListener {
+
+        /**
+         * @param messages the messages received since the last batch, oldest first
+         */
+        void onMessagesReceived(List<ReceivedMessage> messages);
+    }
 }
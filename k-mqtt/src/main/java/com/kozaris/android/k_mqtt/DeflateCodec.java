@@ -0,0 +1,107 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link PayloadCodec} producing raw deflate streams, for the best ratio on text payloads
+ * such as JSON.
+ *
+ * Deflaters and inflaters hold native memory and are costly to create, so they are pooled and
+ * reset between payloads instead of being created for every message.
+ */
+public class DeflateCodec implements PayloadCodec {
+
+    /** Id of the deflate codec **/
+    public static final byte ID = 1;
+
+    /** Number of deflaters and of inflaters kept for reuse **/
+    static final int POOL_SIZE = 4;
+
+    private final int level;
+
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger deflaterCount = new AtomicInteger();
+
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger inflaterCount = new AtomicInteger();
+
+    /**
+     * Creates a deflate codec
+     * @param level the compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+     */
+    public DeflateCodec(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        // bound of zlib's deflateBound for a raw stream
+        return length + (length >> 12) + (length >> 14) + (length >> 25) + 13;
+    }
+
+    @Override
+    public int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        } else {
+            deflaterCount.decrementAndGet();
+        }
+        try {
+            deflater.setInput(src, srcOffset, length);
+            deflater.finish();
+            int written = 0;
+            int room = dst.length - dstOffset;
+            while (!deflater.finished() && written < room) {
+                written += deflater.deflate(dst, dstOffset + written, room - written);
+            }
+            return written;
+        } finally {
+            deflater.reset();
+            if (deflaterCount.incrementAndGet() <= POOL_SIZE) {
+                deflaters.offer(deflater);
+            } else {
+                deflaterCount.decrementAndGet();
+                deflater.end();
+            }
+        }
+    }
+
+    @Override
+    public void decode(byte[] src, int srcOffset, int length, byte[] dst) throws DataFormatException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        } else {
+            inflaterCount.decrementAndGet();
+        }
+        try {
+            inflater.setInput(src, srcOffset, length);
+            int read = 0;
+            while (read < dst.length) {
+                int n = inflater.inflate(dst, read, dst.length - read);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Deflate stream ended after " + read + " of " + dst.length + " bytes");
+                }
+                read += n;
+            }
+        } finally {
+            inflater.reset();
+            if (inflaterCount.incrementAndGet() <= POOL_SIZE) {
+                inflaters.offer(inflater);
+            } else {
+                inflaterCount.decrementAndGet();
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.kozaris.android.k_mqtt;
+
+/**
+ * {@link MessageDispatcher} that delivers every message on the thread that dispatched it,
+ * which is the MQTT callback thread. This is the default dispatcher of a {@link Connection}.
+ * It never buffers, so the {@link OverflowPolicy} of a message does not apply.
+ */
+public class DirectDispatcher implements MessageDispatcher {
+
+    private volatile Receiver receiver;
+
+    @Override
+    public void start(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void dispatch(ReceivedMessage message, OverflowPolicy policy) {
+        Receiver r = receiver;
+        if (r != null) {
+            r.deliver(message);
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        receiver = null;
+    }
+
+    @Override
+    public int getQueuedCount() {
+        return 0;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        return 0;
+    }
+
+    @Override
+    public long getSpilledCount() {
+        return 0;
+    }
+}
@@ -0,0 +1,208 @@
+package com.kozaris.android.k_mqtt;
+
+import android.content.Context;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Bounded history of the events of a {@link Connection}.
+ *
+ * Events are recorded as typed records holding a primitive timestamp and references to
+ * the values involved, they are only turned into localized strings when the history is read.
+ * Once the log is full the oldest event is overwritten. A log with a capacity of zero
+ * records nothing, for deployments where the history is not worth its cost.
+ */
+public class EventLog {
+
+    /**
+     * The kinds of events that are recorded
+     */
+    public enum Kind {
+        /** The connection object was created **/
+        CLIENT_CREATED(R.string.event_client_created),
+        /** The client connected **/
+        CONNECTED(R.string.event_client_connected),
+        /** The client failed to connect **/
+        CONNECT_FAILED(R.string.event_connect_failed),
+        /** The client disconnected **/
+        DISCONNECTED(R.string.toast_disconnected),
+        /** The client failed to disconnect **/
+        DISCONNECT_FAILED(R.string.event_disconnect_failed),
+        /** The connection to the server was lost **/
+        CONNECTION_LOST(R.string.event_connection_lost),
+        /** A subscription was acknowledged **/
+        SUBSCRIBED(R.string.toast_sub_success),
+        /** A subscription failed **/
+        SUBSCRIBE_FAILED(R.string.toast_sub_failed),
+        /** A message was published **/
+        PUBLISHED(R.string.toast_pub_success),
+        /** A message failed to publish **/
+        PUBLISH_FAILED(R.string.toast_pub_failed),
+        /** A message was received **/
+        MESSAGE_RECEIVED(R.string.messageRecieved);
+
+        /** String resource used to describe the event **/
+        private final int resourceId;
+
+        Kind(int resourceId) {
+            this.resourceId = resourceId;
+        }
+    }
+
+    /** Default number of events kept by a log **/
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final Kind[] kinds;
+    /** Format arguments of each event, or the raw payload for {@link Kind#MESSAGE_RECEIVED} **/
+    private final Object[] details;
+    private final String[] topics;
+    /** qos and retained flag of received messages **/
+    private final int[] flags;
+
+    /** Total number of events recorded, the next event goes to <code>count % capacity</code> **/
+    private long count = 0;
+
+    /**
+     * Creates an event log
+     * @param capacity the number of events to keep, zero disables the log
+     */
+    public EventLog(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must not be negative: " + capacity);
+        }
+        this.capacity = capacity;
+        timestamps = new long[capacity];
+        kinds = new Kind[capacity];
+        details = new Object[capacity];
+        topics = new String[capacity];
+        flags = new int[capacity];
+    }
+
+    /**
+     * Determines if this log records events
+     * @return false if the log was created with a capacity of zero
+     */
+    public boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    /**
+     * Get the maximum number of events this log keeps
+     * @return the capacity of the log
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Records an event
+     * @param kind the kind of the event
+     * @param args arguments used to format the event's description
+     */
+    public void add(Kind kind, Object... args) {
+        if (capacity > 0) {
+            record(kind, null, args, 0);
+        }
+    }
+
+    /**
+     * Records a received message, the payload is only decoded when the history is read
+     * @param topic the topic the message arrived on
+     * @param payload the payload of the message
+     * @param qos the qos of the message
+     * @param retained the retained flag of the message
+     */
+    public void addMessage(String topic, byte[] payload, int qos, boolean retained) {
+        if (capacity > 0) {
+            record(Kind.MESSAGE_RECEIVED, topic, payload, qos | (retained ? 4 : 0));
+        }
+    }
+
+    private synchronized void record(Kind kind, String topic, Object detail, int flag) {
+        int index = (int) (count % capacity);
+        timestamps[index] = System.currentTimeMillis();
+        kinds[index] = kind;
+        topics[index] = topic;
+        details[index] = detail;
+        flags[index] = flag;
+        count++;
+    }
+
+    /**
+     * Get the number of events currently held
+     * @return number of events in the log
+     */
+    public synchronized int size() {
+        return (int) Math.min(count, capacity);
+    }
+
+    /**
+     * Discards every event
+     */
+    public synchronized void clear() {
+        count = 0;
+        for (int i = 0; i < capacity; i++) {
+            details[i] = null;
+            topics[i] = null;
+        }
+    }
+
+    /**
+     * Formats the events currently held, oldest first
+     * @param context context used to load the localized strings
+     * @return a description of each event followed by its timestamp
+     */
+    public List<String> format(Context context) {
+        int size;
+        long[] eventTimes;
+        Kind[] eventKinds;
+        Object[] eventDetails;
+        String[] eventTopics;
+        int[] eventFlags;
+        // copy under the lock, format outside of it
+        synchronized (this) {
+            size = (int) Math.min(count, capacity);
+            eventTimes = new long[size];
+            eventKinds = new Kind[size];
+            eventDetails = new Object[size];
+            eventTopics = new String[size];
+            eventFlags = new int[size];
+            long first = count - size;
+            for (int i = 0; i < size; i++) {
+                int index = (int) ((first + i) % capacity);
+                eventTimes[i] = timestamps[index];
+                eventKinds[i] = kinds[index];
+                eventDetails[i] = details[index];
+                eventTopics[i] = topics[index];
+                eventFlags[i] = flags[index];
+            }
+        }
+
+        DateFormat dateTimeFormatter = SimpleDateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+        Date date = new Date();
+        ArrayList<String> history = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            String description;
+            if (eventKinds[i] == Kind.MESSAGE_RECEIVED) {
+                int flag = eventFlags[i];
+                description = context.getString(Kind.MESSAGE_RECEIVED.resourceId,
+                        new String(PayloadCodecs.decode((byte[]) eventDetails[i])),
+                        eventTopics[i] + ";qos:" + (flag & 3) + ";retained:" + ((flag & 4) != 0));
+            } else {
+                Object[] args = eventDetails[i] != null ? (Object[]) eventDetails[i] : NO_ARGS;
+                description = context.getString(eventKinds[i].resourceId, args);
+            }
+            date.setTime(eventTimes[i]);
+            history.add(description + context.getString(R.string.timestamp, dateTimeFormatter.format(date)));
+        }
+        return history;
+    }
+}
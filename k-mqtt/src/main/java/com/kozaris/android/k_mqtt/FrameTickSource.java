@@ -0,0 +1,42 @@
+package com.kozaris.android.k_mqtt;
+
+import android.view.Choreographer;
+
+/**
+ * {@link TickSource} that ticks once per display frame using the {@link Choreographer}.
+ * It must be started and stopped on a thread with a looper, usually the main thread,
+ * and ticks are reported on that thread.
+ */
+public class FrameTickSource implements TickSource, Choreographer.FrameCallback {
+
+    private Choreographer choreographer = null;
+
+    private Callback callback = null;
+
+    @Override
+    public void start(Callback callback) {
+        if (choreographer == null) {
+            choreographer = Choreographer.getInstance();
+        }
+        choreographer.removeFrameCallback(this);
+        this.callback = callback;
+        choreographer.postFrameCallback(this);
+    }
+
+    @Override
+    public void stop() {
+        callback = null;
+        if (choreographer != null) {
+            choreographer.removeFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        Callback c = callback;
+        if (c != null) {
+            c.onTick(frameTimeNanos);
+            choreographer.postFrameCallback(this);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.kozaris.android.k_mqtt;
+
+import android.os.Handler;
+
+/**
+ * {@link TickSource} that ticks at a fixed period on the thread of a {@link Handler},
+ * usually the main thread.
+ */
+public class HandlerTickSource implements TickSource {
+
+    private final Handler handler;
+
+    private final long periodMillis;
+
+    private volatile Callback callback = null;
+
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            Callback c = callback;
+            if (c != null) {
+                c.onTick(System.nanoTime());
+                handler.postDelayed(this, periodMillis);
+            }
+        }
+    };
+
+    /**
+     * Creates a tick source
+     * @param handler the handler whose thread ticks are reported on
+     * @param periodMillis milliseconds between two ticks
+     */
+    public HandlerTickSource(Handler handler, long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + periodMillis);
+        }
+        this.handler = handler;
+        this.periodMillis = periodMillis;
+    }
+
+    @Override
+    public void start(Callback callback) {
+        this.callback = callback;
+        handler.removeCallbacks(tick);
+        handler.postDelayed(tick, periodMillis);
+    }
+
+    @Override
+    public void stop() {
+        callback = null;
+        handler.removeCallbacks(tick);
+    }
+}
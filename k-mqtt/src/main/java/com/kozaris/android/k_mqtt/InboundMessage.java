@@ -0,0 +1,61 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A received message kept in the {@link MessageStore} of a {@link Connection}
+ */
+public class InboundMessage {
+    private final String topic;
+    private final MqttMessage message;
+    private final long received;
+    private long persistenceId = -1;
+
+    public InboundMessage(String topic, MqttMessage message, long received) {
+        this.topic = topic;
+        this.message = message;
+        this.received = received;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * @return the message as it was received, its payload may be encoded by a {@link PayloadCodec}
+     */
+    public MqttMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the payload, decoded if it was encoded by a registered {@link PayloadCodec}
+     */
+    public byte[] getPayload() {
+        return PayloadCodecs.decode(message.getPayload());
+    }
+
+    /**
+    * @return the time the message was received, in milliseconds since the epoch
+    */
+    public long getReceived() {
+        return received;
+    }
+
+    public long getPersistenceId() {
+        return persistenceId;
+    }
+
+    public void setPersistenceId(long persistenceId) {
+        this.persistenceId = persistenceId;
+    }
+
+    @Override
+    public String toString() {
+        return "InboundMessage{" +
+                "topic='" + topic + '\'' +
+                ", persistenceId=" + persistenceId +
+                ", received=" + received +
+                '}';
+    }
+}
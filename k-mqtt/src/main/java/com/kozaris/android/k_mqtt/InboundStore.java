@@ -0,0 +1,46 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.List;
+
+/**
+ * Stores the messages a {@link Connection} receives and reads them back by topic filter and
+ * time range, see {@link MessageStore} and {@link MessageJournal}
+ */
+public interface InboundStore {
+
+    /**
+     * Stores a received message
+     * @param topic the topic the message was received on
+     * @param message the message
+     */
+    void store(String topic, MqttMessage message);
+
+    /**
+     * Reads a page of stored messages on the caller's thread, in the order they were received
+     * @param topicFilter the topic filter, wildcards included
+     * @param fromMillis the start of the time range, inclusive, in milliseconds since the epoch
+     * @param toMillis the end of the time range, exclusive, in milliseconds since the epoch
+     * @param after the last message of the previous page, or null for the first page
+     * @param limit the maximum number of messages to read
+     * @return the messages, fewer than the limit once the range is exhausted
+     */
+    List<InboundMessage> query(String topicFilter, long fromMillis, long toMillis, InboundMessage after, int limit);
+
+    /**
+     * Get the number of stored messages
+     * @return number of stored messages
+     */
+    long getStoredCount();
+
+    /**
+     * Stops the store, stored messages are kept
+     */
+    void shutdown();
+
+    /**
+     * Deletes every stored message
+     */
+    void clear();
+}
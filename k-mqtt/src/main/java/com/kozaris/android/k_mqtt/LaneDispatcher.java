@@ -0,0 +1,185 @@
+package com.kozaris.android.k_mqtt;
+
+import android.util.Log;
+
+import java.io.File;
+
+/**
+ * {@link MessageDispatcher} that delivers messages on a fixed set of worker threads, called lanes.
+ *
+ * Every topic is hashed onto one lane, so the messages of a topic are delivered in order
+ * while unrelated topics are delivered in parallel. Each lane buffers messages in a
+ * {@link BoundedMessageQueue}, the {@link OverflowPolicy} of a message decides what happens
+ * when its lane's queue is full.
+ */
+public class LaneDispatcher implements MessageDispatcher {
+
+    private static final String TAG = "LaneDispatcher";
+
+    /** Default capacity of the queue of each lane **/
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    /** Name prefix of the lane threads **/
+    private final String name;
+
+    private final Lane[] lanes;
+
+    private volatile Receiver receiver;
+
+    /**
+     * Creates a dispatcher with one lane per available processor
+     * @param name name used for the lane threads
+     */
+    public LaneDispatcher(String name) {
+        this(name, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates a dispatcher
+     * @param name name used for the lane threads
+     * @param laneCount number of lanes
+     * @param queueCapacity number of messages each lane buffers
+     */
+    public LaneDispatcher(String name, int laneCount, int queueCapacity) {
+        this(name, laneCount, queueCapacity, null);
+    }
+
+    /**
+     * Creates a dispatcher that can spill messages to disk
+     * @param name name used for the lane threads
+     * @param laneCount number of lanes
+     * @param queueCapacity number of messages each lane buffers in memory
+     * @param spillDirectory directory for the spill files of {@link OverflowPolicy#SPILL_TO_DISK},
+     *                       if null those messages wait for room in the queue instead
+     */
+    public LaneDispatcher(String name, int laneCount, int queueCapacity, File spillDirectory) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("Lane count must be positive: " + laneCount);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.name = name;
+        lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            File spillFile = spillDirectory != null ? new File(spillDirectory, "k-mqtt-" + name + "-lane-" + i + ".spill") : null;
+            lanes[i] = new Lane(new BoundedMessageQueue(queueCapacity, spillFile));
+        }
+    }
+
+    @Override
+    public synchronized void start(Receiver receiver) {
+        if (this.receiver != null) {
+            throw new IllegalStateException("Dispatcher " + name + " has already been started");
+        }
+        this.receiver = receiver;
+        for (int i = 0; i < lanes.length; i++) {
+            Thread thread = new Thread(lanes[i], "k-mqtt-" + name + "-lane-" + i);
+            thread.setDaemon(true);
+            lanes[i].thread = thread;
+            thread.start();
+        }
+    }
+
+    @Override
+    public void dispatch(ReceivedMessage message, OverflowPolicy policy) {
+        Lane lane = laneFor(message.getTopic());
+        try {
+            lane.queue.put(message, policy);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.w(TAG, "Interrupted while dispatching a message on " + message.getTopic());
+        }
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        receiver = null;
+        for (Lane lane : lanes) {
+            lane.running = false;
+            if (lane.thread != null) {
+                lane.thread.interrupt();
+            }
+            lane.queue.clear();
+        }
+    }
+
+    /**
+     * Get the number of lanes of this dispatcher
+     * @return number of lanes
+     */
+    public int getLaneCount() {
+        return lanes.length;
+    }
+
+    @Override
+    public int getQueuedCount() {
+        int queued = 0;
+        for (Lane lane : lanes) {
+            queued += lane.queue.size();
+        }
+        return queued;
+    }
+
+    @Override
+    public long getDroppedCount() {
+        long dropped = 0;
+        for (Lane lane : lanes) {
+            dropped += lane.queue.getDroppedCount();
+        }
+        return dropped;
+    }
+
+    @Override
+    public long getSpilledCount() {
+        long spilled = 0;
+        for (Lane lane : lanes) {
+            spilled += lane.queue.getSpilledCount();
+        }
+        return spilled;
+    }
+
+    private Lane laneFor(String topic) {
+        int h = topic.hashCode();
+        h ^= (h >>> 16);
+        return lanes[(h & 0x7fffffff) % lanes.length];
+    }
+
+    /**
+     * A worker thread and the queue it drains
+     */
+    private final class Lane implements Runnable {
+
+        final BoundedMessageQueue queue;
+
+        volatile boolean running = true;
+
+        Thread thread;
+
+        Lane(BoundedMessageQueue queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                ReceivedMessage message;
+                try {
+                    message = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                Receiver r = receiver;
+                if (r == null) {
+                    break;
+                }
+                try {
+                    r.deliver(message);
+                } catch (RuntimeException e) {
+                    // a failing listener must not stop the lane
+                    Log.e(TAG, "Listener failed on " + message.getTopic(), e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in the style of HdrHistogram, recording without locks or
+ * allocation.
+ *
+ * Latencies are kept in microseconds in log linear buckets: values below 128 get a bucket each,
+ * every power of two above that is split in 64 buckets, so any value is known within 1.6%.
+ * Recording only increments counters, and a {@link #snapshot()} may be taken at any time without
+ * stopping writers, it then misses at most the values recorded while it is taken.
+ */
+public class LatencyHistogram {
+
+    /** Number of buckets per power of two, as a power of two **/
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+
+    /** Largest power of two tracked, values above about 39 hours are counted as the maximum **/
+    private static final int MAX_EXPONENT = 40;
+
+    /** Number of counters **/
+    static final int BUCKET_COUNT = SUB_BUCKET_HALF * (MAX_EXPONENT + 2);
+
+    /** Largest latency kept, in microseconds, larger ones are recorded as this value **/
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + SUB_BUCKET_BITS + 1)) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    /**
+     * Records a latency
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = Math.min(Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(micros));
+        totalMicros.addAndGet(micros);
+    }
+
+    /**
+     * Discards every recorded latency
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        totalMicros.set(0);
+    }
+
+    /**
+     * Copies the counters, writers are not stopped while they are copied
+     * @return a snapshot of the histogram
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, totalMicros.get());
+    }
+
+    static int indexOf(long micros) {
+        if (micros < 2 * SUB_BUCKET_HALF) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return SUB_BUCKET_HALF * exponent + (int) (micros >>> exponent);
+    }
+
+    /**
+     * Get the highest value that falls in a bucket
+     */
+    static long highestValueAt(int index) {
+        if (index < 2 * SUB_BUCKET_HALF) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKET_HALF - 1;
+        long lowest = (long) (index - SUB_BUCKET_HALF * exponent) << exponent;
+        return lowest + (1L << exponent) - 1;
+    }
+
+    /**
+     * An immutable copy of a histogram, all values are in microseconds
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long total;
+        private final long count;
+
+        Snapshot(long[] counts, long total) {
+            this.counts = counts;
+            this.total = total;
+            long n = 0;
+            for (long c : counts) {
+                n += c;
+            }
+            this.count = n;
+        }
+
+        /**
+         * Adds up two snapshots
+         * @param other the snapshot to add
+         * @return a snapshot holding the values of both
+         */
+        public Snapshot merge(Snapshot other) {
+            long[] sum = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                sum[i] = counts[i] + other.counts[i];
+            }
+            return new Snapshot(sum, total + other.total);
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean of the recorded values, zero if none was recorded
+         */
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) total / count;
+        }
+
+        /**
+         * @return the smallest recorded value, within the precision of the histogram
+         */
+        public long getMinMicros() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                if (counts[i] != 0) {
+                    return highestValueAt(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the largest recorded value, within the precision of the histogram
+         */
+        public long getMaxMicros() {
+            for (int i = BUCKET_COUNT - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return highestValueAt(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Get the value below which a percentage of the recorded values fall
+         * @param percentile the percentage, from 0 to 100
+         * @return the value at the percentile, zero if nothing was recorded
+         */
+        public long getPercentileMicros(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValueAt(i);
+                }
+            }
+            return getMaxMicros();
+        }
+
+        public long getP50Micros() {
+            return getPercentileMicros(50);
+        }
+
+        public long getP99Micros() {
+            return getPercentileMicros(99);
+        }
+
+        public long getP999Micros() {
+            return getPercentileMicros(99.9);
+        }
+
+        @Override
+        public String toString() {
+            return "LatencyHistogram.Snapshot{" +
+                    "count=" + count +
+                    ", p50=" + getP50Micros() + "us" +
+                    ", p99=" + getP99Micros() + "us" +
+                    ", p999=" + getP999Micros() + "us" +
+                    ", max=" + getMaxMicros() + "us" +
+                    '}';
+        }
+    }
+}
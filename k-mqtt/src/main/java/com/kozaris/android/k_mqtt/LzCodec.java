@@ -0,0 +1,158 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * A pure Java {@link PayloadCodec} of the LZ77 family, much faster than deflate at a lower ratio.
+ *
+ * The output is a series of sequences in the layout of the LZ4 block format: a token whose
+ * high nibble is the literal length and low nibble the match length minus four, the literals,
+ * a two byte little endian offset and the extra length bytes. The last sequence only holds
+ * literals.
+ */
+public class LzCodec implements PayloadCodec {
+
+    /** Id of the LZ codec **/
+    public static final byte ID = 2;
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+    private static final int HASH_LOG = 12;
+
+    /** Hash table of each thread, reused for every payload **/
+    private static final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_LOG];
+        }
+    };
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public int maxEncodedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    @Override
+    public int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+        int[] table = hashTables.get();
+        Arrays.fill(table, -1);
+        int end = srcOffset + length;
+        int anchor = srcOffset;
+        int i = srcOffset;
+        int out = dstOffset;
+        while (i + MIN_MATCH <= end) {
+            int sequence = readInt(src, i);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash];
+            table[hash] = i;
+            if (ref < 0 || i - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                i++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (i + matchLength < end && src[ref + matchLength] == src[i + matchLength]) {
+                matchLength++;
+            }
+            out = writeSequence(src, anchor, i - anchor, dst, out, i - ref, matchLength);
+            i += matchLength;
+            anchor = i;
+        }
+        return writeSequence(src, anchor, end - anchor, dst, out, 0, 0) - dstOffset;
+    }
+
+    /**
+     * Writes a sequence, a match length of zero writes the final literals only
+     * @return the offset following the sequence
+     */
+    private static int writeSequence(byte[] src, int literalOffset, int literalLength,
+                                     byte[] dst, int out, int matchOffset, int matchLength) {
+        int tokenOffset = out++;
+        int token = Math.min(literalLength, 15) << 4;
+        out = writeLength(dst, out, literalLength);
+        System.arraycopy(src, literalOffset, dst, out, literalLength);
+        out += literalLength;
+        if (matchLength > 0) {
+            dst[out++] = (byte) matchOffset;
+            dst[out++] = (byte) (matchOffset >>> 8);
+            token |= Math.min(matchLength - MIN_MATCH, 15);
+            out = writeLength(dst, out, matchLength - MIN_MATCH);
+        }
+        dst[tokenOffset] = (byte) token;
+        return out;
+    }
+
+    /**
+     * Writes the bytes that extend a length past the 15 held by its nibble
+     */
+    private static int writeLength(byte[] dst, int out, int length) {
+        if (length < 15) {
+            return out;
+        }
+        length -= 15;
+        while (length >= 255) {
+            dst[out++] = (byte) 255;
+            length -= 255;
+        }
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    @Override
+    public void decode(byte[] src, int srcOffset, int length, byte[] dst) throws DataFormatException {
+        int end = srcOffset + length;
+        int in = srcOffset;
+        int out = 0;
+        try {
+            while (in < end) {
+                int token = src[in++] & 0xFF;
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, in, dst, out, literalLength);
+                in += literalLength;
+                out += literalLength;
+                if (in >= end) {
+                    break;
+                }
+                int matchOffset = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = out - matchOffset;
+                if (matchOffset == 0 || ref < 0) {
+                    throw new DataFormatException("Invalid match offset " + matchOffset + " at " + out);
+                }
+                // copied byte by byte since a match may overlap its own output
+                for (int k = 0; k < matchLength; k++) {
+                    dst[out++] = dst[ref + k];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new DataFormatException("Truncated or corrupt LZ block");
+        }
+        if (out != dst.length) {
+            throw new DataFormatException("LZ block decoded to " + out + " of " + dst.length + " bytes");
+        }
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+}
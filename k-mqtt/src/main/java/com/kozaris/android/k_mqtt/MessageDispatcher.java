@@ -0,0 +1,55 @@
+package com.kozaris.android.k_mqtt;
+
+/**
+ * Stage between the MQTT callback thread and the {@link Connection.IReceivedMessageListener}s of a
+ * {@link Connection}. A dispatcher decides on which thread, and in which order, received messages
+ * are handed to the listeners.
+ *
+ * Implementations must deliver the messages of a single topic in the order they were dispatched.
+ */
+public interface MessageDispatcher {
+
+    /**
+     * Starts the dispatcher, called by the {@link Connection} it is attached to
+     * @param receiver the receiver that delivers messages to the listeners
+     */
+    void start(Receiver receiver);
+
+    /**
+     * Hands a message over to the dispatcher, called on the MQTT callback thread
+     * @param message the received message
+     * @param policy what to do with the message if the dispatcher cannot buffer it
+     */
+    void dispatch(ReceivedMessage message, OverflowPolicy policy);
+
+    /**
+     * Get the number of messages waiting to be delivered
+     * @return number of queued messages
+     */
+    int getQueuedCount();
+
+    /**
+     * Get the number of messages discarded by an {@link OverflowPolicy}
+     * @return number of dropped messages
+     */
+    long getDroppedCount();
+
+    /**
+     * Get the number of messages that overflowed to disk
+     * @return number of spilled messages
+     */
+    long getSpilledCount();
+
+    /**
+     * Stops the dispatcher, messages that have not been delivered yet are discarded
+     */
+    void shutdown();
+
+    /**
+     * Delivers a message to the listeners of a {@link Connection}
+     */
+    interface Receiver {
+
+        void deliver(ReceivedMessage message);
+    }
+}
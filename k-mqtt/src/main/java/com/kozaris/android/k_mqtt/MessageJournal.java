@@ -0,0 +1,722 @@
+package com.kozaris.android.k_mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the messages a {@link Connection} receives in an append only log of memory mapped
+ * files, for topics whose rate the {@link MessageStore} cannot keep up with.
+ *
+ * A message is appended on the thread that received it by copying it into the mapped file of
+ * the current segment, no system call is made. A record is a four byte length, the id of its
+ * topic, the time it was received, its qos, its retained flag and its payload, the length is
+ * written last so a record is only visible once it is complete. Topic names are written once
+ * to a separate file and records refer to them by id.
+ *
+ * Once a segment is full the next one is started, its file is named after the position of its
+ * first record so positions keep growing across segments. Every segment keeps a sparse index of
+ * the time of a record every few kilobytes, queries by time range binary search it and only
+ * read from the nearest indexed record. Times never go backwards within a journal.
+ *
+ * A background thread flushes the current segment to the disk, trims the unused end of full
+ * segments and deletes the oldest segments once they are older than the maximum age or the
+ * journal is larger than its maximum size.
+ */
+public class MessageJournal implements InboundStore {
+
+    private static final String TAG = "MessageJournal";
+
+    /** Default size of a segment **/
+    public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+    /** Default maximum age of a segment, one day **/
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** Default maximum size of the journal **/
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    /** Length, topic id, time, qos and retained flag **/
+    static final int HEADER_LENGTH = 4 + 4 + 8 + 1 + 1;
+
+    /** Bytes between two records of the sparse time index **/
+    static final int INDEX_INTERVAL = 4096;
+
+    /** Time between two flushes and retention passes **/
+    static final long COMPACT_INTERVAL_SECONDS = 10;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TOPICS_FILE = "topics";
+
+    private final File directory;
+
+    private final int segmentBytes;
+
+    private final long maxAgeMillis;
+
+    private final long maxBytes;
+
+    /** Topic names written so far, their index is their id **/
+    private volatile String[] topicNames = new String[0];
+
+    private final HashMap<String, Integer> topicIds = new HashMap<>();
+
+    /** The topic dictionary, topics are appended as they are first received **/
+    private final RandomAccessFile topicsFile;
+
+    /** Every segment, oldest first, replaced as a whole when it changes **/
+    private volatile Segment[] segments;
+
+    /** The segment records are appended to **/
+    private Segment active;
+
+    /** Time of the last record **/
+    private long lastTimestamp = 0;
+
+    private boolean closed = false;
+
+    /** Flushes, trims and deletes segments **/
+    private final ScheduledThreadPoolExecutor compactor;
+
+    /** Held by a compaction for its whole run, so two never decide on the same segments **/
+    private final Object compactLock = new Object();
+
+    private final Runnable compactTask = new Runnable() {
+        @Override
+        public void run() {
+            compact();
+        }
+    };
+
+    /**
+     * Opens the journal of a connection, messages it stored in an earlier process can be read
+     * @param context the application context
+     * @param connection the connection whose received messages are stored
+     * @param maxAgeMillis segments whose last message is older than this are deleted
+     * @param maxBytes the oldest segments are deleted once the journal is larger than this
+     * @throws IOException if the files of the journal cannot be opened
+     */
+    public MessageJournal(Context context, Connection connection, long maxAgeMillis, long maxBytes) throws IOException {
+        this(new File(new File(context.getFilesDir(), "k-mqtt-journal"), directoryName(connection.getId())),
+                DEFAULT_SEGMENT_BYTES, maxAgeMillis, maxBytes);
+    }
+
+    /**
+     * Opens a journal in a directory
+     * @param directory the directory of the journal, it is created if needed
+     * @param segmentBytes the size of a segment
+     * @param maxAgeMillis segments whose last message is older than this are deleted
+     * @param maxBytes the oldest segments are deleted once the journal is larger than this
+     * @throws IOException if the files of the journal cannot be opened
+     */
+    public MessageJournal(File directory, int segmentBytes, long maxAgeMillis, long maxBytes) throws IOException {
+        if (segmentBytes < HEADER_LENGTH) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentBytes);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create journal directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+        topicsFile = new RandomAccessFile(new File(directory, TOPICS_FILE), "rw");
+        readTopics();
+        openSegments();
+
+        final String threadName = TAG + "-" + directory.getName();
+        compactor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        compactor.scheduleWithFixedDelay(compactTask, COMPACT_INTERVAL_SECONDS, COMPACT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Get a file name for a client id, client ids may hold any character
+     */
+    private static String directoryName(String clientId) {
+        return clientId.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(clientId.hashCode());
+    }
+
+    /**
+     * Reads the topic dictionary, a torn last entry is cut off
+     */
+    private void readTopics() throws IOException {
+        ArrayList<String> names = new ArrayList<>();
+        long valid = 0;
+        try {
+            while (valid < topicsFile.length()) {
+                names.add(topicsFile.readUTF());
+                valid = topicsFile.getFilePointer();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Topic dictionary of " + directory + " cut at " + valid + " bytes", e);
+            topicsFile.setLength(valid);
+        }
+        topicsFile.seek(valid);
+        for (int i = 0; i < names.size(); i++) {
+            topicIds.put(names.get(i), i);
+        }
+        topicNames = names.toArray(new String[names.size()]);
+    }
+
+    /**
+     * Opens the segments, the last one is scanned to find where appending resumes
+     */
+    private void openSegments() throws IOException {
+        File[] files = directory.listFiles();
+        ArrayList<Segment> list = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        long base = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                        list.add(new Segment(file, base));
+                    } catch (NumberFormatException e) {
+                        Log.w(TAG, "Ignoring " + file);
+                    }
+                }
+            }
+        }
+        Segment[] opened = list.toArray(new Segment[list.size()]);
+        Arrays.sort(opened, Segment.BY_BASE);
+        for (int i = 0; i < opened.length - 1; i++) {
+            opened[i].open(false, 0, topicNames.length);
+        }
+        if (opened.length == 0) {
+            opened = new Segment[]{createSegment(0, segmentBytes)};
+        } else {
+            opened[opened.length - 1].open(true, segmentBytes, topicNames.length);
+        }
+        segments = opened;
+        active = opened[opened.length - 1];
+        for (int i = opened.length - 1; i >= 0 && lastTimestamp == 0; i--) {
+            lastTimestamp = Math.max(opened[i].getLastTime(topicNames.length), 0);
+        }
+    }
+
+    private Segment createSegment(long base, int capacity) throws IOException {
+        Segment segment = new Segment(new File(directory, String.format(Locale.ROOT, "%020d", base) + SEGMENT_SUFFIX), base);
+        segment.open(true, capacity, topicNames.length);
+        return segment;
+    }
+
+    /**
+     * Appends a received message to the journal on the calling thread. A message that cannot be
+     * written is logged and dropped
+     * @param topic the topic the message was received on
+     * @param message the message
+     */
+    @Override
+    public void store(String topic, MqttMessage message) {
+        byte[] payload = message.getPayload();
+        int recordLength = HEADER_LENGTH + payload.length;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                int topicId = topicId(topic);
+                Segment segment = active;
+                if (segment.end + recordLength > segment.capacity) {
+                    if (segment.end == 0) {
+                        // a new segment would start at the same position, under the same file name
+                        segment.grow(recordLength);
+                    } else {
+                        segment = roll(recordLength);
+                    }
+                }
+                long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+                segment.append(topicId, timestamp, message.getQos(), message.isRetained(), payload);
+                lastTimestamp = timestamp;
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append a message from " + topic + " to " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Get the id of a topic, a new topic is written to the dictionary first
+     */
+    private int topicId(String topic) throws IOException {
+        Integer id = topicIds.get(topic);
+        if (id != null) {
+            return id;
+        }
+        topicsFile.writeUTF(topic);
+        String[] names = Arrays.copyOf(topicNames, topicNames.length + 1);
+        names[names.length - 1] = topic;
+        topicIds.put(topic, names.length - 1);
+        topicNames = names;
+        return names.length - 1;
+    }
+
+    /**
+     * Seals the active segment and starts the next one
+     */
+    private Segment roll(int recordLength) throws IOException {
+        Segment sealed = active;
+        Segment next = createSegment(sealed.base + sealed.end, Math.max(segmentBytes, recordLength));
+        Segment[] list = Arrays.copyOf(segments, segments.length + 1);
+        list[list.length - 1] = next;
+        segments = list;
+        active = next;
+        sealed.sealed = true;
+        compactor.execute(compactTask);
+        return next;
+    }
+
+    /**
+     * Reads a page of stored messages on the caller's thread, in the order they were received.
+     * The persistence id of a message is its position in the journal
+     * @param topicFilter the topic filter, wildcards included
+     * @param fromMillis the start of the time range, inclusive, in milliseconds since the epoch
+     * @param toMillis the end of the time range, exclusive, in milliseconds since the epoch
+     * @param after the last message of the previous page, or null for the first page
+     * @param limit the maximum number of messages to read
+     * @return the messages, fewer than the limit once the range is exhausted
+     */
+    @Override
+    public List<InboundMessage> query(String topicFilter, long fromMillis, long toMillis,
+                                      InboundMessage after, int limit) {
+        Segment[] list = segments;
+        // the ends are read before the topic names: a new topic is published before the first
+        // record that uses it is appended, so every record up to these ends has a known topic
+        int[] ends = new int[list.length];
+        for (int i = 0; i < list.length; i++) {
+            ends[i] = list[i].index(topicNames.length);
+        }
+        String[] names = topicNames;
+        TopicTrie<Boolean> matcher = new TopicTrie<>();
+        matcher.put(topicFilter, Boolean.TRUE);
+        // whether each topic id matches the filter, 0 until it is first seen
+        byte[] matches = new byte[names.length];
+        long afterPosition = after != null ? after.getPersistenceId() : -1;
+        ArrayList<InboundMessage> page = new ArrayList<>(Math.min(limit, 64));
+
+        for (int i = 0; i < list.length; i++) {
+            Segment segment = list[i];
+            int end = ends[i];
+            if (end == 0 || segment.getLastTime(names.length) < fromMillis || afterPosition >= segment.base + end) {
+                continue;
+            }
+            if (segment.getFirstTime(names.length) >= toMillis) {
+                break;
+            }
+            int position = segment.seek(fromMillis);
+            if (afterPosition >= segment.base + position) {
+                position = (int) (afterPosition - segment.base);
+            }
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (position < end) {
+                int length = buffer.getInt(position);
+                long timestamp = buffer.getLong(position + 8);
+                if (timestamp >= toMillis) {
+                    return page;
+                }
+                int topicId = buffer.getInt(position + 4);
+                if (timestamp >= fromMillis && segment.base + position > afterPosition
+                        && matches(matcher, names, matches, topicId)) {
+                    byte[] payload = new byte[length - HEADER_LENGTH];
+                    buffer.position(position + HEADER_LENGTH);
+                    buffer.get(payload);
+                    MqttMessage message = new MqttMessage(payload);
+                    message.setQos(buffer.get(position + 16));
+                    message.setRetained(buffer.get(position + 17) == 1);
+                    InboundMessage inbound = new InboundMessage(names[topicId], message, timestamp);
+                    inbound.setPersistenceId(segment.base + position);
+                    page.add(inbound);
+                    if (page.size() == limit) {
+                        return page;
+                    }
+                }
+                position += length;
+            }
+        }
+        return page;
+    }
+
+    private static boolean matches(TopicTrie<Boolean> matcher, String[] names, byte[] matches, int topicId) {
+        if (matches[topicId] == 0) {
+            matches[topicId] = (byte) (matcher.match(names[topicId]).isEmpty() ? 2 : 1);
+        }
+        return matches[topicId] == 1;
+    }
+
+    /**
+     * Get the number of messages in the journal, segments are scanned once to count them
+     * @return number of stored messages
+     */
+    @Override
+    public long getStoredCount() {
+        int topicCount = topicNames.length;
+        long count = 0;
+        for (Segment segment : segments) {
+            segment.index(topicCount);
+            count += segment.getRecords();
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the journal to the disk and closes it, stored messages stay until they are
+     * deleted with {@link #clear()}
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            active.buffer.force();
+            try {
+                topicsFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the topics of " + directory, e);
+            }
+        }
+        compactor.shutdown();
+    }
+
+    /**
+     * Deletes every stored message, positions keep growing so pages read before stay ordered
+     */
+    @Override
+    public void clear() {
+        Segment[] deleted;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (active.end == 0) {
+                // nothing to clear in the active segment, and its successor would take its file name
+                deleted = Arrays.copyOf(segments, segments.length - 1);
+                segments = new Segment[]{active};
+            } else {
+                deleted = segments;
+                try {
+                    Segment next = createSegment(active.base + active.end, segmentBytes);
+                    segments = new Segment[]{next};
+                    active = next;
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to start a new segment in " + directory, e);
+                    return;
+                }
+            }
+        }
+        for (Segment segment : deleted) {
+            segment.delete();
+        }
+    }
+
+    /**
+     * Flushes the active segment, trims sealed segments and applies the retention rules
+     */
+    void compact() {
+        synchronized (compactLock) {
+            compactSegments();
+        }
+    }
+
+    private void compactSegments() {
+        Segment[] list;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            active.buffer.force();
+            try {
+                topicsFile.getChannel().force(false);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to flush the topics of " + directory, e);
+            }
+            list = segments;
+        }
+        int topicCount = topicNames.length;
+        long total = 0;
+        for (Segment segment : list) {
+            if (segment.sealed && !segment.trimmed) {
+                try {
+                    segment.trim();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to trim " + segment.file, e);
+                }
+            }
+            total += segment.fileLength();
+        }
+
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        int expired = 0;
+        // the active segment is never deleted, it is last
+        while (expired < list.length - 1 && (total > maxBytes || list[expired].getLastTime(topicCount) < cutoff)) {
+            total -= list[expired].fileLength();
+            expired++;
+        }
+        if (expired == 0) {
+            return;
+        }
+        synchronized (this) {
+            // compactions run one at a time, the head only changes when cleared, which deletes them all
+            if (segments[0] != list[0]) {
+                return;
+            }
+            segments = Arrays.copyOfRange(segments, expired, segments.length);
+        }
+        for (int i = 0; i < expired; i++) {
+            // readers still holding the mapping keep reading it, the space is freed once they are done
+            list[i].delete();
+        }
+    }
+
+    /**
+     * A file of the journal, records are appended by the journal's lock and read without it
+     */
+    static final class Segment {
+
+        static final Comparator<Segment> BY_BASE = new Comparator<Segment>() {
+            @Override
+            public int compare(Segment a, Segment b) {
+                return a.base < b.base ? -1 : (a.base == b.base ? 0 : 1);
+            }
+        };
+
+        final File file;
+
+        /** Position of the first record within the journal **/
+        final long base;
+
+        volatile MappedByteBuffer buffer;
+
+        /** Writes through a position, only used while holding the journal's lock **/
+        private ByteBuffer writer;
+
+        int capacity;
+
+        /** End of the last complete record, published after the record is written **/
+        volatile int end = 0;
+
+        volatile boolean sealed = false;
+
+        volatile boolean trimmed = false;
+
+        /** Set once the file is deleted, it is not written again **/
+        private boolean deleted = false;
+
+        //sparse time index, guarded by the segment
+        private boolean indexed = false;
+        private long[] indexTimes = new long[16];
+        private int[] indexPositions = new int[16];
+        private int indexSize = 0;
+        private int lastIndexed = -INDEX_INTERVAL;
+        private long firstTime = Long.MAX_VALUE;
+        private long lastTime = Long.MIN_VALUE;
+        private long records = 0;
+
+        Segment(File file, long base) {
+            this.file = file;
+            this.base = base;
+        }
+
+        /**
+         * Maps the file, a writable segment is grown to its capacity and scanned right away
+         */
+        void open(boolean writable, int minCapacity, int topicCount) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+            try {
+                capacity = (int) Math.min(Integer.MAX_VALUE, raf.length());
+                if (writable && capacity < minCapacity) {
+                    capacity = minCapacity;
+                    raf.setLength(capacity);
+                }
+                // the mapping stays valid once the file is closed
+                buffer = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, capacity);
+            } finally {
+                raf.close();
+            }
+            if (writable) {
+                writer = buffer.duplicate();
+                index(topicCount);
+            } else {
+                sealed = true;
+                trimmed = true;
+                end = capacity;
+            }
+        }
+
+        /**
+         * Enlarges an empty segment so that a record larger than it fits
+         */
+        synchronized void grow(int minCapacity) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(minCapacity);
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, minCapacity);
+            } finally {
+                raf.close();
+            }
+            capacity = minCapacity;
+            writer = buffer.duplicate();
+        }
+
+        /**
+         * Writes a record at the end, the length goes last
+         */
+        void append(int topicId, long timestamp, int qos, boolean retained, byte[] payload) {
+            int position = end;
+            int length = HEADER_LENGTH + payload.length;
+            writer.putInt(position + 4, topicId);
+            writer.putLong(position + 8, timestamp);
+            writer.put(position + 16, (byte) qos);
+            writer.put(position + 17, (byte) (retained ? 1 : 0));
+            writer.position(position + HEADER_LENGTH);
+            writer.put(payload);
+            writer.putInt(position, length);
+            synchronized (this) {
+                addToIndex(position, timestamp);
+            }
+            end = position + length;
+        }
+
+        private void addToIndex(int position, long timestamp) {
+            records++;
+            firstTime = Math.min(firstTime, timestamp);
+            lastTime = timestamp;
+            if (position - lastIndexed < INDEX_INTERVAL) {
+                return;
+            }
+            if (indexSize == indexTimes.length) {
+                indexTimes = Arrays.copyOf(indexTimes, indexSize * 2);
+                indexPositions = Arrays.copyOf(indexPositions, indexSize * 2);
+            }
+            indexTimes[indexSize] = timestamp;
+            indexPositions[indexSize] = position;
+            indexSize++;
+            lastIndexed = position;
+        }
+
+        /**
+         * Scans the segment once to build its index, it stops at the first incomplete or
+         * invalid record, which is where a crash cut the last append
+         * @param topicCount the number of known topics, records of other topics are invalid
+         * @return the end of the records
+         */
+        synchronized int index(int topicCount) {
+            if (indexed) {
+                return end;
+            }
+            indexed = true;
+            ByteBuffer b = buffer;
+            int position = 0;
+            while (position + HEADER_LENGTH <= capacity) {
+                int length = b.getInt(position);
+                if (length < HEADER_LENGTH || length > capacity - position) {
+                    break;
+                }
+                int topicId = b.getInt(position + 4);
+                long timestamp = b.getLong(position + 8);
+                if (topicId < 0 || topicId >= topicCount || timestamp < lastTime) {
+                    break;
+                }
+                addToIndex(position, timestamp);
+                position += length;
+            }
+            if (writer != null && position < capacity) {
+                // a torn record would otherwise be read as the length of the next append
+                writer.putInt(position, 0);
+            }
+            end = position;
+            return position;
+        }
+
+        /**
+         * Get the position to start reading from for a time
+         * @return the position of the last indexed record before the time, or zero
+         */
+        synchronized int seek(long time) {
+            int low = 0;
+            int high = indexSize - 1;
+            int found = 0;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (indexTimes[mid] < time) {
+                    found = indexPositions[mid];
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        synchronized long getFirstTime(int topicCount) {
+            index(topicCount);
+            return firstTime;
+        }
+
+        synchronized long getLastTime(int topicCount) {
+            index(topicCount);
+            return lastTime;
+        }
+
+        synchronized long getRecords() {
+            return records;
+        }
+
+        long fileLength() {
+            return trimmed ? end : capacity;
+        }
+
+        /**
+         * Cuts the unused end of a sealed segment off its file and maps what is left read only
+         */
+        synchronized void trim() throws IOException {
+            if (deleted) {
+                return;
+            }
+            int length = end;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                buffer.force();
+                MappedByteBuffer trimmedBuffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+                buffer = trimmedBuffer;
+                raf.setLength(length);
+            } finally {
+                raf.close();
+            }
+            capacity = length;
+            writer = null;
+            trimmed = true;
+        }
+
+        synchronized void delete() {
+            deleted = true;
+            if (!file.delete() && file.exists()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+}
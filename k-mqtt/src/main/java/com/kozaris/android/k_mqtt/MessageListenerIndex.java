@@ -0,0 +1,146 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Resolves the {@link Connection.IReceivedMessageListener}s a received message is delivered to.
+ *
+ * Listeners are either registered for every message or for a topic filter, filters are indexed
+ * in a {@link TopicTrie}. The listeners resolved for a topic are cached, so a topic that keeps
+ * receiving messages is resolved once until the registrations change.
+ */
+class MessageListenerIndex {
+
+    /** Number of topics cached before the cache is reset **/
+    static final int MAX_CACHED_TOPICS = 1024;
+
+    private static final Connection.IReceivedMessageListener[] NO_LISTENERS = new Connection.IReceivedMessageListener[0];
+
+    /** Listeners of every message **/
+    private final CopyOnWriteArrayList<Connection.IReceivedMessageListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Listeners of a topic filter **/
+    private final TopicTrie<FilterEntry> filteredListeners = new TopicTrie<>();
+
+    /** Listeners resolved per topic, replaced whenever a registration changes **/
+    private volatile ConcurrentHashMap<String, Connection.IReceivedMessageListener[]> cache = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a listener for every message
+     * @param listener the listener to add
+     */
+    synchronized void add(Connection.IReceivedMessageListener listener) {
+        if (listeners.addIfAbsent(listener)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Registers a listener for the messages whose topic matches a filter
+     * @param topicFilter the topic filter, wildcards are allowed
+     * @param listener the listener to add
+     */
+    synchronized void add(String topicFilter, Connection.IReceivedMessageListener listener) {
+        FilterEntry entry = filteredListeners.get(topicFilter);
+        if (entry == null) {
+            entry = new FilterEntry(topicFilter);
+            filteredListeners.put(topicFilter, entry);
+        }
+        if (entry.listeners.addIfAbsent(listener)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Unregisters a listener from every message and every filter
+     * @param listener the listener to remove
+     */
+    synchronized void remove(Connection.IReceivedMessageListener listener) {
+        boolean removed = listeners.remove(listener);
+        for (FilterEntry entry : filteredListeners.values()) {
+            removed |= removeFromEntry(entry, listener);
+        }
+        if (removed) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Unregisters a listener from a topic filter
+     * @param topicFilter the filter the listener was registered with
+     * @param listener the listener to remove
+     */
+    synchronized void remove(String topicFilter, Connection.IReceivedMessageListener listener) {
+        FilterEntry entry = filteredListeners.get(topicFilter);
+        if (entry != null && removeFromEntry(entry, listener)) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Get the listeners of a topic, each listener appears once even if several of its filters match
+     * @param topic the topic a message arrived on
+     * @return the listeners to deliver the message to, must not be modified
+     */
+    Connection.IReceivedMessageListener[] resolve(String topic) {
+        ConcurrentHashMap<String, Connection.IReceivedMessageListener[]> current = cache;
+        Connection.IReceivedMessageListener[] resolved = current.get(topic);
+        if (resolved == null) {
+            resolved = build(topic);
+            if (current.size() >= MAX_CACHED_TOPICS) {
+                // too many distinct topics, start over rather than grow without bound
+                current.clear();
+            }
+            current.put(topic, resolved);
+        }
+        return resolved;
+    }
+
+    private Connection.IReceivedMessageListener[] build(String topic) {
+        ArrayList<FilterEntry> matches = new ArrayList<>();
+        filteredListeners.match(topic, matches);
+        if (matches.isEmpty()) {
+            return listeners.isEmpty() ? NO_LISTENERS : listeners.toArray(NO_LISTENERS);
+        }
+        LinkedHashSet<Connection.IReceivedMessageListener> resolved = new LinkedHashSet<>(listeners);
+        for (FilterEntry entry : matches) {
+            resolved.addAll(entry.listeners);
+        }
+        return resolved.toArray(NO_LISTENERS);
+    }
+
+    private boolean removeFromEntry(FilterEntry entry, Connection.IReceivedMessageListener listener) {
+        if (!entry.listeners.remove(listener)) {
+            return false;
+        }
+        if (entry.listeners.isEmpty()) {
+            filteredListeners.remove(entry.topicFilter);
+        }
+        return true;
+    }
+
+    /**
+     * Drops the cached resolutions, the trie is always updated before the cache is replaced
+     * so a resolution racing with a registration change can only end up in the discarded cache
+     */
+    private void invalidate() {
+        cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * The listeners registered with one topic filter
+     */
+    private static final class FilterEntry {
+
+        final String topicFilter;
+
+        final CopyOnWriteArrayList<Connection.IReceivedMessageListener> listeners = new CopyOnWriteArrayList<>();
+
+        FilterEntry(String topicFilter) {
+            this.topicFilter = topicFilter;
+        }
+    }
+}
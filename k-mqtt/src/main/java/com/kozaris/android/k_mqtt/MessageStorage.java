@@ -0,0 +1,25 @@
+package com.kozaris.android.k_mqtt;
+
+/**
+ * Where the received messages of a {@link Subscription} are stored, when the {@link Connection}
+ * has the storage enabled.
+ *
+ * When a message matches several subscriptions it is stored once, by the storage declared last.
+ */
+public enum MessageStorage {
+    /** The message is not stored **/
+    NONE,
+    /** The message is written to the database by the {@link MessageStore} **/
+    DATABASE,
+    /** The message is appended to the {@link MessageJournal}, for topics with the highest rates **/
+    JOURNAL;
+
+    /**
+     * Get the storage declared last of two storages
+     * @param other the storage to compare to
+     * @return the storage that is used
+     */
+    public MessageStorage preferred(MessageStorage other) {
+        return other != null && other.ordinal() > ordinal() ? other : this;
+    }
+}
@@ -0,0 +1,221 @@
+package com.kozaris.android.k_mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the messages a {@link Connection} receives in the database, so their history survives
+ * restarts and can be shown without waiting for the broker.
+ *
+ * Messages are written by a single background thread, everything received while a write runs
+ * is written by the next one in a single transaction. The store is bounded by the age and the
+ * number of messages it holds, the oldest messages are dropped first.
+ *
+ * History is read a page at a time with {@link #query(String, long, long, InboundMessage, int)},
+ * by topic filter and time range, from the indexes of the table.
+ */
+public class MessageStore implements InboundStore {
+
+    private static final String TAG = "MessageStore";
+
+    /** Default maximum age of a stored message, one week **/
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(7);
+
+    /** Default maximum number of stored messages **/
+    public static final int DEFAULT_MAX_MESSAGES = 50000;
+
+    /** Default number of messages read by a query **/
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /** Minimum time between two applications of the retention rules **/
+    static final long PRUNE_INTERVAL_MILLIS = 1000;
+
+    /** Time the writer thread is kept while nothing is received **/
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final Connection connection;
+
+    private final Persistence persistence;
+
+    private final long maxAgeMillis;
+
+    private final int maxMessages;
+
+    /** Runs every write of the store in order **/
+    private final ThreadPoolExecutor executor;
+
+    /** Messages received since the last write **/
+    private ArrayList<InboundMessage> pending = new ArrayList<>();
+
+    /** Set by {@link #shutdown()}, nothing is stored after it **/
+    private boolean closed = false;
+
+    /** Whether a write of the pending messages is scheduled **/
+    private boolean writeScheduled = false;
+
+    /** Time the retention rules were last applied, only touched by the executor's thread **/
+    private long lastPrune = 0;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * Creates the message store of a connection
+     * @param context the application context
+     * @param connection the connection whose received messages are stored
+     * @param maxAgeMillis messages older than this are dropped
+     * @param maxMessages the number of messages kept, the oldest ones are dropped beyond it
+     */
+    public MessageStore(Context context, Connection connection, long maxAgeMillis, int maxMessages) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Max messages must be positive: " + maxMessages);
+        }
+        this.connection = connection;
+        this.persistence = Persistence.getInstance(context);
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMessages = maxMessages;
+        final String threadName = TAG + "-" + connection.getId();
+        executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Stores a received message, it is written to the database in the background
+     * @param topic the topic the message was received on
+     * @param message the message
+     */
+    @Override
+    public void store(String topic, MqttMessage message) {
+        InboundMessage inbound = new InboundMessage(topic, message, System.currentTimeMillis());
+        boolean schedule;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending.add(inbound);
+            schedule = !writeScheduled;
+            writeScheduled = true;
+        }
+        if (schedule) {
+            execute(writeTask);
+        }
+    }
+
+    /**
+     * Reads a page of stored messages on the caller's thread, in the order they were received.
+     * Messages received in the last moments may still be waiting to be written
+     * @param topicFilter the topic filter, wildcards included
+     * @param fromMillis the start of the time range, inclusive, in milliseconds since the epoch
+     * @param toMillis the end of the time range, exclusive, in milliseconds since the epoch
+     * @param after the last message of the previous page, or null for the first page
+     * @param limit the maximum number of messages to read, see {@link #DEFAULT_PAGE_SIZE}
+     * @return the messages, fewer than the limit once the range is exhausted
+     */
+    @Override
+    public List<InboundMessage> query(String topicFilter, long fromMillis, long toMillis,
+                                      InboundMessage after, int limit) {
+        return persistence.queryInbound(connection.getId(), topicFilter, fromMillis, toMillis, after, limit);
+    }
+
+    /**
+     * Get the number of messages stored in the database, read on the caller's thread
+     * @return number of stored messages
+     */
+    @Override
+    public long getStoredCount() {
+        return persistence.countInbound(connection.getId());
+    }
+
+    /**
+     * Stops the store, messages not written yet are written first. Stored messages stay in the
+     * database unless they are deleted with {@link #clear()}
+     */
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.execute(writeTask);
+        executor.shutdown();
+    }
+
+    /**
+     * Deletes every stored message of the connection
+     */
+    @Override
+    public void clear() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending.clear();
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                persistence.deleteInbound(connection.getId());
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the store's thread, tasks given after {@link #shutdown()} are dropped
+     */
+    private void execute(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shut down since the task was given
+        }
+    }
+
+    /**
+     * Writes the pending messages in one transaction and applies the retention rules
+     */
+    private void writePending() {
+        List<InboundMessage> batch;
+        synchronized (this) {
+            writeScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        try {
+            persistence.persistInbound(connection.getId(), batch);
+            long now = System.currentTimeMillis();
+            if (now - lastPrune >= PRUNE_INTERVAL_MILLIS) {
+                lastPrune = now;
+                persistence.pruneInbound(connection.getId(), now - maxAgeMillis, maxMessages);
+            }
+        } catch (Persistence.PersistenceException e) {
+            Log.e(TAG, "Failed to store " + batch.size() + " received messages of " + connection.getId(), e);
+        }
+    }
+}
@@ -14,18 +14,32 @@ public class MqttCallbackHandler implements MqttCallback {
 
     /** {@link Context} for the application used to format and import external strings**/
     private final Context context;
-    /** Client handle to reference the connection that this handler is attached to**/
 
+    /** The connection that this handler is attached to**/
+    private final Connection connection;
 
     private static final String TAG = "MqttCallbackHandler";
 
     /**
      * Creates an <code>MqttCallbackHandler</code> object
      * @param context The application's context
+     * @param connection The connection whose client this handler is the callback of
      */
-    public MqttCallbackHandler(Context context)
+    public MqttCallbackHandler(Context context, Connection connection)
     {
         this.context = context;
+        this.connection = connection;
+    }
+
+    /**
+     * Creates an <code>MqttCallbackHandler</code> object bound to the connection currently held by {@link MqttClient}
+     * @param context The application's context
+     * @deprecated use {@link #MqttCallbackHandler(Context, Connection)}
+     */
+    @Deprecated
+    public MqttCallbackHandler(Context context)
+    {
+        this(context, MqttClient.getInstance(context).getConnection());
     }
 
     /**
@@ -36,10 +50,9 @@ public class MqttCallbackHandler implements MqttCallback {
     public void connectionLost(Throwable cause) {
         if (cause != null) {
             Log.d(TAG, "Connection Lost: " + cause.getMessage());
-            Connection c = MqttClient.getInstance(context).getConnection();
-            c.addAction("Connection Lost");
-            c.changeConnectionStatus(Connection.ConnectionStatus.DISCONNECTED);
-            Log.d(TAG,context.getString(R.string.connection_lost, c.getId(), c.getHostName()) );
+            connection.addAction(EventLog.Kind.CONNECTION_LOST);
+            connection.changeConnectionStatus(Connection.ConnectionStatus.DISCONNECTED);
+            Log.d(TAG,context.getString(R.string.connection_lost, connection.getId(), connection.getHostName()) );
         }
     }
 
@@ -52,26 +65,25 @@ public class MqttCallbackHandler implements MqttCallback {
     @Override
     public void messageArrived(String topic, MqttMessage message) throws Exception {
 
-        //Get connection object associated with this object
-        Connection c = MqttClient.getInstance(context).getConnection();
-        c.messageArrived(topic, message);
-        //get the string from strings.xml and format
-        String messageString = context.getString(R.string.messageRecieved, new String(message.getPayload()), topic+";qos:"+message.getQos()+";retained:"+message.isRetained());
-
-        Log.i(TAG, messageString);
+        connection.messageArrived(topic, message);
+        //only decode and format the payload if debug logging is enabled for this tag
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            String messageString = context.getString(R.string.messageRecieved, new String(message.getPayload()), topic + ";qos:" + message.getQos() + ";retained:" + message.isRetained());
+            Log.d(TAG, messageString);
+        }
 
         //update client history
-        c.addAction(messageString);
+        connection.addReceivedAction(topic, message);
 
     }
 
     /**
-     *
+     * Records the publish latency of messages published through the {@link PublishPipeline}
      * @param token see paho.eclipse
      */
     @Override
     public void deliveryComplete(IMqttDeliveryToken token) {
-        // Do nothing
+        connection.deliveryComplete(token);
     }
 
 }
@@ -5,28 +5,54 @@ import android.util.Log;
 
 import org.eclipse.paho.android.service.MqttTraceHandler;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Process wide registry of the {@link Connection}s of the application.
+ *
+ * Connections are keyed by their client id, so several broker connections can run side by side.
+ * The connection set last is the active one returned by {@link #getConnection()}.
+ *
+ * The registry is loaded from the database once and kept in sync with it on every add, update
+ * and removal, so lookups never query the database nor create clients. Connections keep their
+ * live status, which {@link #findConnectionByStatus(Context, Connection.ConnectionStatus)} reads.
+ */
 public class MqttClient {
-    /** Singleton instance of <code>MqttClient</code>**/
-    private static MqttClient instance = null;
+    /** Singleton instance of <code>MqttClient</code>, volatile so it is read without locking once created**/
+    private static volatile MqttClient instance = null;
 
     /** Active {@link Connection} object **/
-    private Connection activeConnection = null;
+    private volatile Connection activeConnection = null;
+
+    /** Every {@link Connection} of the application, keyed by client id **/
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+
+    /** The connection persisted for each host, keyed by the host in lower case **/
+    private final ConcurrentHashMap<String, Connection> connectionsByHost = new ConcurrentHashMap<>();
 
     /** {@link Persistence} object used to save, delete and restore connection**/
     private Persistence persistence = null;
 
+    /** {@link PersistenceWriter} the connection changes are written through, off the caller's thread **/
+    private final PersistenceWriter writer;
+
     /**
      * Create an MqttClient object
      * @param context Applications context
      */
     private MqttClient(Context context){
         // If there is state, attempt to restore it
-        persistence = new Persistence(context);
+        persistence = Persistence.getInstance(context);
+        writer = PersistenceWriter.getInstance(context);
         try {
             List<Connection> connectionList = persistence.restoreConnections(context);
             if (connectionList.size()==0) {return;}
+            for (Connection connection : connectionList) {
+                register(connection);
+            }
             activeConnection= connectionList.get(connectionList.size()-1);
         } catch (Persistence.PersistenceException e){
             e.printStackTrace();
@@ -39,92 +65,106 @@ public class MqttClient {
      * @param context The applications context used to create the <code>MqttClient</code> object if it is not already initialised
      * @return <code>MqttClient</code> instance
      */
-    public synchronized static MqttClient getInstance(Context context){
-        if(instance ==  null){
-            instance = new MqttClient(context);
+    public static MqttClient getInstance(Context context){
+        MqttClient client = instance;
+        if (client == null) {
+            // only the first calls lock, every later call is a single volatile read
+            synchronized (MqttClient.class) {
+                client = instance;
+                if (client == null) {
+                    client = new MqttClient(context);
+                    instance = client;
+                }
+            }
         }
-        return instance;
+        return client;
     }
 
 
+    /**
+     * Get the connection persisted for a host, without querying the database
+     * @param context not used, kept for compatibility
+     * @param hostname the host, compared without case
+     * @return the connection or null if no connection is persisted for the host
+     */
     public Connection findConnectionByHost(Context context,String hostname){
-        try {
-            List<Connection> connectionList = persistence.restoreConnections(context);
-            for(Connection connection : connectionList) {
-                if (connection.getHostName().equalsIgnoreCase(hostname)){
-                    return connection;
-                }
+        Connection connection = connectionsByHost.get(hostKey(hostname));
+        if (connection != null && connection.getHostName().equalsIgnoreCase(hostname)) {
+            return connection;
+        }
+        // the connection was pointed at another host since it was indexed
+        connectionsByHost.remove(hostKey(hostname), connection);
+        for (Connection candidate : connections.values()) {
+            if (candidate.getHostName().equalsIgnoreCase(hostname)) {
+                connectionsByHost.put(hostKey(hostname), candidate);
+                return candidate;
             }
-            return null;
-        } catch (Persistence.PersistenceException e){
-            e.printStackTrace();
-            return null;
         }
+        return null;
     }
 
     /**
-     * Adds a {@link Connection} object to the  MqttClient
+     * Adds a {@link Connection} object to the  MqttClient, it replaces the connection persisted
+     * for the same host
      * @param connection {@link Connection} to add
      */
-    public void setConnection(Context context,Connection connection){
+    public synchronized void setConnection(Context context,Connection connection){
         Connection dbConnection= findConnectionByHost(context,connection.getHostName());
         if (dbConnection!=null)
         {
-            connection.assignPersistenceId(dbConnection.persistenceId());
-            updateConnection(connection);
+            if (dbConnection != connection) {
+                // its row now holds the new connection, its id is read once it is written
+                writer.replaceConnection(dbConnection, connection);
+                unregister(dbConnection);
+            } else {
+                updateConnection(connection);
+            }
         }else
         {
             addConnectionToDB(connection);
         }
+        register(connection);
         activeConnection=connection;
 
     }
-    
+
+    /**
+     * Get the connections that currently have a status
+     * @param context not used, kept for compatibility
+     * @param status the status
+     * @return a new list of the connections with that status
+     */
     public List<Connection> findConnectionByStatus(Context context, Connection.ConnectionStatus status) {
-        try {
-            List<Connection> connectionList = persistence.restoreConnections(context);
-            List<Connection> returnList = new ArrayList<>();
-            for (Connection connection : connectionList) {
-                if (connection.getStatus().equals(status)) {
-                    returnList.add(connection);
-                }
+        List<Connection> returnList = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            if (connection.getStatus() == status) {
+                returnList.add(connection);
             }
-            return returnList;
-        } catch (Persistence.PersistenceException e) {
-            e.printStackTrace();
-            return null;
         }
+        return returnList;
     }
 
+    /**
+     * Get the connections that have a subscription to a topic
+     * @param context not used, kept for compatibility
+     * @param Topic the topic of the subscription, compared without case
+     * @return a new list of the connections subscribed to the topic
+     */
     public List<Connection> findConnectionWithSubscription(Context context, String Topic) {
-        try {
-            List<Connection> connectionList = persistence.restoreConnections(context);
-            List<Connection> returnList = new ArrayList<>();
-            for (Connection connection : connectionList) {
-                List<Subscription> subsList = connection.getSubscriptions();
-                if (subsList != null) {
-                    for (Subscription subscription : subsList) {
-                        if (subscription.getTopic().equalsIgnoreCase(Topic)) {
-                            returnList.add(connection);
-                        }
-                    }
+        List<Connection> returnList = new ArrayList<>();
+        for (Connection connection : connections.values()) {
+            for (Subscription subscription : connection.getSubscriptions()) {
+                if (subscription.getTopic().equalsIgnoreCase(Topic)) {
+                    returnList.add(connection);
+                    break;
                 }
             }
-            return returnList;
-        } catch (Persistence.PersistenceException e) {
-            e.printStackTrace();
-            return null;
         }
+        return returnList;
     }
 
     private void addConnectionToDB(Connection connection){
-        try {
-            persistence.persistConnection(connection);
-        } catch (Persistence.PersistenceException e) {
-            //error persisting well lets just swallow this
-            e.printStackTrace();
-        }
-
+        writer.persistConnection(connection);
     }
 
     /**
@@ -135,27 +175,63 @@ public class MqttClient {
         return activeConnection;
     }
 
+    /**
+     * Get a connection by the client id it was created with
+     * @param clientId the client id of the connection
+     * @return the connection or null if no connection has that client id
+     */
+    public Connection getConnection(String clientId){
+        return connections.get(clientId);
+    }
 
     /**
-     * Get  the connection associated with this <code>MqttClient</code> object.
-     * @return <code>Connection</code> of MqttClient
+     * Get every connection held by this <code>MqttClient</code>, without querying the database
+     * @return a new list of the connections
      */
+    public List<Connection> getConnections(){
+        return new ArrayList<>(connections.values());
+    }
 
+
+    /**
+     * Get every connection held by this <code>MqttClient</code>
+     * @param context not used, kept for compatibility
+     * @return a new list of the connections, see {@link #getConnections()}
+     */
     public List<Connection> getConnectionList(Context context){
-        try {
-            return persistence.restoreConnections(context);
-        } catch (Persistence.PersistenceException e){
-            e.printStackTrace();
-            return null;
-        }
+        return getConnections();
     }
 
     /**
-     * Removes connection from the MqttClient
+     * Removes the active connection from the MqttClient
      */
     public void removeConnection(){
-        persistence.deleteConnection(activeConnection);
-        activeConnection=null;
+        Connection connection = activeConnection;
+        if (connection != null) {
+            removeConnection(connection);
+        }
+    }
+
+    /**
+     * Removes a connection from the MqttClient and from the persisted model,
+     * its message dispatcher is shut down and its offline queue, message store and message journal are deleted
+     * @param connection connection to be removed
+     */
+    public synchronized void removeConnection(Connection connection){
+        writer.deleteConnection(connection);
+        OfflineQueue offlineQueue = connection.getOfflineQueue();
+        if (offlineQueue != null) {
+            offlineQueue.clear();
+        }
+        MessageStore messageStore = connection.getMessageStore();
+        if (messageStore != null) {
+            messageStore.clear();
+        }
+        MessageJournal messageJournal = connection.getMessageJournal();
+        if (messageJournal != null) {
+            messageJournal.clear();
+        }
+        unregister(connection);
     }
 
     /**
@@ -165,7 +241,38 @@ public class MqttClient {
      */
     private void updateConnection(Connection connection){
         activeConnection=connection;
-        persistence.updateConnection(connection);
+        writer.updateConnection(connection);
+    }
+
+    /**
+     * Puts a connection in the registry, replacing the connection that had the same client id
+     * @param connection connection to register
+     */
+    private void register(Connection connection){
+        connections.put(connection.getId(), connection);
+        connectionsByHost.put(hostKey(connection.getHostName()), connection);
+    }
+
+    /**
+     * Takes a connection out of the registry, shuts its message dispatcher down and closes its
+     * offline queue, message store and message journal. Its persisted row is left to the caller
+     * @param connection connection to unregister
+     */
+    private void unregister(Connection connection){
+        if (connections.remove(connection.getId(), connection)) {
+            connection.getMessageDispatcher().shutdown();
+        }
+        connectionsByHost.remove(hostKey(connection.getHostName()), connection);
+        connection.disableOfflineQueue();
+        connection.disableMessageStore();
+        connection.disableMessageJournal();
+        if (activeConnection == connection) {
+            activeConnection = null;
+        }
+    }
+
+    private static String hostKey(String hostname){
+        return hostname.toLowerCase(Locale.ROOT);
     }
 
     public static class MqttTraceCallback implements MqttTraceHandler {
@@ -0,0 +1,194 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an asynchronous action of a {@link Connection}, completed straight from the
+ * callback of its {@link IMqttToken}.
+ *
+ * Callers may block on it with {@link #get()} or chain work with
+ * {@link #addListener(Listener, Executor)}. An MQTT action cannot be withdrawn once it is
+ * handed to the client, so the future cannot be cancelled.
+ */
+public class MqttFuture implements Future<IMqttToken>, IMqttActionListener {
+
+    /**
+     * Notified when a future completes
+     */
+    public interface Listener {
+
+        /**
+         * Called once the future has completed, successfully or not
+         * @param future the completed future
+         */
+        void onComplete(MqttFuture future);
+    }
+
+    /** Runs listeners on the thread that completes the future **/
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private IMqttToken token;
+    private Throwable exception;
+    private boolean completed = false;
+
+    /** Listeners waiting for completion, with the executor of each at the following index **/
+    private ArrayList<Object> listeners = null;
+
+    /**
+     * Creates a future that already failed
+     * @param exception the cause of the failure
+     * @return a failed future
+     */
+    public static MqttFuture failed(Throwable exception) {
+        MqttFuture future = new MqttFuture();
+        future.onFailure(null, exception);
+        return future;
+    }
+
+    @Override
+    public void onSuccess(IMqttToken asyncActionToken) {
+        complete(asyncActionToken, null);
+    }
+
+    @Override
+    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+        complete(asyncActionToken, exception);
+    }
+
+    private void complete(IMqttToken asyncActionToken, Throwable failure) {
+        ArrayList<Object> waiting;
+        synchronized (this) {
+            if (completed) {
+                return;
+            }
+            token = asyncActionToken;
+            exception = failure;
+            completed = true;
+            waiting = listeners;
+            listeners = null;
+        }
+        done.countDown();
+        if (waiting != null) {
+            for (int i = 0; i < waiting.size(); i += 2) {
+                notify((Listener) waiting.get(i), (Executor) waiting.get(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Adds a listener run on the thread that completes the future, or right away on the calling
+     * thread if it already completed. It runs on the MQTT callback thread, so it must be short
+     * @param listener the listener
+     */
+    public void addListener(Listener listener) {
+        addListener(listener, DIRECT);
+    }
+
+    /**
+     * Adds a listener run by an executor once the future completes
+     * @param listener the listener
+     * @param executor the executor the listener runs on
+     */
+    public void addListener(Listener listener, Executor executor) {
+        synchronized (this) {
+            if (!completed) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(2);
+                }
+                listeners.add(listener);
+                listeners.add(executor);
+                return;
+            }
+        }
+        notify(listener, executor);
+    }
+
+    private void notify(final Listener listener, Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.onComplete(MqttFuture.this);
+            }
+        });
+    }
+
+    /**
+     * Determines if the action succeeded
+     * @return true if the future completed without an exception
+     */
+    public synchronized boolean isSuccess() {
+        return completed && exception == null;
+    }
+
+    /**
+     * Get the cause of the failure of the action
+     * @return the exception, or null if the action succeeded or is still running
+     */
+    public synchronized Throwable getException() {
+        return exception;
+    }
+
+    /**
+     * Get the token of the action without waiting
+     * @return the token, or null if the action is still running or never reached the client
+     */
+    public synchronized IMqttToken getToken() {
+        return token;
+    }
+
+    /**
+     * Always fails, an MQTT action cannot be withdrawn
+     * @return false
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return completed;
+    }
+
+    @Override
+    public IMqttToken get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public IMqttToken get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException("Action did not complete within " + timeout + " " + unit);
+        }
+        return result();
+    }
+
+    private synchronized IMqttToken result() throws ExecutionException {
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return token;
+    }
+}
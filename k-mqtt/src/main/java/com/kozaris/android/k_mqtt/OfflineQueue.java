@@ -0,0 +1,384 @@
+package com.kozaris.android.k_mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stores the messages a {@link Connection} publishes while it is offline in the database, so
+ * they survive the process being killed, and publishes them through the connection's
+ * {@link PublishPipeline} once it is connected again.
+ *
+ * Messages are written by a single background thread, everything stored while a write runs is
+ * written by the next one in a single transaction. Once the connection is connected the stored
+ * messages are read back a page at a time, oldest first, and a message is only deleted once its
+ * publish is acknowledged. Messages published while a backlog is stored are stored as well,
+ * so they do not overtake the backlog.
+ *
+ * The queue is bounded by the age and the number of messages it holds, the oldest messages are
+ * dropped first.
+ */
+public class OfflineQueue {
+
+    private static final String TAG = "OfflineQueue";
+
+    /** Default maximum age of a stored message, one day **/
+    public static final long DEFAULT_MAX_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /** Default maximum number of stored messages **/
+    public static final int DEFAULT_MAX_MESSAGES = 10000;
+
+    /** Number of stored messages read back and published at a time **/
+    static final int PAGE_SIZE = 256;
+
+    private final Context context;
+
+    private final Connection connection;
+
+    private final Persistence persistence;
+
+    private final long maxAgeMillis;
+
+    private final int maxMessages;
+
+    /** Runs every database operation of the queue in order **/
+    private final ExecutorService executor;
+
+    /** Messages stored since the last write **/
+    private ArrayList<OutboundMessage> pending = new ArrayList<>();
+
+    /** Whether a write of the pending messages is scheduled **/
+    private boolean writeScheduled = false;
+
+    /** Set by {@link #shutdown()}, nothing is run or stored after it **/
+    private volatile boolean closed = false;
+
+    /** Whether stored messages may be waiting, publishes are stored while it is set **/
+    private volatile boolean backlog = true;
+
+    /** Whether a drain is running, only touched by the executor's thread **/
+    private boolean draining = false;
+
+    /** Id of the last message of the current page, the next page starts after it **/
+    private long lastDrainedId = -1;
+
+    /** Ids of the messages of the current page whose publish is done with **/
+    private final ArrayList<Long> completedIds = new ArrayList<>();
+
+    /** Number of messages of the current page still in flight **/
+    private final AtomicInteger pageRemaining = new AtomicInteger();
+
+    /** Starts draining once the connection is connected **/
+    private final PropertyChangeListener statusListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (Connection.ConnectionStatusProperty.equals(evt.getPropertyName()) && connection.isConnected()) {
+                execute(drainTask);
+            }
+        }
+    };
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!draining) {
+                draining = true;
+                lastDrainedId = -1;
+                drainPage();
+            }
+        }
+    };
+
+    private final Runnable pageCompleteTask = new Runnable() {
+        @Override
+        public void run() {
+            completePage();
+        }
+    };
+
+    /**
+     * Creates the offline queue of a connection, messages stored by an earlier process are
+     * published once the connection is connected
+     * @param context the application context
+     * @param connection the connection messages are published through
+     * @param maxAgeMillis messages older than this are dropped
+     * @param maxMessages the number of messages kept, the oldest ones are dropped beyond it
+     */
+    public OfflineQueue(Context context, Connection connection, long maxAgeMillis, int maxMessages) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Max messages must be positive: " + maxMessages);
+        }
+        this.context = context;
+        this.connection = connection;
+        this.persistence = Persistence.getInstance(context);
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxMessages = maxMessages;
+        final String threadName = TAG + "-" + connection.getId();
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        connection.registerChangeListener(statusListener);
+        if (connection.isConnected()) {
+            execute(drainTask);
+        }
+    }
+
+    /**
+     * Determines if publishes have to go through the queue to keep their order
+     * @return true if stored messages may still be waiting to be published
+     */
+    public boolean hasBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Stores a message, it is written to the database in the background
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     */
+    public void store(String topic, MqttMessage message) {
+        OutboundMessage outbound = new OutboundMessage(topic, message, System.currentTimeMillis());
+        boolean schedule;
+        synchronized (this) {
+            if (closed) {
+                Log.w(TAG, "Dropped a message to " + topic + ", the queue of " + connection.getId() + " is shut down");
+                return;
+            }
+            backlog = true;
+            pending.add(outbound);
+            schedule = !writeScheduled;
+            writeScheduled = true;
+        }
+        if (schedule) {
+            execute(writeTask);
+        }
+        if (connection.isConnected()) {
+            execute(drainTask);
+        }
+    }
+
+    /**
+     * Get the number of messages stored in the database, read on the caller's thread
+     * @return number of stored messages
+     */
+    public long getStoredCount() {
+        return persistence.countOutbound(connection.getId());
+    }
+
+    /**
+     * Stops the queue, messages not written yet are written first. Stored messages stay in the
+     * database unless they are deleted with {@link #clear()}
+     */
+    public void shutdown() {
+        connection.removeChangeListener(statusListener);
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        executor.execute(writeTask);
+        executor.shutdown();
+    }
+
+    /**
+     * Deletes every stored message of the connection
+     */
+    public void clear() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            pending.clear();
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                persistence.deleteOutbound(connection.getId());
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the queue's thread, tasks given after {@link #shutdown()} are dropped
+     */
+    private void execute(Runnable task) {
+        if (closed) {
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // shut down since the check, the stored messages are drained by the next process
+        }
+    }
+
+    /**
+     * Writes the pending messages in one transaction and applies the retention rules
+     */
+    private void writePending() {
+        List<OutboundMessage> batch;
+        synchronized (this) {
+            writeScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        try {
+            persistence.persistOutbound(connection.getId(), batch);
+            persistence.pruneOutbound(connection.getId(), System.currentTimeMillis() - maxAgeMillis, maxMessages);
+        } catch (Persistence.PersistenceException e) {
+            Log.e(TAG, "Failed to store " + batch.size() + " outbound messages of " + connection.getId(), e);
+        }
+    }
+
+    /**
+     * Publishes the next page of stored messages, or ends the drain once none is left
+     */
+    private void drainPage() {
+        writePending();
+        if (!connection.isConnected()) {
+            // the messages stay stored, the next connect starts over
+            draining = false;
+            return;
+        }
+        List<OutboundMessage> page = persistence.restoreOutbound(connection.getId(), lastDrainedId, PAGE_SIZE);
+        if (page.isEmpty()) {
+            synchronized (this) {
+                if (pending.isEmpty()) {
+                    backlog = false;
+                    draining = false;
+                    return;
+                }
+            }
+            // stored while the page was read, go again
+            execute(pageCompleteTask);
+            return;
+        }
+
+        PublishPipeline pipeline = connection.getPublishPipeline();
+        pageRemaining.set(page.size());
+        int submitted = 0;
+        for (OutboundMessage outbound : page) {
+            if (!pipeline.submit(outbound.getTopic(), outbound.getMessage(), new DrainCallback(outbound))) {
+                // the pipeline is full, the rest of the page goes with the next one
+                break;
+            }
+            lastDrainedId = outbound.getPersistenceId();
+            submitted++;
+        }
+        if (submitted == 0) {
+            // the pipeline is full of other publishes, the next store or connect resumes the drain
+            draining = false;
+            return;
+        }
+        if (pageRemaining.addAndGet(submitted - page.size()) == 0) {
+            execute(pageCompleteTask);
+        }
+    }
+
+    /**
+     * Deletes the messages of the completed page and moves on to the next one
+     */
+    private void completePage() {
+        long[] ids;
+        synchronized (completedIds) {
+            ids = new long[completedIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = completedIds.get(i);
+            }
+            completedIds.clear();
+        }
+        if (ids.length > 0) {
+            persistence.deleteOutbound(ids);
+        }
+        drainPage();
+    }
+
+    /**
+     * Records the outcome of a stored message's publish in the history of the client
+     */
+    private final class DrainCallback implements IMqttActionListener {
+
+        private final OutboundMessage outbound;
+
+        DrainCallback(OutboundMessage outbound) {
+            this.outbound = outbound;
+        }
+
+        @Override
+        public void onSuccess(IMqttToken asyncActionToken) {
+            historyListener().onSuccess(asyncActionToken);
+            complete(true);
+        }
+
+        @Override
+        public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+            historyListener().onFailure(asyncActionToken, exception);
+            // the message stays stored unless it can never go through, the next drain retries it
+            complete(isPermanent(exception));
+        }
+
+        /**
+         * Determines if a publish failed because of the message itself, rather than the connection
+         */
+        private boolean isPermanent(Throwable exception) {
+            if (!(exception instanceof MqttException)) {
+                // an invalid topic or message is refused by the client before it is sent
+                return exception instanceof IllegalArgumentException;
+            }
+            switch (((MqttException) exception).getReasonCode()) {
+                case MqttException.REASON_CODE_NOT_AUTHORIZED:
+                case MqttException.REASON_CODE_INVALID_MESSAGE:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private IMqttActionListener historyListener() {
+            return new ActionListener(context, ActionListener.Action.PUBLISH, connection,
+                    outbound.getMessage().toString(), outbound.getTopic());
+        }
+
+        private void complete(boolean delete) {
+            if (delete) {
+                synchronized (completedIds) {
+                    completedIds.add(outbound.getPersistenceId());
+                }
+            }
+            if (pageRemaining.decrementAndGet() == 0) {
+                execute(pageCompleteTask);
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+/**
+ * A message waiting in the {@link OfflineQueue} of a {@link Connection} to be published
+ */
+public class OutboundMessage {
+    private final String topic;
+    private final MqttMessage message;
+    private final long created;
+    private long persistenceId = -1;
+
+    public OutboundMessage(String topic, MqttMessage message, long created) {
+        this.topic = topic;
+        this.message = message;
+        this.created = created;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public MqttMessage getMessage() {
+        return message;
+    }
+
+    /**
+    * @return the time the message was queued, in milliseconds since the epoch
+    */
+    public long getCreated() {
+        return created;
+    }
+
+    public long getPersistenceId() {
+        return persistenceId;
+    }
+
+    public void setPersistenceId(long persistenceId) {
+        this.persistenceId = persistenceId;
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundMessage{" +
+                "topic='" + topic + '\'' +
+                ", persistenceId=" + persistenceId +
+                ", created=" + created +
+                '}';
+    }
+}
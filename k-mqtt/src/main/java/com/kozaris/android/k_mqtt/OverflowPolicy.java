@@ -0,0 +1,27 @@
+package com.kozaris.android.k_mqtt;
+
+/**
+ * What a {@link MessageDispatcher} does with a received message when its inbound queue is full.
+ *
+ * The policy is chosen per {@link Subscription}. When a message matches several subscriptions
+ * the policy that gives the strongest delivery guarantee, the one declared last, is applied.
+ */
+public enum OverflowPolicy {
+    /** The new message is discarded **/
+    DROP_NEWEST,
+    /** The oldest droppable message in the queue is discarded to make room for the new one **/
+    DROP_OLDEST,
+    /** The message is written to a spill file and delivered once the queue has drained **/
+    SPILL_TO_DISK,
+    /** The callback thread waits until there is room in the queue **/
+    BLOCK;
+
+    /**
+     * Get the policy that gives the strongest delivery guarantee of two policies
+     * @param other the policy to compare to
+     * @return the stronger policy
+     */
+    public OverflowPolicy strongest(OverflowPolicy other) {
+        return other != null && other.ordinal() > ordinal() ? other : this;
+    }
+}
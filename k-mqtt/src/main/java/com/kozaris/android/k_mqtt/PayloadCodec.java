@@ -0,0 +1,51 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * Compresses the payloads of messages.
+ *
+ * A codec is attached to the topics it applies to, with {@link Connection#setPublishCodec(String, PayloadCodec)}
+ * on the publish side and {@link Subscription#setCodec(PayloadCodec)} on the receive side.
+ * Encoded payloads carry a header naming their codec, see {@link PayloadCodecs}, so codecs
+ * must be registered under an id that every peer agrees on.
+ *
+ * Implementations must be thread safe.
+ */
+public interface PayloadCodec {
+
+    /**
+     * Get the id written in the header of the payloads this codec encodes
+     * @return the id of the codec, from 1 to 127
+     */
+    byte getId();
+
+    /**
+     * Get the size of the largest output {@link #encode(byte[], int, int, byte[], int)} can produce
+     * @param length the length of the input
+     * @return the maximum encoded length
+     */
+    int maxEncodedLength(int length);
+
+    /**
+     * Compresses bytes
+     * @param src the array holding the input
+     * @param srcOffset the offset of the input
+     * @param length the length of the input
+     * @param dst the array the output is written to, it has room for at least
+     *            {@link #maxEncodedLength(int)} bytes after the offset
+     * @param dstOffset the offset of the output
+     * @return the number of bytes written
+     */
+    int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset);
+
+    /**
+     * Decompresses bytes
+     * @param src the array holding the input
+     * @param srcOffset the offset of the input
+     * @param length the length of the input
+     * @param dst the array the output is written to, its length is the decoded length
+     * @throws DataFormatException if the input is not valid for this codec
+     */
+    void decode(byte[] src, int srcOffset, int length, byte[] dst) throws DataFormatException;
+}
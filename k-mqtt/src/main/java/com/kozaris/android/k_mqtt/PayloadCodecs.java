@@ -0,0 +1,204 @@
+package com.kozaris.android.k_mqtt;
+
+import android.util.Log;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+/**
+ * Frames the payloads encoded by a {@link PayloadCodec}.
+ *
+ * An encoded payload starts with an eight byte header: a zero byte, the letters <code>KZ</code>,
+ * the id of the codec and the decoded length as a big endian int. No text payload starts with a
+ * zero byte, so peers that do not compress can tell encoded payloads apart. A payload that does
+ * not shrink is sent as is, without a header.
+ */
+public final class PayloadCodecs {
+
+    private static final String TAG = "PayloadCodecs";
+
+    /** Length of the header of an encoded payload **/
+    public static final int HEADER_LENGTH = 8;
+
+    private static final byte MAGIC_0 = 0;
+    private static final byte MAGIC_1 = 'K';
+    private static final byte MAGIC_2 = 'Z';
+
+    /** Deflate codec at the default level **/
+    public static final DeflateCodec DEFLATE = new DeflateCodec(Deflater.DEFAULT_COMPRESSION);
+
+    /** Fast LZ codec **/
+    public static final LzCodec LZ = new LzCodec();
+
+    /** Largest decoded length accepted, the largest payload an MQTT packet can carry **/
+    public static final int MAX_DECODED_LENGTH = 268435455;
+
+    /** Expansion ratio of codecs registered without one, that of deflate **/
+    public static final int DEFAULT_MAX_EXPANSION_RATIO = 1032;
+
+    /** Largest ratio of an LZ block, a token and a run of length bytes of 255 **/
+    private static final int LZ_MAX_EXPANSION_RATIO = 256;
+
+    /** Added to the encoded length before the ratio applies, tiny blocks expand further than the ratio **/
+    private static final int MIN_DECODED_ALLOWANCE = 64;
+
+    /** Codecs by id **/
+    private static final PayloadCodec[] codecs = new PayloadCodec[128];
+
+    /** Largest ratio of decoded to encoded length of each registered codec, by id **/
+    private static final int[] expansionRatios = new int[128];
+
+    /** Encoding buffer of each thread, it grows to the largest payload encoded on the thread **/
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+    static {
+        register(DEFLATE);
+        register(LZ, LZ_MAX_EXPANSION_RATIO);
+    }
+
+    private PayloadCodecs() {
+    }
+
+    /**
+     * Registers a codec so that payloads carrying its id can be decoded
+     * @param codec the codec, it replaces the codec registered under the same id
+     */
+    public static void register(PayloadCodec codec) {
+        register(codec, DEFAULT_MAX_EXPANSION_RATIO);
+    }
+
+    /**
+     * Registers a codec so that payloads carrying its id can be decoded
+     * @param codec the codec, it replaces the codec registered under the same id
+     * @param maxExpansionRatio the largest ratio of decoded to encoded length the codec produces,
+     *                          payloads whose header claims more are left encoded
+     */
+    public static void register(PayloadCodec codec, int maxExpansionRatio) {
+        int id = codec.getId();
+        if (id < 1) {
+            throw new IllegalArgumentException("Codec ids range from 1 to 127: " + id);
+        }
+        if (maxExpansionRatio < 1) {
+            throw new IllegalArgumentException("Expansion ratio must be positive: " + maxExpansionRatio);
+        }
+        synchronized (codecs) {
+            codecs[id] = codec;
+            expansionRatios[id] = maxExpansionRatio;
+        }
+    }
+
+    /**
+     * Get the codec registered under an id
+     * @param id the id of the codec
+     * @return the codec or null if none is registered
+     */
+    public static PayloadCodec get(int id) {
+        if (id < 1 || id >= codecs.length) {
+            return null;
+        }
+        synchronized (codecs) {
+            return codecs[id];
+        }
+    }
+
+    /**
+     * Determines if a payload starts with the header of an encoded payload
+     * @param payload the payload
+     * @return true if the payload was encoded by a codec
+     */
+    public static boolean isEncoded(byte[] payload) {
+        return payload.length >= HEADER_LENGTH && payload[0] == MAGIC_0 && payload[1] == MAGIC_1 && payload[2] == MAGIC_2;
+    }
+
+    /**
+     * Encodes a payload and frames it with a header
+     * @param codec the codec to encode with
+     * @param payload the payload
+     * @param offset the offset of the payload in the array
+     * @param length the length of the payload
+     * @return the framed payload, or null if encoding does not make the payload smaller
+     */
+    public static byte[] encode(PayloadCodec codec, byte[] payload, int offset, int length) {
+        int bound = HEADER_LENGTH + codec.maxEncodedLength(length);
+        byte[] buffer = scratch.get();
+        if (buffer == null || buffer.length < bound) {
+            buffer = new byte[bound];
+            scratch.set(buffer);
+        }
+        int encodedLength = HEADER_LENGTH + codec.encode(payload, offset, length, buffer, HEADER_LENGTH);
+        if (encodedLength >= length) {
+            return null;
+        }
+        buffer[0] = MAGIC_0;
+        buffer[1] = MAGIC_1;
+        buffer[2] = MAGIC_2;
+        buffer[3] = codec.getId();
+        buffer[4] = (byte) (length >>> 24);
+        buffer[5] = (byte) (length >>> 16);
+        buffer[6] = (byte) (length >>> 8);
+        buffer[7] = (byte) length;
+        byte[] framed = new byte[encodedLength];
+        System.arraycopy(buffer, 0, framed, 0, encodedLength);
+        return framed;
+    }
+
+    /**
+     * Decodes a payload if it carries a header, with the codec its header names
+     * @param payload the payload
+     * @return the decoded payload, or the payload itself if it carries no header or cannot be decoded
+     */
+    public static byte[] decode(byte[] payload) {
+        return decode(payload, null);
+    }
+
+    /**
+     * Decodes a payload if it carries a header
+     * @param payload the payload
+     * @param expected the codec used if its id is the one in the header, it may be unregistered
+     * @return the decoded payload, or the payload itself if it carries no header or cannot be decoded
+     */
+    public static byte[] decode(byte[] payload, PayloadCodec expected) {
+        if (!isEncoded(payload)) {
+            return payload;
+        }
+        int id = payload[3];
+        PayloadCodec codec = expected != null && expected.getId() == id ? expected : get(id);
+        if (codec == null) {
+            Log.w(TAG, "No codec registered for id " + id + ", the payload is left encoded");
+            return payload;
+        }
+        int length = (payload[4] & 0xFF) << 24 | (payload[5] & 0xFF) << 16 | (payload[6] & 0xFF) << 8 | (payload[7] & 0xFF);
+        if (length < 0 || length > maxDecodedLength(id, payload.length - HEADER_LENGTH)) {
+            // the header is not trusted with the allocation, a forged length would claim any memory
+            Log.w(TAG, "Invalid decoded length " + length + " of " + payload.length + " bytes, the payload is left encoded");
+            return payload;
+        }
+        byte[] decoded = new byte[length];
+        try {
+            codec.decode(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH, decoded);
+        } catch (DataFormatException e) {
+            Log.w(TAG, "Failed to decode a payload with codec " + id + ", the payload is left encoded", e);
+            return payload;
+        }
+        return decoded;
+    }
+
+    /**
+     * Get the largest length a payload encoded by a codec can decode to
+     * @param id the id of the codec
+     * @param encodedLength the length of the payload after its header
+     * @return the maximum decoded length
+     */
+    static int maxDecodedLength(int id, int encodedLength) {
+        int ratio;
+        synchronized (codecs) {
+            ratio = expansionRatios[id];
+        }
+        if (ratio == 0) {
+            // an expected codec that is not registered
+            ratio = DEFAULT_MAX_EXPANSION_RATIO;
+        }
+        long max = ((long) encodedLength + MIN_DECODED_ALLOWANCE) * ratio;
+        return (int) Math.min(max, MAX_DECODED_LENGTH);
+    }
+}
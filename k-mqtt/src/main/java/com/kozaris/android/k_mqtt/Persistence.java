@@ -1,16 +1,18 @@
 package com.kozaris.android.k_mqtt;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.provider.BaseColumns;
 import android.util.Log;
 
 import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -23,7 +25,7 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
     private static final String TAG = "Persistence";
 
     /** The version of the database **/
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 4;
 
     /** The name of the database file **/
     private static final String DATABASE_NAME = "mqttclient.db";
@@ -74,6 +76,21 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
     private static final String SUBSCRIPTIONS_COLUMN_NOTIFY = "notify";
 
 
+    /** The name of the outbound messages table **/
+    private static final String TABLE_OUTBOUND = "outbound";
+
+    /** Table column for the payload of an outbound message **/
+    private static final String OUTBOUND_COLUMN_PAYLOAD = "payload";
+    /** Table column for the time an outbound message was queued **/
+    private static final String OUTBOUND_COLUMN_CREATED = "created";
+
+
+    /** The name of the received messages table **/
+    private static final String TABLE_INBOUND = "inbound";
+
+    /** Table column for the time a message was received **/
+    private static final String INBOUND_COLUMN_RECEIVED = "received";
+
     //sql lite data types
     /** Text type for SQLite**/
     private static final String TEXT_TYPE = " TEXT";
@@ -111,6 +128,190 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
                     SUBSCRIPTIONS_COLUMN_NOTIFY + INT_TYPE + COMMA_SEP +
                     SUBSCRIPTIONS_COLUMN_QOS + INT_TYPE + ");";
 
+    private static final String SQL_CREATE_OUTBOUND_ENTRIES =
+
+            "CREATE TABLE " + TABLE_OUTBOUND + " (" +
+                    _ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    COLUMN_client_ID + TEXT_TYPE + COMMA_SEP +
+                    COLUMN_TOPIC + TEXT_TYPE + COMMA_SEP +
+                    OUTBOUND_COLUMN_PAYLOAD + " BLOB" + COMMA_SEP +
+                    COLUMN_QOS + INT_TYPE + COMMA_SEP +
+                    COLUMN_RETAINED + INT_TYPE + COMMA_SEP +
+                    OUTBOUND_COLUMN_CREATED + INT_TYPE + ");";
+
+    private static final String SQL_CREATE_OUTBOUND_INDEX =
+            "CREATE INDEX outbound_client_id ON " + TABLE_OUTBOUND + " (" + COLUMN_client_ID + COMMA_SEP + _ID + ");";
+
+    private static final String SQL_INSERT_OUTBOUND =
+            "INSERT INTO " + TABLE_OUTBOUND + " (" +
+                    COLUMN_client_ID + COMMA_SEP +
+                    COLUMN_TOPIC + COMMA_SEP +
+                    OUTBOUND_COLUMN_PAYLOAD + COMMA_SEP +
+                    COLUMN_QOS + COMMA_SEP +
+                    COLUMN_RETAINED + COMMA_SEP +
+                    OUTBOUND_COLUMN_CREATED + ") VALUES (?,?,?,?,?,?)";
+
+    private static final String SQL_DELETE_OUTBOUND =
+            "DELETE FROM " + TABLE_OUTBOUND + " WHERE " + _ID + "=?";
+
+    /** The connection columns written by inserts and updates, in the order they are bound **/
+    private static final String CONNECTION_COLUMNS =
+            COLUMN_HOST + COMMA_SEP +
+                    COLUMN_port + COMMA_SEP +
+                    COLUMN_client_ID + COMMA_SEP +
+                    COLUMN_ssl + COMMA_SEP +
+                    COLUMN_KEEP_ALIVE + COMMA_SEP +
+                    COLUMN_TIME_OUT + COMMA_SEP +
+                    COLUMN_USER_NAME + COMMA_SEP +
+                    COLUMN_TOPIC + COMMA_SEP +
+                    COLUMN_CLEAN_SESSION + COMMA_SEP +
+                    COLUMN_PASSWORD + COMMA_SEP +
+                    COLUMN_MESSAGE + COMMA_SEP +
+                    COLUMN_QOS + COMMA_SEP +
+                    COLUMN_RETAINED;
+
+    /** Number of columns in {@link #CONNECTION_COLUMNS} **/
+    private static final int CONNECTION_COLUMN_COUNT = 13;
+
+    private static final String SQL_INSERT_CONNECTION =
+            "INSERT INTO " + TABLE_CONNECTIONS + " (" + CONNECTION_COLUMNS + ") VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+    /** Replaces every connection column of a row, the row id is bound last **/
+    private static final String SQL_UPDATE_CONNECTION =
+            "UPDATE " + TABLE_CONNECTIONS + " SET " +
+                    COLUMN_HOST + "=?," +
+                    COLUMN_port + "=?," +
+                    COLUMN_client_ID + "=?," +
+                    COLUMN_ssl + "=?," +
+                    COLUMN_KEEP_ALIVE + "=?," +
+                    COLUMN_TIME_OUT + "=?," +
+                    COLUMN_USER_NAME + "=?," +
+                    COLUMN_TOPIC + "=?," +
+                    COLUMN_CLEAN_SESSION + "=?," +
+                    COLUMN_PASSWORD + "=?," +
+                    COLUMN_MESSAGE + "=?," +
+                    COLUMN_QOS + "=?," +
+                    COLUMN_RETAINED + "=? WHERE " + _ID + "=?";
+
+    private static final String SQL_DELETE_CONNECTION =
+            "DELETE FROM " + TABLE_CONNECTIONS + " WHERE " + _ID + "=?";
+
+    private static final String SQL_INSERT_SUBSCRIPTION =
+            "INSERT INTO " + TABLE_SUBSCRIPTIONS + " (" +
+                    COLUMN_client_ID + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_TOPIC + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_NOTIFY + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_QOS + ") VALUES (?,?,?,?)";
+
+    private static final String SQL_DELETE_SUBSCRIPTION =
+            "DELETE FROM " + TABLE_SUBSCRIPTIONS + " WHERE " + _ID + "=?";
+
+    private static final String SQL_CREATE_INBOUND_ENTRIES =
+
+            "CREATE TABLE " + TABLE_INBOUND + " (" +
+                    _ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    COLUMN_client_ID + TEXT_TYPE + COMMA_SEP +
+                    COLUMN_TOPIC + TEXT_TYPE + COMMA_SEP +
+                    OUTBOUND_COLUMN_PAYLOAD + " BLOB" + COMMA_SEP +
+                    COLUMN_QOS + INT_TYPE + COMMA_SEP +
+                    COLUMN_RETAINED + INT_TYPE + COMMA_SEP +
+                    INBOUND_COLUMN_RECEIVED + INT_TYPE + ");";
+
+    /** Index of the messages of a topic by time, the row id that ends every index breaks ties **/
+    private static final String SQL_CREATE_INBOUND_TOPIC_INDEX =
+            "CREATE INDEX inbound_client_topic ON " + TABLE_INBOUND + " (" +
+                    COLUMN_client_ID + COMMA_SEP +
+                    COLUMN_TOPIC + COMMA_SEP +
+                    INBOUND_COLUMN_RECEIVED + ");";
+
+    /** Index of the messages of a client by time, for retention and filters on every topic **/
+    private static final String SQL_CREATE_INBOUND_TIME_INDEX =
+            "CREATE INDEX inbound_client_received ON " + TABLE_INBOUND + " (" +
+                    COLUMN_client_ID + COMMA_SEP +
+                    INBOUND_COLUMN_RECEIVED + ");";
+
+    static final String SQL_INSERT_INBOUND =
+            "INSERT INTO " + TABLE_INBOUND + " (" +
+                    COLUMN_client_ID + COMMA_SEP +
+                    COLUMN_TOPIC + COMMA_SEP +
+                    OUTBOUND_COLUMN_PAYLOAD + COMMA_SEP +
+                    COLUMN_QOS + COMMA_SEP +
+                    COLUMN_RETAINED + COMMA_SEP +
+                    INBOUND_COLUMN_RECEIVED + ") VALUES (?,?,?,?,?,?)";
+
+    /** Columns read by received message queries, in the order of {@link #readInbound(Cursor)} **/
+    private static final String INBOUND_SELECT =
+            "SELECT " + _ID + COMMA_SEP +
+                    COLUMN_TOPIC + COMMA_SEP +
+                    OUTBOUND_COLUMN_PAYLOAD + COMMA_SEP +
+                    COLUMN_QOS + COMMA_SEP +
+                    COLUMN_RETAINED + COMMA_SEP +
+                    INBOUND_COLUMN_RECEIVED +
+                    " FROM " + TABLE_INBOUND + " WHERE " + COLUMN_client_ID + "=?";
+
+    /** Covering index of the subscriptions of a client **/
+    private static final String SQL_CREATE_SUBSCRIPTION_CLIENT_INDEX =
+            "CREATE INDEX IF NOT EXISTS subscriptions_client_id ON " + TABLE_SUBSCRIPTIONS + " (" +
+                    COLUMN_client_ID + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_TOPIC + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_NOTIFY + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_QOS + ");";
+
+    /** Index of the connections by host, it also gives the restore scan its order **/
+    private static final String SQL_CREATE_CONNECTION_HOST_INDEX =
+            "CREATE INDEX IF NOT EXISTS mqttclient_host ON " + TABLE_CONNECTIONS + " (" +
+                    COLUMN_HOST + COMMA_SEP +
+                    COLUMN_client_ID + ");";
+
+    /** Reads every connection, ordered by host **/
+    static final String SQL_RESTORE_CONNECTIONS =
+            "SELECT " + _ID + COMMA_SEP +
+                    COLUMN_HOST + COMMA_SEP +
+                    COLUMN_client_ID + COMMA_SEP +
+                    COLUMN_port + COMMA_SEP +
+                    COLUMN_ssl + COMMA_SEP +
+                    COLUMN_TIME_OUT + COMMA_SEP +
+                    COLUMN_KEEP_ALIVE + COMMA_SEP +
+                    COLUMN_USER_NAME + COMMA_SEP +
+                    COLUMN_PASSWORD + COMMA_SEP +
+                    COLUMN_CLEAN_SESSION + COMMA_SEP +
+                    COLUMN_TOPIC + COMMA_SEP +
+                    COLUMN_MESSAGE + COMMA_SEP +
+                    COLUMN_QOS + COMMA_SEP +
+                    COLUMN_RETAINED +
+                    " FROM " + TABLE_CONNECTIONS + " ORDER BY " + COLUMN_HOST;
+
+    /** Reads every subscription in the order they were stored, a scan of the table without a sort **/
+    static final String SQL_RESTORE_SUBSCRIPTIONS =
+            "SELECT " + _ID + COMMA_SEP +
+                    COLUMN_client_ID + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_TOPIC + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_NOTIFY + COMMA_SEP +
+                    SUBSCRIPTIONS_COLUMN_QOS +
+                    " FROM " + TABLE_SUBSCRIPTIONS + " ORDER BY " + _ID;
+
+    //column indexes of the restore scans, in the order of their select lists
+    private static final int RESTORE_ID = 0;
+    private static final int RESTORE_HOST = 1;
+    private static final int RESTORE_CLIENT_ID = 2;
+    private static final int RESTORE_PORT = 3;
+    private static final int RESTORE_SSL = 4;
+    private static final int RESTORE_TIME_OUT = 5;
+    private static final int RESTORE_KEEP_ALIVE = 6;
+    private static final int RESTORE_USER_NAME = 7;
+    private static final int RESTORE_PASSWORD = 8;
+    private static final int RESTORE_CLEAN_SESSION = 9;
+    private static final int RESTORE_TOPIC = 10;
+    private static final int RESTORE_MESSAGE = 11;
+    private static final int RESTORE_QOS = 12;
+    private static final int RESTORE_RETAINED = 13;
+
+    private static final int RESTORE_SUBSCRIPTION_ID = 0;
+    private static final int RESTORE_SUBSCRIPTION_CLIENT_ID = 1;
+    private static final int RESTORE_SUBSCRIPTION_TOPIC = 2;
+    private static final int RESTORE_SUBSCRIPTION_NOTIFY = 3;
+    private static final int RESTORE_SUBSCRIPTION_QOS = 4;
+
     /** Delete tables entry **/
     private static final String SQL_DELETE_ENTRIES =
             "DROP TABLE IF EXISTS " + TABLE_CONNECTIONS;
@@ -118,12 +319,82 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
     private static final String SQL_DELETE_SUBSCRIPTION_ENTRIES =
             "DROP TABLE IF EXISTS " + TABLE_SUBSCRIPTIONS;
 
+    /** The persistence shared by the process **/
+    private static volatile Persistence instance = null;
+
+    /** Statements compiled once and reused by every write, by their sql **/
+    private final HashMap<String, SQLiteStatement> statements = new HashMap<>();
+
+    /** The database the statements were compiled against **/
+    private SQLiteDatabase statementsDb = null;
+
     /**
      * Creates the persistence object passing it a context
      * @param context Context that the application is running in
+     * @deprecated every instance holds its own connection to the database, use {@link #getInstance(Context)}
      */
+    @Deprecated
     public Persistence(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        // readers such as restore do not block the outbound queue writer
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Get the persistence shared by the process. Its database stays open for the life of the
+     * process so writes neither reopen the file nor recompile their statements
+     * @param context Context that the application is running in
+     * @return the shared persistence
+     */
+    @SuppressWarnings("deprecation")
+    public static Persistence getInstance(Context context) {
+        if (instance == null) {
+            synchronized (Persistence.class) {
+                if (instance == null) {
+                    instance = new Persistence(context.getApplicationContext());
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Get a compiled statement with its bindings cleared, the caller must hold the lock of
+     * the persistence while it uses it
+     * @param db the writable database
+     * @param sql the sql of the statement
+     * @return the statement
+     */
+    private SQLiteStatement statement(SQLiteDatabase db, String sql) {
+        if (db != statementsDb) {
+            // the database was closed and reopened, statements of the old handle are unusable
+            closeStatements();
+            statementsDb = db;
+        }
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    private void closeStatements() {
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        statementsDb = null;
+    }
+
+    /**
+     * Closes the database along with the compiled statements, it is reopened by the next call
+     */
+    @Override
+    public synchronized void close() {
+        closeStatements();
+        super.close();
     }
 
     /* (non-Javadoc)
@@ -131,9 +402,20 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
-        db.execSQL(SQL_CREATE_ENTRIES);
-        db.execSQL(SQL_CREATE_SUBSCRIPTION_ENTRIES);
+        // run every migration from an empty database, so a new database always ends up with the
+        // same schema as an upgraded one
+        onUpgrade(db, 0, DATABASE_VERSION);
+    }
 
+    /**
+     * Uses write ahead logging with normal synchronisation: a commit no longer waits for the
+     * database file to be synced, only the log is, and a crash can only lose the last commits,
+     * never corrupt the database
+     * @param db the database being configured
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous=NORMAL");
     }
 
     /* (non-Javadoc)
@@ -141,8 +423,46 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        db.execSQL(SQL_DELETE_ENTRIES);
-        db.execSQL(SQL_DELETE_SUBSCRIPTION_ENTRIES);
+        // every step keeps the existing rows, steps run in order inside the upgrade's transaction
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            Log.i(TAG, "Migrating database to version " + version);
+            migrateTo(db, version);
+        }
+    }
+
+    /**
+     * Migrates the schema from the previous version
+     * @param db the database
+     * @param version the version to migrate to
+     */
+    private static void migrateTo(SQLiteDatabase db, int version) {
+        for (String sql : migration(version)) {
+            db.execSQL(sql);
+        }
+    }
+
+    /**
+     * Get the statements that migrate the schema from the previous version
+     * @param version the version to migrate to, version 1 creates the first tables
+     * @return the statements, run in order
+     */
+    static String[] migration(int version) {
+        switch (version) {
+            case 1:
+                return new String[]{SQL_CREATE_ENTRIES, SQL_CREATE_SUBSCRIPTION_ENTRIES};
+            case 2:
+                // the outbound queue
+                return new String[]{SQL_CREATE_OUTBOUND_ENTRIES, SQL_CREATE_OUTBOUND_INDEX};
+            case 3:
+                // indexes of the columns restore and lookups filter and sort on
+                return new String[]{SQL_CREATE_SUBSCRIPTION_CLIENT_INDEX, SQL_CREATE_CONNECTION_HOST_INDEX};
+            case 4:
+                // the received message store
+                return new String[]{SQL_CREATE_INBOUND_ENTRIES, SQL_CREATE_INBOUND_TOPIC_INDEX,
+                        SQL_CREATE_INBOUND_TIME_INDEX};
+            default:
+                throw new IllegalStateException("No migration to database version " + version);
+        }
     }
 
     /*
@@ -151,7 +471,28 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      */
     @Override
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        // a newer schema cannot be read by this version, start over rather than fail to open
+        Log.w(TAG, "Downgrading database from version " + oldVersion + " to " + newVersion + ", its content is dropped");
+        db.execSQL(SQL_DELETE_ENTRIES);
+        db.execSQL(SQL_DELETE_SUBSCRIPTION_ENTRIES);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOUND);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_INBOUND);
+        onCreate(db);
+    }
+
+    /**
+     * Runs writes in a single transaction, other writers wait until it is committed
+     * @param writes the writes, they call the write methods of this persistence
+     */
+    public synchronized void runInTransaction(Runnable writes) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            writes.run();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     /**
@@ -159,13 +500,12 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      * @param connection the connection to persist
      * @throws PersistenceException If storing the data fails
      */
-    public void persistConnection(Connection connection) throws PersistenceException {
-        SQLiteDatabase db = getWritableDatabase();
+    public synchronized void persistConnection(Connection connection) throws PersistenceException {
+        SQLiteStatement insert = statement(getWritableDatabase(), SQL_INSERT_CONNECTION);
+        bindConnection(insert, connection);
 
         //insert the values into the tables, returns the ID for the row
-        long newRowId = db.insert(TABLE_CONNECTIONS, null, getValues(connection));
-
-        db.close(); //close the db then deal with the result of the query
+        long newRowId = insert.executeInsert();
 
         if (newRowId == -1) {
             throw new PersistenceException("Failed to persist connection: " + connection.getId());
@@ -179,44 +519,48 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      * Updates a {@link Connection} in the database
      * @param connection {@link Connection} to update
      */
-    public void updateConnection(Connection connection) {
-        SQLiteDatabase db = getWritableDatabase();
-        String whereClause = _ID + "=?";
-        String[] whereArgs = new String[1];
-        whereArgs[0] = String.valueOf(connection.persistenceId());
-        db.update(TABLE_CONNECTIONS, getValues(connection), whereClause, whereArgs);
+    public synchronized void updateConnection(Connection connection) {
+        SQLiteStatement update = statement(getWritableDatabase(), SQL_UPDATE_CONNECTION);
+        bindConnection(update, connection);
+        update.bindLong(CONNECTION_COLUMN_COUNT + 1, connection.persistenceId());
+        update.executeUpdateDelete();
     }
 
-    private ContentValues getValues(Connection connection){
+    /**
+     * Binds the columns of a connection in the order of {@link #CONNECTION_COLUMNS}
+     */
+    private static void bindConnection(SQLiteStatement statement, Connection connection) {
         MqttConnectOptions conOpts = connection.getConnectionOptions();
         MqttMessage lastWill = conOpts.getWillMessage();
-        ContentValues values = new ContentValues();
 
-        //put the column values object
-        values.put(COLUMN_HOST, connection.getHostName());
-        values.put(COLUMN_port, connection.getPort());
-        values.put(COLUMN_client_ID, connection.getId());
-        values.put(COLUMN_ssl, connection.isSSL());
+        statement.bindString(1, connection.getHostName());
+        statement.bindLong(2, connection.getPort());
+        statement.bindString(3, connection.getId());
+        statement.bindLong(4, connection.isSSL());
 
-        values.put(COLUMN_KEEP_ALIVE, conOpts.getKeepAliveInterval());
-        values.put(COLUMN_TIME_OUT, conOpts.getConnectionTimeout());
-        values.put(COLUMN_USER_NAME, conOpts.getUserName());
-        values.put(COLUMN_TOPIC, conOpts.getWillDestination());
+        statement.bindLong(5, conOpts.getKeepAliveInterval());
+        statement.bindLong(6, conOpts.getConnectionTimeout());
+        bindText(statement, 7, conOpts.getUserName());
+        bindText(statement, 8, conOpts.getWillDestination());
 
         //uses "condition ? trueValue: falseValue" for in line converting of values
         char[] password = conOpts.getPassword();
-        values.put(COLUMN_CLEAN_SESSION, conOpts.isCleanSession() ? 1 : 0); //convert boolean to int and then put in values
-        values.put(COLUMN_PASSWORD, password != null ? String.valueOf(password) : null); //convert char[] to String
-        values.put(COLUMN_MESSAGE, lastWill != null ? new String(lastWill.getPayload()) : null); // convert byte[] to string
-        values.put(COLUMN_QOS, lastWill != null ? lastWill.getQos() : 0);
+        statement.bindLong(9, conOpts.isCleanSession() ? 1 : 0); //convert boolean to int
+        bindText(statement, 10, password != null ? String.valueOf(password) : null); //convert char[] to String
+        bindText(statement, 11, lastWill != null ? new String(lastWill.getPayload()) : null); // convert byte[] to string
+        statement.bindLong(12, lastWill != null ? lastWill.getQos() : 0);
+        statement.bindLong(13, lastWill != null && lastWill.isRetained() ? 1 : 0); //convert from boolean to int
+    }
 
-        if (lastWill == null) {
-            values.put(COLUMN_RETAINED, 0);
-        }
-        else {
-            values.put(COLUMN_RETAINED, lastWill.isRetained() ? 1 : 0); //convert from boolean to int
+    /**
+     * Binds a string that may be null, which {@link SQLiteStatement#bindString(int, String)} refuses
+     */
+    private static void bindText(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
         }
-        return values;
     }
 
     /**
@@ -224,16 +568,37 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      * @param subscription the subscription to persist
      * @throws PersistenceException If storing the data fails
      */
-    public long persistSubscription(Subscription subscription) throws PersistenceException {
+    public synchronized long persistSubscription(Subscription subscription) throws PersistenceException {
+        return insertSubscription(statement(getWritableDatabase(), SQL_INSERT_SUBSCRIPTION), subscription);
+    }
+
+    /**
+     * Persist subscriptions to the database in a single transaction, either all of them are
+     * stored or none is
+     * @param subscriptions the subscriptions to persist, each is assigned the id of its row
+     * @throws PersistenceException If storing the data fails
+     */
+    public synchronized void persistSubscriptions(List<Subscription> subscriptions) throws PersistenceException {
         SQLiteDatabase db = getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_client_ID, subscription.getclientId());
-        values.put(SUBSCRIPTIONS_COLUMN_TOPIC, subscription.getTopic());
-        values.put(SUBSCRIPTIONS_COLUMN_NOTIFY, subscription.isEnableNotifications() ? 1 : 0); //convert boolean to int and then put in values
-        values.put(SUBSCRIPTIONS_COLUMN_QOS, subscription.getQos());
-
-        long newRowId = db.insert(TABLE_SUBSCRIPTIONS, null, values);
-        db.close();
+        SQLiteStatement insert = statement(db, SQL_INSERT_SUBSCRIPTION);
+        db.beginTransaction();
+        try {
+            for (Subscription subscription : subscriptions) {
+                insertSubscription(insert, subscription);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long insertSubscription(SQLiteStatement insert, Subscription subscription) throws PersistenceException {
+        insert.bindString(1, subscription.getclientId());
+        insert.bindString(2, subscription.getTopic());
+        insert.bindLong(3, subscription.isEnableNotifications() ? 1 : 0); //convert boolean to int
+        insert.bindLong(4, subscription.getQos());
+
+        long newRowId = insert.executeInsert();
         if(newRowId == -1){
             throw new PersistenceException("Failed to persist subscription: " + subscription.toString());
         } else {
@@ -247,161 +612,450 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
      * Deletes a subscription from the database
      * @param subscription The subscription to delete from the database
      */
-    public void deleteSubscription(Subscription subscription) {
-        Log.d(TAG, "Deleting Subscription: " + subscription.toString());
-        SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_SUBSCRIPTIONS, _ID + "=?", new String[]{String.valueOf(subscription.getPersistenceId())});
-        db.close();
+    public synchronized void deleteSubscription(Subscription subscription) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Deleting Subscription: " + subscription.toString());
+        }
+        SQLiteStatement delete = statement(getWritableDatabase(), SQL_DELETE_SUBSCRIPTION);
+        delete.bindLong(1, subscription.getPersistenceId());
+        delete.executeUpdateDelete();
         //don't care if it failed, means it's not in the db therefore no need to delete
 
     }
 
 
     /**
-     * Recreates connection objects based upon information stored in the database
+     * Recreates connection objects based upon information stored in the database.
+     * Each table is read in a single scan and the subscriptions are grouped by client id in
+     * memory, instead of querying the subscriptions of every connection
      * @param context Context for creating {@link Connection} objects
      * @return list of connections that have been restored
      * @throws PersistenceException if restoring connections fails, this is thrown
      */
     public List<Connection> restoreConnections(Context context) throws PersistenceException
     {
-
-
-        //columns to return
-        String[] connectionColumns = {
-                COLUMN_HOST,
-                COLUMN_port,
-                COLUMN_client_ID,
-                COLUMN_ssl,
-                COLUMN_KEEP_ALIVE,
-                COLUMN_CLEAN_SESSION,
-                COLUMN_TIME_OUT,
-                COLUMN_USER_NAME,
-                COLUMN_PASSWORD,
-                COLUMN_TOPIC,
-                COLUMN_MESSAGE,
-                COLUMN_RETAINED,
-                COLUMN_QOS,
-                _ID
-
-        };
-
-        // Columns to return for subscription
-        String[] subscriptionColumns = {
-                COLUMN_client_ID,
-                SUBSCRIPTIONS_COLUMN_TOPIC,
-                SUBSCRIPTIONS_COLUMN_NOTIFY,
-                SUBSCRIPTIONS_COLUMN_QOS,
-                _ID
-        };
-
-        String subscriptionWhereQuery = COLUMN_client_ID + "=?";
-
-        //how to sort the data being returned
-        String sort = COLUMN_HOST;
-
         SQLiteDatabase db = getReadableDatabase();
+        ArrayList<Connection> list;
+        try {
+            Cursor c = db.rawQuery(SQL_RESTORE_CONNECTIONS, null);
+            list = new ArrayList<>(c.getCount());
+            HashMap<String, ArrayList<Subscription>> subscriptionsByClient = new HashMap<>(c.getCount() * 2);
+            try {
+                while (c.moveToNext()) {
+                    Connection connection = restoreConnection(context, c);
+                    list.add(connection);
+                    subscriptionsByClient.put(connection.getId(), new ArrayList<Subscription>());
+                }
+            } finally {
+                c.close();
+            }
 
-        Cursor c = db.query(TABLE_CONNECTIONS, connectionColumns, null, null, null, null, sort);
-        ArrayList<Connection> list = new ArrayList<>(c.getCount());
-        Connection connection;
-        for (int i = 0; i < c.getCount(); i++) {
-            if (!c.moveToNext()) { //move to the next item throw persistence exception, if it fails
-                throw new PersistenceException("Failed restoring connection - count: " + c.getCount() + "loop iteration: " + i);
+            boolean debug = Log.isLoggable(TAG, Log.DEBUG);
+            Cursor sub_c = db.rawQuery(SQL_RESTORE_SUBSCRIPTIONS, null);
+            try {
+                while (sub_c.moveToNext()) {
+                    String clientId = sub_c.getString(RESTORE_SUBSCRIPTION_CLIENT_ID);
+                    ArrayList<Subscription> subscriptions = subscriptionsByClient.get(clientId);
+                    if (subscriptions == null) {
+                        // left behind by a deleted connection
+                        continue;
+                    }
+                    Subscription sub = new Subscription(sub_c.getString(RESTORE_SUBSCRIPTION_TOPIC),
+                            sub_c.getInt(RESTORE_SUBSCRIPTION_QOS), clientId,
+                            sub_c.getInt(RESTORE_SUBSCRIPTION_NOTIFY) == 1);
+                    sub.setPersistenceId(sub_c.getLong(RESTORE_SUBSCRIPTION_ID));
+                    if (debug) {
+                        Log.d(TAG, "Restoring Subscription: " + sub.toString());
+                    }
+                    subscriptions.add(sub);
+                }
+            } finally {
+                sub_c.close();
             }
-            //get data from cursor
-            Long id = c.getLong(c.getColumnIndexOrThrow(_ID));
-            //basic client information
-            String host = c.getString(c.getColumnIndexOrThrow(COLUMN_HOST));
-            String clientID = c.getString(c.getColumnIndexOrThrow(COLUMN_client_ID));
-            int port = c.getInt(c.getColumnIndexOrThrow(COLUMN_port));
-
-            //connect options strings
-            String username = c.getString(c.getColumnIndexOrThrow(COLUMN_USER_NAME));
-            String password = c.getString(c.getColumnIndexOrThrow(COLUMN_PASSWORD));
-            String topic = c.getString(c.getColumnIndexOrThrow(COLUMN_TOPIC));
-            String message = c.getString(c.getColumnIndexOrThrow(COLUMN_MESSAGE));
-
-            //connect options integers
-            int qos = c.getInt(c.getColumnIndexOrThrow(COLUMN_QOS));
-            int keepAlive = c.getInt(c.getColumnIndexOrThrow(COLUMN_KEEP_ALIVE));
-            int timeout = c.getInt(c.getColumnIndexOrThrow(COLUMN_TIME_OUT));
-
-            //get all values that need converting and convert integers to booleans in line using "condition ? trueValue : falseValue"
-            boolean cleanSession = c.getInt(c.getColumnIndexOrThrow(COLUMN_CLEAN_SESSION)) == 1 ;
-            boolean retained = c.getInt(c.getColumnIndexOrThrow(COLUMN_RETAINED)) == 1;
-            boolean ssl = c.getInt(c.getColumnIndexOrThrow(COLUMN_ssl)) == 1;
-
-            //rebuild objects starting with the connect options
-            MqttConnectOptions opts = new MqttConnectOptions();
-            opts.setCleanSession(cleanSession);
-            opts.setKeepAliveInterval(keepAlive);
-            opts.setConnectionTimeout(timeout);
-
-            opts.setPassword(password != null ? password.toCharArray() : null);
-            opts.setUserName(username);
-
-            if (topic != null) {
-                opts.setWill(topic, message.getBytes(), qos, retained);
+
+            for (Connection connection : list) {
+                connection.setSubscriptions(subscriptionsByClient.get(connection.getId()));
             }
+        } catch (RuntimeException e) {
+            throw new PersistenceException("Failed restoring connections: " + e.getMessage(), e);
+        }
+        return list;
 
-            //now create the connection object
-            connection = Connection.createConnection(clientID, host, port, context, ssl);
-            connection.addConnectionOptions(opts);
-            connection.assignPersistenceId(id);
+    }
 
-            // Now we recover all subscriptions for this connection
-            String[] args = {clientID};
-            System.out.println("SUB: " + connection.toString());
+    /**
+     * Creates a connection from the connection columns of the current row of a restore scan
+     */
+    private static Connection restoreConnection(Context context, Cursor c) {
+        //basic client information
+        String host = c.getString(RESTORE_HOST);
+        String clientID = c.getString(RESTORE_CLIENT_ID);
+        int port = c.getInt(RESTORE_PORT);
+
+        //connect options strings
+        String username = c.getString(RESTORE_USER_NAME);
+        String password = c.getString(RESTORE_PASSWORD);
+        String topic = c.getString(RESTORE_TOPIC);
+        String message = c.getString(RESTORE_MESSAGE);
+
+        //connect options integers
+        int qos = c.getInt(RESTORE_QOS);
+        int keepAlive = c.getInt(RESTORE_KEEP_ALIVE);
+        int timeout = c.getInt(RESTORE_TIME_OUT);
+
+        //get all values that need converting and convert integers to booleans in line using "condition ? trueValue : falseValue"
+        boolean cleanSession = c.getInt(RESTORE_CLEAN_SESSION) == 1;
+        boolean retained = c.getInt(RESTORE_RETAINED) == 1;
+        boolean ssl = c.getInt(RESTORE_SSL) == 1;
+
+        //rebuild objects starting with the connect options
+        MqttConnectOptions opts = new MqttConnectOptions();
+        opts.setCleanSession(cleanSession);
+        opts.setKeepAliveInterval(keepAlive);
+        opts.setConnectionTimeout(timeout);
+
+        opts.setPassword(password != null ? password.toCharArray() : null);
+        opts.setUserName(username);
+
+        if (topic != null) {
+            opts.setWill(topic, message.getBytes(), qos, retained);
+        }
+
+        //now create the connection object
+        Connection connection = Connection.createConnection(clientID, host, port, context, ssl);
+        connection.addConnectionOptions(opts);
+        connection.assignPersistenceId(c.getLong(RESTORE_ID));
+        return connection;
+    }
+
+    /**
+     * Deletes a connection from the database
+     * @param connection The connection to delete from the database
+     */
+    public synchronized void deleteConnection(Connection connection) {
+        SQLiteStatement delete = statement(getWritableDatabase(), SQL_DELETE_CONNECTION);
+        delete.bindLong(1, connection.persistenceId());
+        delete.executeUpdateDelete();
+        //don't care if it failed, means it's not in the db therefore no need to delete
+
+    }
 
-            Cursor sub_c = db.query(TABLE_SUBSCRIPTIONS, subscriptionColumns, subscriptionWhereQuery, args, null, null, sort);
-            ArrayList<Subscription> subscriptions = new ArrayList<>(sub_c.getCount());
-            for (int x = 0; x < sub_c.getCount(); x++) {
-                if (!sub_c.moveToNext()) { //move to the next item throw persistence exception, if it fails
-                    throw new PersistenceException("Failed restoring subscription - count: " + sub_c.getCount() + "loop iteration: " + x);
-                }
-                Long sub_id =  sub_c.getLong(sub_c.getColumnIndexOrThrow(_ID));
-                String sub_clientId = sub_c.getString(sub_c.getColumnIndexOrThrow(COLUMN_client_ID));
-                String sub_topic = sub_c.getString(sub_c.getColumnIndexOrThrow(SUBSCRIPTIONS_COLUMN_TOPIC));
-                boolean sub_notify = sub_c.getInt(sub_c.getColumnIndexOrThrow(SUBSCRIPTIONS_COLUMN_NOTIFY)) == 1;
-                int sub_qos = sub_c.getInt(sub_c.getColumnIndexOrThrow(SUBSCRIPTIONS_COLUMN_QOS));
-                Subscription sub = new Subscription(sub_topic, sub_qos, sub_clientId, sub_notify);
-                sub.setPersistenceId(sub_id);
-                Log.d(TAG, "Restoring Subscription: " + sub.toString());
-                subscriptions.add(sub);
-            }
-            sub_c.close();
 
-            connection.setSubscriptions(subscriptions);
 
-            //store it in the list
-            list.add(connection);
 
+    /**
+     * Stores outbound messages of a connection in a single transaction
+     * @param clientId the client id of the connection the messages are published through
+     * @param messages the messages to store, each is assigned the id of its row
+     * @throws PersistenceException If storing the messages fails
+     */
+    public synchronized void persistOutbound(String clientId, List<OutboundMessage> messages) throws PersistenceException {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = statement(db, SQL_INSERT_OUTBOUND);
+        db.beginTransaction();
+        try {
+            for (OutboundMessage message : messages) {
+                insert.bindString(1, clientId);
+                insert.bindString(2, message.getTopic());
+                insert.bindBlob(3, message.getMessage().getPayload());
+                insert.bindLong(4, message.getMessage().getQos());
+                insert.bindLong(5, message.getMessage().isRetained() ? 1 : 0);
+                insert.bindLong(6, message.getCreated());
+                long rowId = insert.executeInsert();
+                if (rowId == -1) {
+                    throw new PersistenceException("Failed to persist outbound message to: " + message.getTopic());
+                }
+                message.setPersistenceId(rowId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Reads the oldest outbound messages of a connection
+     * @param clientId the client id of the connection
+     * @param afterId only messages stored after the message with this id are read, -1 to read from the start
+     * @param limit the maximum number of messages to read
+     * @return the messages in the order they were stored
+     */
+    public List<OutboundMessage> restoreOutbound(String clientId, long afterId, int limit) {
+        String[] columns = {_ID, COLUMN_TOPIC, OUTBOUND_COLUMN_PAYLOAD, COLUMN_QOS, COLUMN_RETAINED, OUTBOUND_COLUMN_CREATED};
+        String[] args = {clientId, String.valueOf(afterId)};
+        SQLiteDatabase db = getReadableDatabase();
+        Cursor c = db.query(TABLE_OUTBOUND, columns, COLUMN_client_ID + "=? AND " + _ID + ">?", args,
+                null, null, _ID, String.valueOf(limit));
+        ArrayList<OutboundMessage> list = new ArrayList<>(c.getCount());
+        while (c.moveToNext()) {
+            MqttMessage message = new MqttMessage(c.getBlob(2));
+            message.setQos(c.getInt(3));
+            message.setRetained(c.getInt(4) == 1);
+            OutboundMessage outbound = new OutboundMessage(c.getString(1), message, c.getLong(5));
+            outbound.setPersistenceId(c.getLong(0));
+            list.add(outbound);
         }
-        //close the cursor now we are finished with it
         c.close();
+        return list;
+    }
 
+    /**
+     * Deletes outbound messages in a single transaction
+     * @param ids the ids of the messages to delete
+     */
+    public synchronized void deleteOutbound(long[] ids) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement delete = statement(db, SQL_DELETE_OUTBOUND);
+        db.beginTransaction();
+        try {
+            for (long id : ids) {
+                delete.bindLong(1, id);
+                delete.executeUpdateDelete();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        db.close();
-        return list;
+    /**
+     * Deletes every outbound message of a connection
+     * @param clientId the client id of the connection
+     */
+    public void deleteOutbound(String clientId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_OUTBOUND, COLUMN_client_ID + "=?", new String[]{clientId});
+    }
 
+    /**
+     * Applies the retention rules of an outbound queue, dropping the oldest messages first
+     * @param clientId the client id of the connection
+     * @param createdBefore messages queued before this time are deleted, in milliseconds since the epoch
+     * @param maxMessages the number of most recent messages to keep
+     */
+    public void pruneOutbound(String clientId, long createdBefore, int maxMessages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_OUTBOUND, COLUMN_client_ID + "=? AND " + OUTBOUND_COLUMN_CREATED + "<?",
+                new String[]{clientId, String.valueOf(createdBefore)});
+        db.delete(TABLE_OUTBOUND, _ID + " IN (SELECT " + _ID + " FROM " + TABLE_OUTBOUND +
+                        " WHERE " + COLUMN_client_ID + "=? ORDER BY " + _ID + " DESC LIMIT -1 OFFSET ?)",
+                new String[]{clientId, String.valueOf(maxMessages)});
     }
 
     /**
-     * Deletes a connection from the database
-     * @param connection The connection to delete from the database
+     * Counts the outbound messages of a connection
+     * @param clientId the client id of the connection
+     * @return the number of stored messages
+     */
+    public long countOutbound(String clientId) {
+        SQLiteDatabase db = getReadableDatabase();
+        long count = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_OUTBOUND +
+                " WHERE " + COLUMN_client_ID + "=?", new String[]{clientId});
+        return count;
+    }
+
+    /**
+     * Stores received messages of a connection in a single transaction
+     * @param clientId the client id of the connection the messages were received by
+     * @param messages the messages to store, each is assigned the id of its row
+     * @throws PersistenceException If storing the messages fails
      */
-    public void deleteConnection(Connection connection) {
+    public synchronized void persistInbound(String clientId, List<InboundMessage> messages) throws PersistenceException {
         SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement insert = statement(db, SQL_INSERT_INBOUND);
+        db.beginTransaction();
+        try {
+            for (InboundMessage message : messages) {
+                insert.bindString(1, clientId);
+                insert.bindString(2, message.getTopic());
+                insert.bindBlob(3, message.getMessage().getPayload());
+                insert.bindLong(4, message.getMessage().getQos());
+                insert.bindLong(5, message.getMessage().isRetained() ? 1 : 0);
+                insert.bindLong(6, message.getReceived());
+                long rowId = insert.executeInsert();
+                if (rowId == -1) {
+                    throw new PersistenceException("Failed to persist received message from: " + message.getTopic());
+                }
+                message.setPersistenceId(rowId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
 
-        db.delete(TABLE_CONNECTIONS, _ID + "=?", new String[]{String.valueOf(connection.persistenceId())});
-        db.close();
-        //don't care if it failed, means it's not in the db therefore no need to delete
+    /**
+     * Reads a page of the received messages of a connection that match a topic filter, in the
+     * order they were received.
+     *
+     * The literal levels of the filter ahead of its first wildcard select a range of the topic
+     * index and the time range is read from the same index, the wildcard levels are then
+     * matched in memory. A filter starting with a wildcard reads the time index instead
+     * @param clientId the client id of the connection
+     * @param topicFilter the topic filter, wildcards included
+     * @param from the start of the time range, inclusive, in milliseconds since the epoch
+     * @param to the end of the time range, exclusive, in milliseconds since the epoch
+     * @param after the last message of the previous page, or null for the first page
+     * @param limit the maximum number of messages to read
+     * @return the messages, fewer than the limit once the range is exhausted
+     */
+    public List<InboundMessage> queryInbound(String clientId, String topicFilter, long from, long to,
+                                             InboundMessage after, int limit) {
+        TopicTrie<Boolean> matcher = null;
+        if (firstWildcard(topicFilter) >= 0) {
+            matcher = new TopicTrie<>();
+            matcher.put(topicFilter, Boolean.TRUE);
+        }
+        ArrayList<String> args = new ArrayList<>(11);
+        String query = inboundQuery(clientId, topicFilter, from, to, limit, args);
+        int cursorArg = args.size();
+        args.add(null);
+        args.add(null);
+        args.add(null);
+        String[] argArray = args.toArray(new String[args.size()]);
+
+        long afterReceived = after != null ? after.getReceived() : Long.MIN_VALUE;
+        long afterId = after != null ? after.getPersistenceId() : -1;
+        SQLiteDatabase db = getReadableDatabase();
+        ArrayList<InboundMessage> list = new ArrayList<>(Math.min(limit, 64));
+        while (list.size() < limit) {
+            argArray[cursorArg] = String.valueOf(afterReceived);
+            argArray[cursorArg + 1] = String.valueOf(afterReceived);
+            argArray[cursorArg + 2] = String.valueOf(afterId);
+            Cursor c = db.rawQuery(query, argArray);
+            int rows = 0;
+            try {
+                while (c.moveToNext()) {
+                    rows++;
+                    InboundMessage message = readInbound(c);
+                    afterReceived = message.getReceived();
+                    afterId = message.getPersistenceId();
+                    if ((matcher == null || matcher.match(message.getTopic()).size() > 0) && list.size() < limit) {
+                        list.add(message);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+            if (matcher == null || rows < limit) {
+                // the index range is exhausted, or every row matched the filter
+                break;
+            }
+        }
+        return list;
+    }
 
+    /**
+     * Builds the query of a page of received messages. Its last three arguments are left to the
+     * caller, they locate the last message of the previous page: its received time twice, then its
+     * row id
+     * @param clientId the client id of the connection
+     * @param topicFilter the topic filter, its wildcard levels are not matched by the query
+     * @param from the start of the time range, inclusive, in milliseconds since the epoch
+     * @param to the end of the time range, exclusive, in milliseconds since the epoch
+     * @param limit the maximum number of rows to read
+     * @param args receives the arguments of the query, up to the arguments of the previous page
+     * @return the query
+     */
+    static String inboundQuery(String clientId, String topicFilter, long from, long to, int limit,
+                               List<String> args) {
+        int wildcard = firstWildcard(topicFilter);
+        StringBuilder sql = new StringBuilder(INBOUND_SELECT);
+        args.add(clientId);
+        if (wildcard < 0) {
+            sql.append(" AND ").append(COLUMN_TOPIC).append("=?");
+            args.add(topicFilter);
+        } else if (wildcard > 0) {
+            // the prefix ends with a separator, the next character bounds its range
+            String prefix = topicFilter.substring(0, wildcard);
+            String bound = prefix.substring(0, wildcard - 1) + (char) (TopicTrie.SEPARATOR + 1);
+            sql.append(" AND (").append(COLUMN_TOPIC).append(">=? AND ").append(COLUMN_TOPIC).append("<?");
+            args.add(prefix);
+            args.add(bound);
+            if (topicFilter.endsWith(TopicTrie.SEPARATOR + TopicTrie.MULTI_LEVEL_WILDCARD)
+                    && wildcard == topicFilter.length() - 1) {
+                // a trailing multi level wildcard also matches its parent level
+                sql.append(" OR ").append(COLUMN_TOPIC).append("=?");
+                args.add(prefix.substring(0, wildcard - 1));
+            }
+            sql.append(')');
+        }
+        sql.append(" AND ").append(INBOUND_COLUMN_RECEIVED).append(">=? AND ")
+                .append(INBOUND_COLUMN_RECEIVED).append("<?");
+        args.add(String.valueOf(from));
+        args.add(String.valueOf(to));
+        // keyset paging, resumes after the last message without counting the rows before it
+        sql.append(" AND (").append(INBOUND_COLUMN_RECEIVED).append(">? OR (")
+                .append(INBOUND_COLUMN_RECEIVED).append("=? AND ").append(_ID).append(">?))");
+        sql.append(" ORDER BY ").append(INBOUND_COLUMN_RECEIVED).append(COMMA_SEP).append(_ID)
+                .append(" LIMIT ").append(limit);
+        return sql.toString();
     }
 
+    /**
+     * Get the position of the first wildcard level of a topic filter
+     * @return the index of the wildcard, or -1 if the filter has none
+     */
+    private static int firstWildcard(String topicFilter) {
+        int start = 0;
+        while (start <= topicFilter.length()) {
+            int end = topicFilter.indexOf(TopicTrie.SEPARATOR, start);
+            if (end < 0) {
+                end = topicFilter.length();
+            }
+            String level = topicFilter.substring(start, end);
+            if (TopicTrie.SINGLE_LEVEL_WILDCARD.equals(level) || TopicTrie.MULTI_LEVEL_WILDCARD.equals(level)) {
+                return start;
+            }
+            start = end + 1;
+        }
+        return -1;
+    }
 
+    private static InboundMessage readInbound(Cursor c) {
+        MqttMessage message = new MqttMessage(c.getBlob(2));
+        message.setQos(c.getInt(3));
+        message.setRetained(c.getInt(4) == 1);
+        InboundMessage inbound = new InboundMessage(c.getString(1), message, c.getLong(5));
+        inbound.setPersistenceId(c.getLong(0));
+        return inbound;
+    }
 
+    /**
+     * Applies the retention rules of a received message store, dropping the oldest messages first
+     * @param clientId the client id of the connection
+     * @param receivedBefore messages received before this time are deleted, in milliseconds since the epoch
+     * @param maxMessages the number of most recent messages to keep
+     */
+    public void pruneInbound(String clientId, long receivedBefore, int maxMessages) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_INBOUND, COLUMN_client_ID + "=? AND " + INBOUND_COLUMN_RECEIVED + "<?",
+                new String[]{clientId, String.valueOf(receivedBefore)});
+        db.delete(TABLE_INBOUND, _ID + " IN (SELECT " + _ID + " FROM " + TABLE_INBOUND +
+                        " WHERE " + COLUMN_client_ID + "=? ORDER BY " + INBOUND_COLUMN_RECEIVED + " DESC" +
+                        COMMA_SEP + _ID + " DESC LIMIT -1 OFFSET ?)",
+                new String[]{clientId, String.valueOf(maxMessages)});
+    }
+
+    /**
+     * Deletes every received message of a connection
+     * @param clientId the client id of the connection
+     */
+    public void deleteInbound(String clientId) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.delete(TABLE_INBOUND, COLUMN_client_ID + "=?", new String[]{clientId});
+    }
+
+    /**
+     * Counts the received messages of a connection
+     * @param clientId the client id of the connection
+     * @return the number of stored messages
+     */
+    public long countInbound(String clientId) {
+        SQLiteDatabase db = getReadableDatabase();
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + TABLE_INBOUND +
+                " WHERE " + COLUMN_client_ID + "=?", new String[]{clientId});
+    }
 
     class PersistenceException extends Exception {
 
@@ -413,6 +1067,15 @@ public class Persistence extends SQLiteOpenHelper implements BaseColumns {
             super(message);
         }
 
+        /**
+         * Creates a persistence exception with the given error message and cause
+         * @param message The error message to display
+         * @param cause The exception that made the operation fail
+         */
+        public PersistenceException(String message, Throwable cause) {
+            super(message, cause);
+        }
+
         /** Serialisation ID**/
         private static final long serialVersionUID = 5323458804268855071L;
 
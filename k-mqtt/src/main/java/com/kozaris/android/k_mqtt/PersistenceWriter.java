@@ -0,0 +1,341 @@
+package com.kozaris.android.k_mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes connections and subscriptions to the {@link Persistence} of the process on a single
+ * background thread, so callers such as the UI thread never wait for the database.
+ *
+ * Commands are written in the order they are given. Everything given while a write runs is
+ * written by the next one in a single transaction, and commands that cancel out before they are
+ * written are dropped: updates of a connection that is still to be written or updated, and a
+ * subscription removed before it was written. Ids of new rows are assigned once they are
+ * written, later commands on the same row read them then.
+ *
+ * {@link #flush()} waits until every command given before it is written, for tests and before
+ * the process goes away.
+ */
+public class PersistenceWriter {
+
+    private static final String TAG = "PersistenceWriter";
+
+    /** Time the writer thread is kept while there is nothing to write **/
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile PersistenceWriter instance = null;
+
+    private enum Op {
+        PERSIST_CONNECTION,
+        UPDATE_CONNECTION,
+        REPLACE_CONNECTION,
+        DELETE_CONNECTION,
+        PERSIST_SUBSCRIPTION,
+        DELETE_SUBSCRIPTION
+    }
+
+    /**
+     * A write waiting for the writer thread
+     */
+    private static final class Command {
+        final Op op;
+        final Connection connection;
+        final Subscription subscription;
+
+        /** The connection whose row a {@link Op#REPLACE_CONNECTION} takes over **/
+        final Connection replaced;
+
+        /** Set when a later command made this one unnecessary **/
+        boolean cancelled = false;
+
+        Command(Op op, Connection connection, Subscription subscription) {
+            this(op, connection, subscription, null);
+        }
+
+        Command(Op op, Connection connection, Subscription subscription, Connection replaced) {
+            this.op = op;
+            this.connection = connection;
+            this.subscription = subscription;
+            this.replaced = replaced;
+        }
+    }
+
+    private final Persistence persistence;
+
+    private final ThreadPoolExecutor executor;
+
+    /** Commands given since the last write, in order **/
+    private ArrayList<Command> pending = new ArrayList<>();
+
+    /** The last pending command on each row, by connection or subscription key **/
+    private final HashMap<String, Command> lastByKey = new HashMap<>();
+
+    /** Whether a write of the pending commands is scheduled **/
+    private boolean writeScheduled = false;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * Get the writer of the process, it writes to {@link Persistence#getInstance(Context)}
+     * @param context Context that the application is running in
+     * @return the shared writer
+     */
+    public static PersistenceWriter getInstance(Context context) {
+        if (instance == null) {
+            synchronized (PersistenceWriter.class) {
+                if (instance == null) {
+                    instance = new PersistenceWriter(Persistence.getInstance(context));
+                }
+            }
+        }
+        return instance;
+    }
+
+    private PersistenceWriter(Persistence persistence) {
+        this.persistence = persistence;
+        executor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Writes a new connection, its persistence id is assigned once it is written
+     * @param connection the connection
+     */
+    public void persistConnection(Connection connection) {
+        submit(new Command(Op.PERSIST_CONNECTION, connection, null));
+    }
+
+    /**
+     * Writes the current state of a connection
+     * @param connection the connection
+     */
+    public void updateConnection(Connection connection) {
+        submit(new Command(Op.UPDATE_CONNECTION, connection, null));
+    }
+
+    /**
+     * Writes a connection over the row of another one. The id of the row is read from the
+     * replaced connection when the command is written, so it may still be waiting to be persisted
+     * @param replaced the connection whose row is taken over
+     * @param connection the connection written in its place
+     */
+    public void replaceConnection(Connection replaced, Connection connection) {
+        submit(new Command(Op.REPLACE_CONNECTION, connection, null, replaced));
+    }
+
+    /**
+     * Deletes a connection
+     * @param connection the connection
+     */
+    public void deleteConnection(Connection connection) {
+        submit(new Command(Op.DELETE_CONNECTION, connection, null));
+    }
+
+    /**
+     * Writes a new subscription, its persistence id is assigned once it is written
+     * @param subscription the subscription
+     */
+    public void persistSubscription(Subscription subscription) {
+        submit(new Command(Op.PERSIST_SUBSCRIPTION, null, subscription));
+    }
+
+    /**
+     * Writes new subscriptions, in the same transaction unless a write is already running
+     * @param subscriptions the subscriptions
+     */
+    public void persistSubscriptions(List<Subscription> subscriptions) {
+        boolean schedule = false;
+        synchronized (this) {
+            for (Subscription subscription : subscriptions) {
+                schedule |= add(new Command(Op.PERSIST_SUBSCRIPTION, null, subscription));
+            }
+        }
+        if (schedule) {
+            executor.execute(writeTask);
+        }
+    }
+
+    /**
+     * Deletes a subscription
+     * @param subscription the subscription
+     */
+    public void deleteSubscription(Subscription subscription) {
+        submit(new Command(Op.DELETE_SUBSCRIPTION, null, subscription));
+    }
+
+    /**
+     * Waits until every command given before the call is written
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void flush() throws InterruptedException {
+        barrier().await();
+    }
+
+    /**
+     * Waits until every command given before the call is written, or the time runs out
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the commands were written, false if the time ran out
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean flush(long timeout, TimeUnit unit) throws InterruptedException {
+        return barrier().await(timeout, unit);
+    }
+
+    /**
+     * Queues a latch behind the scheduled writes, the executor runs tasks in order
+     */
+    private CountDownLatch barrier() {
+        final CountDownLatch written = new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                written.countDown();
+            }
+        });
+        return written;
+    }
+
+    private void submit(Command command) {
+        boolean schedule;
+        synchronized (this) {
+            schedule = add(command);
+        }
+        if (schedule) {
+            executor.execute(writeTask);
+        }
+    }
+
+    /**
+     * Adds a command to the pending ones, dropping what it cancels out
+     * @return true if a write has to be scheduled
+     */
+    private boolean add(Command command) {
+        String key = command.connection != null
+                ? "c\n" + command.connection.getId()
+                : "s\n" + command.subscription.getclientId() + "\n" + command.subscription.getTopic();
+        Command last = lastByKey.get(key);
+        boolean sameConnection = last != null && last.connection == command.connection;
+        switch (command.op) {
+            case UPDATE_CONNECTION:
+                if (sameConnection && last.op != Op.DELETE_CONNECTION) {
+                    // the pending write reads the connection when it runs
+                    return false;
+                }
+                break;
+            case DELETE_CONNECTION:
+                if (sameConnection && last.op == Op.PERSIST_CONNECTION) {
+                    // never written
+                    last.cancelled = true;
+                    lastByKey.remove(key);
+                    return false;
+                }
+                if (sameConnection && last.op == Op.UPDATE_CONNECTION) {
+                    last.cancelled = true;
+                }
+                break;
+            case DELETE_SUBSCRIPTION:
+                if (last != null && last.op == Op.PERSIST_SUBSCRIPTION) {
+                    // never written
+                    last.cancelled = true;
+                    lastByKey.remove(key);
+                    return false;
+                }
+                break;
+            default:
+                break;
+        }
+        pending.add(command);
+        lastByKey.put(key, command);
+        boolean schedule = !writeScheduled;
+        writeScheduled = true;
+        return schedule;
+    }
+
+    /**
+     * Writes the pending commands in one transaction
+     */
+    private void writePending() {
+        final List<Command> batch;
+        synchronized (this) {
+            writeScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+            lastByKey.clear();
+        }
+        try {
+            persistence.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (Command command : batch) {
+                        if (!command.cancelled) {
+                            write(command);
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to write " + batch.size() + " persistence commands", e);
+        }
+    }
+
+    private void write(Command command) {
+        try {
+            switch (command.op) {
+                case PERSIST_CONNECTION:
+                    persistence.persistConnection(command.connection);
+                    break;
+                case UPDATE_CONNECTION:
+                    persistence.updateConnection(command.connection);
+                    break;
+                case REPLACE_CONNECTION:
+                    if (command.replaced.persistenceId() == -1) {
+                        // the replaced connection was never written
+                        persistence.persistConnection(command.connection);
+                    } else {
+                        command.connection.assignPersistenceId(command.replaced.persistenceId());
+                        persistence.updateConnection(command.connection);
+                    }
+                    break;
+                case DELETE_CONNECTION:
+                    persistence.deleteConnection(command.connection);
+                    break;
+                case PERSIST_SUBSCRIPTION:
+                    persistence.persistSubscription(command.subscription);
+                    break;
+                case DELETE_SUBSCRIPTION:
+                    persistence.deleteSubscription(command.subscription);
+                    break;
+            }
+        } catch (Persistence.PersistenceException e) {
+            // a failed row does not roll back the rest of the batch
+            Log.e(TAG, "Failed to " + command.op + " " +
+                    (command.connection != null ? command.connection.getId() : command.subscription), e);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+package com.kozaris.android.k_mqtt;
+
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queues the outbound messages of a {@link Connection} and publishes them while keeping the
+ * client's in-flight window full, without ever going over the max-inflight limit of the
+ * connect options.
+ *
+ * Messages submitted from any number of threads are published in bursts by whichever thread
+ * finds the pipeline idle, and every completed publish pulls the next queued message into the
+ * window. Publishing pauses while the connection is not connected and resumes once it is.
+ *
+ * When the client rejects a publish because its own window is full, which happens when
+ * publishes made outside the pipeline take it, the message goes back ahead of the queue in the
+ * order it was submitted and publishing is retried after a short delay.
+ */
+public class PublishPipeline implements IMqttActionListener {
+
+    private static final String TAG = "PublishPipeline";
+
+    /** Default number of messages the pipeline queues **/
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+
+    /** Delay before publishing again once the client rejected a publish for a full window **/
+    static final long RETRY_DELAY_MILLIS = 100;
+
+    /** Runs the retries of every pipeline **/
+    private static final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG + "-retry");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Connection connection;
+
+    private final int queueCapacity;
+
+    private final ConcurrentLinkedQueue<PendingPublish> queue = new ConcurrentLinkedQueue<>();
+
+    /** Messages the client rejected for a full window, published before the queue, oldest first **/
+    private final PriorityQueue<PendingPublish> rejected = new PriorityQueue<>(16, PendingPublish.BY_SEQUENCE);
+
+    /** Whether {@link #rejected} holds messages, read without its lock **/
+    private volatile boolean hasRejected = false;
+
+    /** Order in which messages are submitted **/
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** Set while publishing waits for the retry after a rejection **/
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+
+    /** Number of queued messages, kept apart since the queue's size is not constant time **/
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /** Number of publishes handed to the client and not completed yet **/
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** Number of requests to drain, only the thread that raises it from zero drains **/
+    private final AtomicInteger drainRequests = new AtomicInteger();
+
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /** Start of the current one second throughput interval, in milliseconds **/
+    private long intervalStart = System.currentTimeMillis();
+    /** Publishes completed in the current interval **/
+    private int intervalCount = 0;
+    /** Publishes completed in the last complete interval **/
+    private volatile int throughput = 0;
+
+    /** Resumes publishing once the connection is connected **/
+    private final PropertyChangeListener statusListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (Connection.ConnectionStatusProperty.equals(evt.getPropertyName()) && connection.isConnected()) {
+                drain();
+            }
+        }
+    };
+
+    private final Runnable retryTask = new Runnable() {
+        @Override
+        public void run() {
+            retryScheduled.set(false);
+            drain();
+        }
+    };
+
+    /**
+     * Creates a pipeline for a connection
+     * @param connection the connection messages are published through
+     * @param queueCapacity the number of messages that may wait for room in the window
+     */
+    public PublishPipeline(Connection connection, int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.connection = connection;
+        this.queueCapacity = queueCapacity;
+        connection.registerChangeListener(statusListener);
+    }
+
+    /**
+     * Queues a message for publishing
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @param callback notified when the publish completes or fails, may be null
+     * @return false if the queue is full and the message was not accepted
+     */
+    public boolean submit(String topic, MqttMessage message, IMqttActionListener callback) {
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            return false;
+        }
+        queue.offer(new PendingPublish(topic, message, callback, sequence.getAndIncrement()));
+        drain();
+        return true;
+    }
+
+    /**
+     * Takes the queued messages of some topics out of the pipeline, in the order they were
+     * submitted. Messages already handed to the client are not taken
+     * @param selector selects the topics whose messages are taken
+     * @return the messages taken
+     */
+    List<PendingPublish> takeQueued(TopicSelector selector) {
+        ArrayList<PendingPublish> taken = new ArrayList<>();
+        synchronized (rejected) {
+            for (Iterator<PendingPublish> it = rejected.iterator(); it.hasNext(); ) {
+                PendingPublish pending = it.next();
+                if (selector.selects(pending.topic)) {
+                    it.remove();
+                    taken.add(pending);
+                }
+            }
+            hasRejected = !rejected.isEmpty();
+        }
+        for (PendingPublish pending : queue) {
+            // the draining thread may have polled it in the meantime, then it is in flight here
+            if (selector.selects(pending.topic) && queue.remove(pending)) {
+                taken.add(pending);
+            }
+        }
+        queued.addAndGet(-taken.size());
+        Collections.sort(taken, PendingPublish.BY_SEQUENCE);
+        return taken;
+    }
+
+    /**
+     * Queues messages taken from another pipeline behind the queued ones, whatever the capacity
+     * since they were accepted once. They are published by the next {@link #drain()}
+     * @param taken the messages, in the order they were submitted
+     */
+    void handOver(List<PendingPublish> taken) {
+        for (PendingPublish pending : taken) {
+            queue.offer(new PendingPublish(pending, sequence.getAndIncrement()));
+        }
+        queued.addAndGet(taken.size());
+    }
+
+    /**
+     * Get the number of messages waiting for room in the window
+     * @return the queue depth
+     */
+    public int getQueueDepth() {
+        return queued.get();
+    }
+
+    /**
+     * Get the number of publishes currently in flight
+     * @return number of publishes not completed yet
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Get the number of publishes completed successfully
+     * @return number of published messages
+     */
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * Get the number of publishes that failed
+     * @return number of failed messages
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Get the number of publishes completed during the last complete second
+     * @return messages per second
+     */
+    public int getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Get the maximum number of publishes in flight, taken from the connection's connect options
+     * @return the size of the window
+     */
+    public int getWindowSize() {
+        MqttConnectOptions options = connection.getConnectionOptions();
+        return options != null ? options.getMaxInflight() : MqttConnectOptions.MAX_INFLIGHT_DEFAULT;
+    }
+
+    /**
+     * Publishes queued messages until the window is full. Concurrent callers coalesce into the
+     * thread already draining, which keeps going until no request is left
+     */
+    void drain() {
+        if (drainRequests.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            publishQueued();
+        } while (drainRequests.decrementAndGet() != 0);
+    }
+
+    private void publishQueued() {
+        int window = getWindowSize();
+        while (connection.isConnected() && inFlight.get() < window && !retryScheduled.get()) {
+            PendingPublish pending = poll();
+            if (pending == null) {
+                return;
+            }
+            queued.decrementAndGet();
+            inFlight.incrementAndGet();
+            try {
+                connection.getClient().publish(pending.topic, pending.message, pending, this);
+            } catch (MqttException e) {
+                inFlight.decrementAndGet();
+                if (isWindowFull(e)) {
+                    reject(pending);
+                    return;
+                }
+                Log.e(TAG, "Failed to publish to " + pending.topic, e);
+                fail(pending, null, e);
+            }
+        }
+    }
+
+    /**
+     * Takes the next message, rejected messages go first
+     */
+    private PendingPublish poll() {
+        if (hasRejected) {
+            synchronized (rejected) {
+                PendingPublish pending = rejected.poll();
+                hasRejected = !rejected.isEmpty();
+                if (pending != null) {
+                    return pending;
+                }
+            }
+        }
+        return queue.poll();
+    }
+
+    /**
+     * Determines if a publish failed because the client's window was full, the client reports it
+     * from the publish call or, for the Android client, through the publish token
+     */
+    private static boolean isWindowFull(Throwable exception) {
+        return exception instanceof MqttException
+                && ((MqttException) exception).getReasonCode() == MqttException.REASON_CODE_MAX_INFLIGHT;
+    }
+
+    /**
+     * Puts a rejected message back ahead of the queue, in the order it was submitted, and
+     * retries once the client had time to complete the publishes that fill its window.
+     * Their completions are not seen by the pipeline if they were made outside it
+     */
+    private void reject(PendingPublish pending) {
+        synchronized (rejected) {
+            rejected.add(pending);
+            hasRejected = true;
+        }
+        queued.incrementAndGet();
+        if (retryScheduled.compareAndSet(false, true)) {
+            retryScheduler.schedule(retryTask, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void onSuccess(IMqttToken asyncActionToken) {
+        PendingPublish pending = (PendingPublish) asyncActionToken.getUserContext();
+        inFlight.decrementAndGet();
+        publishedCount.incrementAndGet();
+        countCompletion();
+        if (pending.callback != null) {
+            pending.callback.onSuccess(asyncActionToken);
+        }
+        drain();
+    }
+
+    @Override
+    public void onFailure(IMqttToken asyncActionToken, Throwable exception) {
+        PendingPublish pending = (PendingPublish) asyncActionToken.getUserContext();
+        inFlight.decrementAndGet();
+        if (isWindowFull(exception)) {
+            // not lost, it is published again once the window has room
+            reject(pending);
+            return;
+        }
+        fail(pending, asyncActionToken, exception);
+        drain();
+    }
+
+    private void fail(PendingPublish pending, IMqttToken token, Throwable exception) {
+        failedCount.incrementAndGet();
+        if (pending.callback != null) {
+            pending.callback.onFailure(token, exception);
+        }
+    }
+
+    private synchronized void countCompletion() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - intervalStart;
+        if (elapsed >= 1000) {
+            // an interval with no completion at all reports zero
+            throughput = elapsed >= 2000 ? 0 : intervalCount;
+            intervalStart = now - (elapsed % 1000);
+            intervalCount = 0;
+        }
+        intervalCount++;
+    }
+
+    /**
+     * Selects the topics of the messages {@link #takeQueued(TopicSelector)} takes
+     */
+    interface TopicSelector {
+        boolean selects(String topic);
+    }
+
+    /**
+     * A message waiting to be published, it is the user context of its publish token
+     */
+    static final class PendingPublish {
+
+        static final Comparator<PendingPublish> BY_SEQUENCE = new Comparator<PendingPublish>() {
+            @Override
+            public int compare(PendingPublish a, PendingPublish b) {
+                return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+            }
+        };
+
+        final String topic;
+        final MqttMessage message;
+        final IMqttActionListener callback;
+        /** Time the message was queued, from {@link System#nanoTime()} **/
+        final long enqueuedAt;
+        /** Order in which the message was submitted to its pipeline **/
+        final long sequence;
+
+        PendingPublish(String topic, MqttMessage message, IMqttActionListener callback, long sequence) {
+            this.topic = topic;
+            this.message = message;
+            this.callback = callback;
+            this.enqueuedAt = System.nanoTime();
+            this.sequence = sequence;
+        }
+
+        /**
+         * Copies a message handed over from another pipeline, it keeps the time it was queued
+         */
+        PendingPublish(PendingPublish from, long sequence) {
+            this.topic = from.topic;
+            this.message = from.message;
+            this.callback = from.callback;
+            this.enqueuedAt = from.enqueuedAt;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.kozaris.android.k_mqtt;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Spreads outbound messages over a pool of {@link Connection}s to the same broker, so the
+ * publish throughput is not capped by the in-flight window of a single TCP connection.
+ *
+ * Topics are mapped onto the members with a consistent hash ring, so every message of a topic
+ * leaves through the same connection and keeps its order. A member whose status turns to
+ * {@link Connection.ConnectionStatus#ERROR} or {@link Connection.ConnectionStatus#DISCONNECTED}
+ * is taken out of the ring and only its topics move to the remaining members, they move back
+ * once it recovers.
+ *
+ * When topics move, the messages of those topics still queued in the pipeline of their previous
+ * member are handed to the new one before any newer message of the topics is published, so a
+ * topic keeps its order across the move. Messages the previous member's client already holds
+ * complete or fail there.
+ */
+public class PublishPool {
+
+    private static final String TAG = "PublishPool";
+
+    /** Number of points each member owns on the hash ring **/
+    static final int VIRTUAL_NODES = 64;
+
+    private final Context context;
+
+    private final List<Connection> members;
+
+    /** Ring of the healthy members, replaced whenever a member's status changes **/
+    private volatile Ring ring;
+
+    /** Held for reading by publishes and for writing while topics move between members **/
+    private final ReentrantReadWriteLock rebalanceLock = new ReentrantReadWriteLock();
+
+    private final PropertyChangeListener statusListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if (Connection.ConnectionStatusProperty.equals(evt.getPropertyName())) {
+                rebuildRing();
+            }
+        }
+    };
+
+    /**
+     * Creates a pool over existing connections
+     * @param context the application context
+     * @param members the connections to publish through, they must have distinct client ids
+     */
+    public PublishPool(Context context, List<Connection> members) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("A publish pool needs at least one connection");
+        }
+        this.context = context;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        for (Connection member : this.members) {
+            member.registerChangeListener(statusListener);
+        }
+        rebuildRing();
+    }
+
+    /**
+     * Creates a pool of new connections to a broker, the client id of each member is the
+     * prefix followed by its index
+     * @param context the application context
+     * @param clientIdPrefix prefix of the client ids
+     * @param host the broker host
+     * @param port the broker port
+     * @param tlsConnection true if the connections are secured by SSL
+     * @param connectOptions options used to connect every member
+     * @param size number of connections in the pool
+     * @return a pool of connections that are not connected yet, see {@link #connect()}
+     */
+    public static PublishPool create(Context context, String clientIdPrefix, String host, int port,
+                                     boolean tlsConnection, MqttConnectOptions connectOptions, int size) {
+        ArrayList<Connection> members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Connection connection = Connection.createConnection(clientIdPrefix + i, host, port, context, tlsConnection);
+            connection.addConnectionOptions(connectOptions);
+            members.add(connection);
+        }
+        return new PublishPool(context, members);
+    }
+
+    /**
+     * Connects every member that is not connected or connecting
+     * @throws MqttException if a member fails to start connecting
+     */
+    public void connect() throws MqttException {
+        for (Connection member : members) {
+            Connection.ConnectionStatus status = member.getStatus();
+            if (status == Connection.ConnectionStatus.CONNECTED || status == Connection.ConnectionStatus.CONNECTING) {
+                continue;
+            }
+            member.changeConnectionStatus(Connection.ConnectionStatus.CONNECTING);
+            member.getClient().setCallback(new MqttCallbackHandler(context, member));
+            member.getClient().connect(member.getConnectionOptions(), null,
+                    new ActionListener(context, ActionListener.Action.CONNECT, member));
+        }
+    }
+
+    /**
+     * Queues a message in the {@link PublishPipeline} of the member that owns its topic
+     * @param topic the topic to publish to
+     * @param message the message to publish
+     * @return false if the member's publish queue is full and the message was not accepted
+     */
+    public boolean publish(String topic, MqttMessage message) {
+        rebalanceLock.readLock().lock();
+        try {
+            return memberFor(topic).publish(topic, message);
+        } finally {
+            rebalanceLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Publishes a payload through the member that owns its topic
+     * @param topic the topic to publish to
+     * @param payload the payload of the message
+     * @param qos the qos of the message
+     * @param retained true if the broker should retain the message
+     * @return false if the member's publish queue is full and the message was not accepted
+     */
+    public boolean publish(String topic, byte[] payload, int qos, boolean retained) {
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        message.setRetained(retained);
+        return publish(topic, message);
+    }
+
+    /**
+     * Get the member a topic is currently published through
+     * @param topic the topic
+     * @return the member that owns the topic, a member is returned even if none is healthy
+     */
+    public Connection memberFor(String topic) {
+        return ring.lookup(mix(topic.hashCode()));
+    }
+
+    /**
+     * Get the members of the pool
+     * @return an unmodifiable list of the members
+     */
+    public List<Connection> getMembers() {
+        return members;
+    }
+
+    /**
+     * Get the number of members the ring currently publishes through
+     * @return number of healthy members
+     */
+    public int getHealthyCount() {
+        return ring.memberCount;
+    }
+
+    /**
+     * Determines if a member can take publishes
+     * @param member the member to check
+     * @return false if the member is in error or disconnected
+     */
+    static boolean isHealthy(Connection member) {
+        Connection.ConnectionStatus status = member.getStatus();
+        return status != Connection.ConnectionStatus.ERROR && status != Connection.ConnectionStatus.DISCONNECTED;
+    }
+
+    /**
+     * Rebuilds the ring from the healthy members, every member is used if none is healthy so that
+     * publishes wait in the members' pipelines until they reconnect. The queued messages of the
+     * topics that move are handed to their new member while no publish can run
+     */
+    private void rebuildRing() {
+        ArrayList<Connection> healthy = new ArrayList<>(members.size());
+        for (Connection member : members) {
+            if (isHealthy(member)) {
+                healthy.add(member);
+            }
+        }
+        if (healthy.isEmpty()) {
+            healthy.addAll(members);
+        }
+        HashMap<Connection, List<PublishPipeline.PendingPublish>> moved = new HashMap<>();
+        rebalanceLock.writeLock().lock();
+        try {
+            final Ring previous = ring;
+            if (previous != null && previous.members.equals(healthy)) {
+                return;
+            }
+            final Ring next = new Ring(healthy);
+            if (previous != null) {
+                for (final Connection member : previous.members) {
+                    List<PublishPipeline.PendingPublish> taken = member.getPublishPipeline().takeQueued(
+                            new PublishPipeline.TopicSelector() {
+                                @Override
+                                public boolean selects(String topic) {
+                                    return next.lookup(mix(topic.hashCode())) != member;
+                                }
+                            });
+                    for (PublishPipeline.PendingPublish pending : taken) {
+                        Connection owner = next.lookup(mix(pending.topic.hashCode()));
+                        List<PublishPipeline.PendingPublish> list = moved.get(owner);
+                        if (list == null) {
+                            list = new ArrayList<>();
+                            moved.put(owner, list);
+                        }
+                        list.add(pending);
+                    }
+                }
+                // the queued messages of a topic all sit with its previous owner, in the order they were taken
+                for (Map.Entry<Connection, List<PublishPipeline.PendingPublish>> entry : moved.entrySet()) {
+                    entry.getKey().getPublishPipeline().handOver(entry.getValue());
+                }
+                Log.i(TAG, "Rebalanced publish pool over " + next.memberCount + " of " + members.size() + " connections");
+            }
+            ring = next;
+        } finally {
+            rebalanceLock.writeLock().unlock();
+        }
+        // published outside the lock, the new owners already hold the moved messages
+        for (Connection owner : moved.keySet()) {
+            owner.getPublishPipeline().drain();
+        }
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits of a hash over the whole ring
+     */
+    static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * An immutable consistent hash ring
+     */
+    private static final class Ring {
+
+        /** Sorted positions of the virtual nodes **/
+        final int[] points;
+
+        /** Owner of the virtual node at the same index in {@link #points} **/
+        final Connection[] owners;
+
+        final int memberCount;
+
+        /** The members on the ring, in the order of the pool **/
+        final List<Connection> members;
+
+        Ring(List<Connection> ringMembers) {
+            members = ringMembers;
+            memberCount = ringMembers.size();
+            int size = memberCount * VIRTUAL_NODES;
+            long[] entries = new long[size];
+            int n = 0;
+            for (int m = 0; m < memberCount; m++) {
+                // the position of a member's points only depends on its client id, so they do not
+                // move when other members leave or join the ring
+                int seed = ringMembers.get(m).getId().hashCode();
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    int point = mix(seed * 31 + v);
+                    // sort on the point, keep the member index in the low bits
+                    entries[n++] = ((long) point << 32) | m;
+                }
+            }
+            Arrays.sort(entries);
+            points = new int[size];
+            owners = new Connection[size];
+            for (int i = 0; i < size; i++) {
+                points[i] = (int) (entries[i] >> 32);
+                owners[i] = ringMembers.get((int) entries[i]);
+            }
+        }
+
+        Connection lookup(int hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+}
@@ -2,37 +2,274 @@ package com.kozaris.android.k_mqtt;
 
 import org.eclipse.paho.client.mqttv3.MqttMessage;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A message received by a {@link Connection}.
+ *
+ * The payload is kept as raw bytes and only decoded when a string is asked for, it can also be
+ * read through a {@link ByteBuffer} view without a copy. The timestamp is kept as milliseconds
+ * since the epoch.
+ *
+ * Instances may come from a pool, see {@link #obtain(String, MqttMessage)}. When a
+ * {@link Connection} recycles messages, a listener that keeps a message past
+ * {@link Connection.IReceivedMessageListener#onMessageReceived(ReceivedMessage)} must call
+ * {@link #retain()} and later {@link #recycle()}.
+ */
 public class ReceivedMessage {
+
+    /** Charset used to decode payloads by default **/
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    /** Maximum number of recycled instances kept for reuse **/
+    private static final int MAX_POOL_SIZE = 64;
+
+    private static final Object poolLock = new Object();
+    private static ReceivedMessage pool = null;
+    private static int poolSize = 0;
+
+    /** Number of instances created because the pool was empty **/
+    private static final AtomicLong poolMissCount = new AtomicLong();
+
+    /** Number of payload views created **/
+    private static final AtomicLong payloadViewCount = new AtomicLong();
+
+    private static final AtomicIntegerFieldUpdater<ReceivedMessage> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(ReceivedMessage.class, "references");
+
+    private String topic;
+    private MqttMessage message;
+    private long timestamp;
+
+    /** Payload decoded with {@link #DEFAULT_CHARSET}, null until asked for **/
+    private String payloadString = null;
+
+    /** Codec the payload is decoded with, null if it is not encoded **/
+    private PayloadCodec codec = null;
+
+    /** Payload decoded by the codec, null until asked for **/
+    private byte[] decodedPayload = null;
+
+    /** Read only view of the payload, null until asked for **/
+    private ByteBuffer payloadView = null;
+
+    /** Number of owners of a pooled instance, it returns to the pool when it drops to zero **/
+    private volatile int references = 0;
+
+    /** Whether this instance came from {@link #obtain(String, MqttMessage)} **/
+    private boolean pooled = false;
+
+    /** Next instance in the pool **/
+    private ReceivedMessage next = null;
+
     public ReceivedMessage(String topic, MqttMessage message) {
+        this(topic, message, System.currentTimeMillis());
+    }
+
+    ReceivedMessage(String topic, MqttMessage message, long timestamp) {
         this.topic = topic;
         this.message = message;
-        this.timestamp = new Date();
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Get a message from the pool, or a new one if the pool is empty.
+     * The caller owns one reference to it and releases it with {@link #recycle()}
+     * @param topic the topic the message arrived on
+     * @param message the message
+     * @return a message stamped with the current time
+     */
+    public static ReceivedMessage obtain(String topic, MqttMessage message) {
+        ReceivedMessage m = null;
+        synchronized (poolLock) {
+            if (pool != null) {
+                m = pool;
+                pool = m.next;
+                m.next = null;
+                poolSize--;
+            }
+        }
+        if (m == null) {
+            poolMissCount.incrementAndGet();
+            m = new ReceivedMessage(topic, message);
+        } else {
+            m.topic = topic;
+            m.message = message;
+            m.timestamp = System.currentTimeMillis();
+        }
+        m.pooled = true;
+        m.references = 1;
+        return m;
+    }
+
+    /**
+     * Adds an owner to a pooled message so it is not reused while the owner keeps it
+     * @return this message
+     */
+    public ReceivedMessage retain() {
+        if (pooled) {
+            REFERENCES.incrementAndGet(this);
+        }
+        return this;
     }
 
-    private final String topic;
-    private final MqttMessage message;
-    private final Date timestamp;
+    /**
+     * Releases an owner of a pooled message, the last owner returns it to the pool.
+     * The message must not be used by the caller afterwards. Has no effect on messages
+     * that were not obtained from the pool
+     */
+    public void recycle() {
+        if (!pooled || REFERENCES.decrementAndGet(this) != 0) {
+            return;
+        }
+        topic = null;
+        message = null;
+        payloadString = null;
+        payloadView = null;
+        codec = null;
+        decodedPayload = null;
+        pooled = false;
+        synchronized (poolLock) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
 
     public String getTopic() {
         return topic;
     }
 
+    /**
+     * Get the message as it was received, its payload is still encoded if the message matched
+     * a {@link Subscription} with a codec
+     * @return the received message
+     */
     public MqttMessage getMessage() {
         return message;
     }
 
-    public Date getTimestamp() {
+    /**
+     * Get the payload of the message. A payload encoded by the codec of its subscription is
+     * decoded on the first call only, otherwise the array of the message is returned as is
+     * @return the payload bytes
+     */
+    public byte[] getPayload() {
+        byte[] raw = message.getPayload();
+        if (codec == null) {
+            return raw;
+        }
+        byte[] decoded = decodedPayload;
+        if (decoded == null) {
+            decoded = PayloadCodecs.decode(raw, codec);
+            decodedPayload = decoded;
+        }
+        return decoded;
+    }
+
+    /**
+     * Get the codec the payload is decoded with
+     * @return the codec of the subscription the message matched, or null
+     */
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Set the codec the payload is decoded with, it is only decoded once the payload is read
+     * @param codec the codec, or null if the payload is not encoded
+     */
+    void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Get a read only view of the payload, the payload is not copied. Every call returns its own
+     * buffer over the whole payload, so listeners of the same message do not move each other's
+     * position
+     * @return a read only buffer over the payload bytes
+     */
+    public ByteBuffer getPayloadBuffer() {
+        ByteBuffer view = payloadView;
+        if (view == null) {
+            payloadViewCount.incrementAndGet();
+            view = ByteBuffer.wrap(getPayload()).asReadOnlyBuffer();
+            payloadView = view;
+        }
+        return view.duplicate();
+    }
+
+    /**
+     * Get the number of messages allocated because the pool was empty, it stays flat once the
+     * pool has warmed up
+     * @return number of pool misses since the process started
+     */
+    public static long getPoolMissCount() {
+        return poolMissCount.get();
+    }
+
+    /**
+     * Get the number of payload views created by {@link #getPayloadBuffer()}, none of them
+     * copies its payload
+     * @return number of views since the process started
+     */
+    public static long getPayloadViewCount() {
+        return payloadViewCount.get();
+    }
+
+    /**
+     * Get the payload decoded with {@link #DEFAULT_CHARSET}, decoded on the first call only
+     * @return the payload as a string
+     */
+    public String getPayloadString() {
+        String s = payloadString;
+        if (s == null) {
+            s = new String(getPayload(), DEFAULT_CHARSET);
+            payloadString = s;
+        }
+        return s;
+    }
+
+    /**
+     * Get the payload decoded with a charset, decoded on every call
+     * @param charset the charset of the payload
+     * @return the payload as a string
+     */
+    public String getPayloadString(Charset charset) {
+        if (DEFAULT_CHARSET.equals(charset)) {
+            return getPayloadString();
+        }
+        return new String(getPayload(), charset);
+    }
+
+    /**
+     * Get the time the message was received, in milliseconds since the epoch
+     * @return the receive time
+     */
+    public long getTimestampMillis() {
         return timestamp;
     }
 
+    /**
+     * Get the time the message was received, a new {@link Date} is created on every call
+     * @return the receive time
+     */
+    public Date getTimestamp() {
+        return new Date(timestamp);
+    }
+
     @Override
     public String toString() {
         return "ReceivedMessage{" +
                 "topic='" + topic + '\'' +
                 ", message=" + message +
-                ", timestamp=" + timestamp +
+                ", timestamp=" + getTimestamp() +
                 '}';
     }
-}
\ No newline at end of file
+}
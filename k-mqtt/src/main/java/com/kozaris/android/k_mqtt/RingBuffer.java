@@ -0,0 +1,147 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed capacity ring buffer that keeps the most recent elements written to it,
+ * overwriting the oldest one once it is full.
+ *
+ * It is meant to be written by a single thread, such as the Paho callback thread, which
+ * never locks: each write claims a sequence number and stamps its slot with it.
+ * Any thread may take a {@link #snapshot()}, which validates every slot against the stamp
+ * it expects, so a snapshot is always a consistent, ordered window even while the writer
+ * is overwriting the buffer.
+ *
+ * @param <E> the type of the elements held in the buffer
+ */
+public class RingBuffer<E> {
+
+    /** Stamp of a slot whose element is being replaced **/
+    private static final long WRITING = -1L;
+
+    private final AtomicReferenceArray<E> slots;
+
+    /** Sequence number of the element held in each slot **/
+    private final AtomicLongArray stamps;
+
+    /** Sequence number the next write will claim **/
+    private final AtomicLong writeSequence = new AtomicLong();
+
+    /** Elements with a lower sequence number than this have been cleared **/
+    private volatile long clearedSequence = 0;
+
+    private final int mask;
+
+    /**
+     * Creates a ring buffer
+     * @param capacity the number of elements to keep, rounded up to the next power of two
+     */
+    public RingBuffer(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(size);
+        stamps = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            stamps.set(i, WRITING);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Appends an element, overwriting the oldest one if the buffer is full
+     * @param element the element to append
+     */
+    public void add(E element) {
+        long sequence = writeSequence.getAndIncrement();
+        int index = (int) sequence & mask;
+        stamps.set(index, WRITING);
+        slots.set(index, element);
+        stamps.set(index, sequence);
+    }
+
+    /**
+     * Takes a consistent copy of the elements currently held, oldest first.
+     * Elements overwritten while the copy is taken are left out.
+     * @return an unmodifiable list of the buffered elements
+     */
+    public List<E> snapshot() {
+        long end = writeSequence.get();
+        long start = Math.max(Math.max(0, end - slots.length()), clearedSequence);
+        Object[] copy = new Object[(int) (end - start)];
+        int count = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int index = (int) sequence & mask;
+            if (stamps.get(index) != sequence) {
+                // overwritten by a newer write or not published yet
+                continue;
+            }
+            E element = slots.get(index);
+            if (stamps.get(index) == sequence) {
+                copy[count++] = element;
+            }
+        }
+        return new SnapshotList<>(copy, count);
+    }
+
+    /**
+     * Get the number of elements currently held
+     * @return number of buffered elements
+     */
+    public int size() {
+        long end = writeSequence.get();
+        return (int) Math.min(slots.length(), end - Math.min(end, clearedSequence));
+    }
+
+    /**
+     * Get the maximum number of elements this buffer holds
+     * @return the capacity of the buffer
+     */
+    public int capacity() {
+        return slots.length();
+    }
+
+    /**
+     * Discards every element written so far
+     */
+    public void clear() {
+        clearedSequence = writeSequence.get();
+    }
+
+    /**
+     * Read only list over a snapshot array
+     */
+    private static final class SnapshotList<E> extends AbstractList<E> implements RandomAccess {
+
+        private final Object[] elements;
+        private final int size;
+
+        SnapshotList(Object[] elements, int size) {
+            this.elements = elements;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            }
+            return (E) elements[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
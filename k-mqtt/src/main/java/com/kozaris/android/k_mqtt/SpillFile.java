@@ -0,0 +1,143 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A first in first out file of received messages, used to hold the messages a
+ * {@link BoundedMessageQueue} has no room for. The file is truncated every time it has
+ * been read completely so it only grows while a backlog exists.
+ *
+ * Not thread safe, the owning queue serialises access to it.
+ */
+class SpillFile {
+
+    private final File file;
+
+    private RandomAccessFile raf = null;
+
+    /** Offset of the next record to read **/
+    private long readPosition = 0;
+
+    /** Offset the next record is written at **/
+    private long writePosition = 0;
+
+    /** Number of records written and not read yet **/
+    private int count = 0;
+
+    /** Record serialisation buffer, reused for every write **/
+    private final RecordBuffer recordBuffer = new RecordBuffer();
+    private final DataOutputStream recordOut = new DataOutputStream(recordBuffer);
+
+    SpillFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Appends a message to the file
+     * @param message the message to append
+     * @throws IOException if the message could not be written
+     */
+    void write(ReceivedMessage message) throws IOException {
+        if (raf == null) {
+            raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+        }
+        MqttMessage mqttMessage = message.getMessage();
+        byte[] payload = mqttMessage.getPayload();
+        recordBuffer.reset();
+        recordOut.writeUTF(message.getTopic());
+        recordOut.writeLong(message.getTimestampMillis());
+        recordOut.writeByte(mqttMessage.getQos());
+        recordOut.writeBoolean(mqttMessage.isRetained());
+        // the payload is written as received, a registered codec decodes it once read back
+        PayloadCodec codec = message.getCodec();
+        recordOut.writeByte(codec != null ? codec.getId() : 0);
+        recordOut.writeInt(payload.length);
+        recordOut.write(payload);
+        recordOut.flush();
+        raf.seek(writePosition);
+        raf.write(recordBuffer.array(), 0, recordBuffer.size());
+        writePosition += recordBuffer.size();
+        count++;
+    }
+
+    /**
+     * Reads the oldest message of the file
+     * @return the oldest message or null if the file is empty
+     * @throws IOException if the message could not be read
+     */
+    ReceivedMessage read() throws IOException {
+        if (count == 0) {
+            return null;
+        }
+        raf.seek(readPosition);
+        String topic = raf.readUTF();
+        long timestamp = raf.readLong();
+        int qos = raf.readByte();
+        boolean retained = raf.readBoolean();
+        int codecId = raf.readByte();
+        byte[] payload = new byte[raf.readInt()];
+        raf.readFully(payload);
+        readPosition = raf.getFilePointer();
+        count--;
+        if (count == 0) {
+            // fully drained, start over so the file does not keep growing
+            readPosition = 0;
+            writePosition = 0;
+            raf.setLength(0);
+        }
+        MqttMessage mqttMessage = new MqttMessage(payload);
+        mqttMessage.setQos(qos);
+        mqttMessage.setRetained(retained);
+        ReceivedMessage message = new ReceivedMessage(topic, mqttMessage, timestamp);
+        message.setCodec(PayloadCodecs.get(codecId));
+        return message;
+    }
+
+    /**
+     * Get the number of messages waiting in the file
+     * @return number of spilled messages
+     */
+    int size() {
+        return count;
+    }
+
+    /**
+     * Discards every message and deletes the file
+     */
+    void close() {
+        count = 0;
+        readPosition = 0;
+        writePosition = 0;
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+            raf = null;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    /**
+     * Byte array stream that exposes its array so a record is written to the file in one call
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+
+        RecordBuffer() {
+            super(256);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+}
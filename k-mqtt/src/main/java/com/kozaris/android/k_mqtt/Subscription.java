@@ -9,9 +9,16 @@ public class Subscription {
     private String topic;
     private int qos;
     private String lastMessage;
+    /** Payload of the last message, decoded into {@link #lastMessage} when it is asked for **/
+    private byte[] lastPayload;
     private String clientId;
     private long persistenceId;
     private boolean enableNotifications;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    /** Codec the payloads of this subscription are encoded with, null if they are not **/
+    private PayloadCodec codec;
+    /** Where the received messages of this subscription are stored **/
+    private MessageStorage storage = MessageStorage.DATABASE;
 
     public Subscription(String topic, int qos, String clientId, boolean enableNotifications){
         this.topic = topic;
@@ -47,12 +54,26 @@ public class Subscription {
     /**
     * @return lastMessage
     */
-    public String getLastMessage() {
+    public synchronized String getLastMessage() {
+        if (lastMessage == null && lastPayload != null) {
+            byte[] payload = codec != null ? PayloadCodecs.decode(lastPayload, codec) : lastPayload;
+            lastMessage = new String(payload, ReceivedMessage.DEFAULT_CHARSET);
+        }
         return lastMessage;
     }
 
-    public void setLastMessage(String lastMessage) {
+    public synchronized void setLastMessage(String lastMessage) {
         this.lastMessage = lastMessage;
+        this.lastPayload = null;
+    }
+
+    /**
+    * Set the payload of the last message, it is only decoded by {@link #getLastMessage()}
+    * @param payload the raw payload
+    */
+    synchronized void setLastPayload(byte[] payload) {
+        this.lastPayload = payload;
+        this.lastMessage = null;
     }
 
     public String getclientId() {
@@ -75,6 +96,52 @@ public class Subscription {
         return enableNotifications;
     }
 
+    /**
+    * @return where the received messages of this subscription are stored
+    */
+    public MessageStorage getStorage() {
+        return storage;
+    }
+
+    /**
+    * Set where the received messages of this subscription are stored, the storage has to be
+    * enabled on the {@link Connection}. A message meant for the journal goes to the database
+    * while the journal is not enabled. The storage is not persisted
+    * @param storage the storage
+    */
+    public void setStorage(MessageStorage storage) {
+        this.storage = storage;
+    }
+
+    /**
+    * @return what happens to messages of this subscription when the inbound queue is full
+    */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+    * @return the codec the payloads of this subscription are decoded with, or null
+    */
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    /**
+    * Set the codec the payloads of this subscription are decoded with. Payloads are only decoded
+    * when they are read, and payloads sent without a codec header are left as they are.
+    * The codec is not persisted
+    * @param codec the codec, or null to read payloads as they are received
+    */
+    public synchronized void setCodec(PayloadCodec codec) {
+        this.codec = codec;
+        this.lastMessage = null;
+    }
+
 
     @Override
     public String toString() {
@@ -0,0 +1,34 @@
+package com.kozaris.android.k_mqtt;
+
+/**
+ * Source of periodic ticks used to pace the delivery of received messages to a consumer,
+ * such as a UI that only needs to be updated once per frame.
+ *
+ * Implementations can be replaced by a fake that ticks on demand, so paced delivery can be
+ * driven by a test without a real clock.
+ */
+public interface TickSource {
+
+    /**
+     * Starts ticking, each tick is reported to the callback on the thread owned by the source
+     * @param callback the callback to notify
+     */
+    void start(Callback callback);
+
+    /**
+     * Stops ticking, no tick is reported once this method returns on the ticking thread
+     */
+    void stop();
+
+    /**
+     * Receives the ticks of a {@link TickSource}
+     */
+    interface Callback {
+
+        /**
+         * Called on every tick
+         * @param timeNanos the time of the tick in nanoseconds, in the time base of the source
+         */
+        void onTick(long timeNanos);
+    }
+}
@@ -0,0 +1,461 @@
+package com.kozaris.android.k_mqtt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A topic-level trie that indexes MQTT topic filters and resolves every filter
+ * matching a concrete topic name.
+ *
+ * Each level of a filter is stored once as a node segment, so filters that share
+ * a prefix share the nodes for that prefix. The single level wildcard <code>+</code> and the
+ * multi level wildcard <code>#</code> are kept in dedicated slots on each node, which makes
+ * a lookup cost proportional to the depth of the topic and not to the number of filters.
+ *
+ * Lookups walk the topic in place and do not allocate, matches are appended to a
+ * caller supplied list so the hot receive path can reuse it.
+ *
+ * @param <T> the value associated with each topic filter
+ */
+public class TopicTrie<T> {
+
+    /** Topic level separator **/
+    static final char SEPARATOR = '/';
+
+    /** Single level wildcard **/
+    static final String SINGLE_LEVEL_WILDCARD = "+";
+
+    /** Multi level wildcard **/
+    static final String MULTI_LEVEL_WILDCARD = "#";
+
+    /** Root of the trie, it holds no segment **/
+    private final Node<T> root = new Node<>(null);
+
+    /** Number of filters that currently have a value **/
+    private int size = 0;
+
+    /**
+     * Lookups take the read lock, so the threads that deliver and publish messages match topics
+     * concurrently. Filters change rarely and take the write lock
+     **/
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Associates a value with a topic filter, replacing any previous value
+     * @param topicFilter the topic filter, may contain <code>+</code> and <code>#</code> wildcards
+     * @param value the value to store, must not be null
+     * @return the previous value of the filter or null if there was none
+     */
+    public T put(String topicFilter, T value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Value must not be null");
+        }
+        lock.writeLock().lock();
+        try {
+            Node<T> node = root;
+            int start = 0;
+            int length = topicFilter.length();
+            while (true) {
+                int end = topicFilter.indexOf(SEPARATOR, start);
+                if (end == -1) {
+                    end = length;
+                }
+                node = node.getOrCreateChild(topicFilter, start, end);
+                if (end == length) {
+                    break;
+                }
+                start = end + 1;
+            }
+            T previous = node.value;
+            node.value = value;
+            if (previous == null) {
+                size++;
+            }
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the value stored for an exact topic filter, wildcards are not expanded
+     * @param topicFilter the topic filter
+     * @return the value of the filter or null if there is none
+     */
+    public T get(String topicFilter) {
+        lock.readLock().lock();
+        try {
+            Node<T> node = findNode(topicFilter);
+            return node == null ? null : node.value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Determines if a value is stored for an exact topic filter
+     * @param topicFilter the topic filter
+     * @return true if the filter has a value
+     */
+    public boolean containsKey(String topicFilter) {
+        return get(topicFilter) != null;
+    }
+
+    /**
+     * Removes the value of a topic filter and prunes the nodes that are left empty
+     * @param topicFilter the topic filter to remove
+     * @return the removed value or null if the filter had no value
+     */
+    public T remove(String topicFilter) {
+        lock.writeLock().lock();
+        try {
+            ArrayList<Node<T>> path = new ArrayList<>();
+            Node<T> node = root;
+            int start = 0;
+            int length = topicFilter.length();
+            while (true) {
+                int end = topicFilter.indexOf(SEPARATOR, start);
+                if (end == -1) {
+                    end = length;
+                }
+                path.add(node);
+                node = node.getChild(topicFilter, start, end);
+                if (node == null) {
+                    return null;
+                }
+                if (end == length) {
+                    break;
+                }
+                start = end + 1;
+            }
+            T previous = node.value;
+            if (previous == null) {
+                return null;
+            }
+            node.value = null;
+            size--;
+            // prune empty branches bottom up
+            for (int i = path.size() - 1; i >= 0 && node.isEmpty(); i--) {
+                Node<T> parent = path.get(i);
+                parent.removeChild(node);
+                node = parent;
+            }
+            return previous;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the values of every filter that matches a topic name
+     * @param topic the topic name a message was published to, must not contain wildcards
+     * @param out list the matching values are appended to
+     * @return the number of values appended to <code>out</code>
+     */
+    public int match(String topic, List<T> out) {
+        lock.readLock().lock();
+        try {
+            int before = out.size();
+            // topics starting with $ are not matched by wildcards at the first level
+            boolean systemTopic = topic.length() > 0 && topic.charAt(0) == '$';
+            collect(root, topic, 0, systemTopic, out);
+            return out.size() - before;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collects the values of every filter that matches a topic name
+     * @param topic the topic name a message was published to
+     * @return a new list of matching values
+     */
+    public List<T> match(String topic) {
+        ArrayList<T> out = new ArrayList<>();
+        match(topic, out);
+        return out;
+    }
+
+    /**
+     * Get every value stored in the trie
+     * @return a new list holding every stored value
+     */
+    public ArrayList<T> values() {
+        lock.readLock().lock();
+        try {
+            ArrayList<T> out = new ArrayList<>(size);
+            collectAll(root, out);
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of filters stored in the trie
+     * @return number of filters with a value
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes every filter from the trie
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            root.clear();
+            size = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Node<T> findNode(String topicFilter) {
+        Node<T> node = root;
+        int start = 0;
+        int length = topicFilter.length();
+        while (node != null) {
+            int end = topicFilter.indexOf(SEPARATOR, start);
+            if (end == -1) {
+                end = length;
+            }
+            node = node.getChild(topicFilter, start, end);
+            if (end == length) {
+                break;
+            }
+            start = end + 1;
+        }
+        return node;
+    }
+
+    private void collect(Node<T> node, String topic, int start, boolean systemTopic, List<T> out) {
+        boolean wildcardsAllowed = !(systemTopic && start == 0);
+        // '#' also matches the parent level, so it is checked before the level is consumed
+        if (wildcardsAllowed && node.multiLevel != null && node.multiLevel.value != null) {
+            out.add(node.multiLevel.value);
+        }
+        int end = topic.indexOf(SEPARATOR, start);
+        boolean last = end == -1;
+        if (last) {
+            end = topic.length();
+        }
+        Node<T> exact = node.getChild(topic, start, end);
+        if (exact != null) {
+            if (last) {
+                addLeaf(exact, out);
+            } else {
+                collect(exact, topic, end + 1, systemTopic, out);
+            }
+        }
+        if (wildcardsAllowed && node.singleLevel != null) {
+            if (last) {
+                addLeaf(node.singleLevel, out);
+            } else {
+                collect(node.singleLevel, topic, end + 1, systemTopic, out);
+            }
+        }
+    }
+
+    /**
+     * Adds the value of a node matched by the last topic level as well as a trailing
+     * <code>#</code> below it, since "a/#" also matches "a"
+     */
+    private void addLeaf(Node<T> node, List<T> out) {
+        if (node.value != null) {
+            out.add(node.value);
+        }
+        if (node.multiLevel != null && node.multiLevel.value != null) {
+            out.add(node.multiLevel.value);
+        }
+    }
+
+    private void collectAll(Node<T> node, List<T> out) {
+        if (node.value != null) {
+            out.add(node.value);
+        }
+        if (node.singleLevel != null) {
+            collectAll(node.singleLevel, out);
+        }
+        if (node.multiLevel != null) {
+            collectAll(node.multiLevel, out);
+        }
+        Node<T>[] table = node.children;
+        if (table != null) {
+            for (Node<T> child : table) {
+                if (child != null) {
+                    collectAll(child, out);
+                }
+            }
+        }
+    }
+
+    /**
+     * A single topic level. Literal children are kept in an open addressing table that is
+     * probed with a region of the topic string, so a lookup never creates a substring.
+     */
+    private static final class Node<T> {
+
+        /** Initial capacity of the child table, must be a power of two **/
+        private static final int INITIAL_CAPACITY = 4;
+
+        /** The level this node represents, shared by every filter passing through it **/
+        final String segment;
+
+        /** Hash of {@link #segment} **/
+        final int hash;
+
+        /** Value of the filter that ends at this node **/
+        T value;
+
+        /** Child for the <code>+</code> wildcard **/
+        Node<T> singleLevel;
+
+        /** Child for the <code>#</code> wildcard **/
+        Node<T> multiLevel;
+
+        /** Literal children, lazily created **/
+        Node<T>[] children;
+
+        /** Number of literal children **/
+        int childCount;
+
+        Node(String segment) {
+            this.segment = segment;
+            this.hash = segment == null ? 0 : hash(segment, 0, segment.length());
+        }
+
+        Node<T> getChild(String topic, int start, int end) {
+            int length = end - start;
+            if (length == 1) {
+                char c = topic.charAt(start);
+                if (c == '+') {
+                    return singleLevel;
+                } else if (c == '#') {
+                    return multiLevel;
+                }
+            }
+            return findLiteral(topic, start, end);
+        }
+
+        Node<T> getOrCreateChild(String topicFilter, int start, int end) {
+            int length = end - start;
+            if (length == 1) {
+                char c = topicFilter.charAt(start);
+                if (c == '+') {
+                    if (singleLevel == null) {
+                        singleLevel = new Node<>(SINGLE_LEVEL_WILDCARD);
+                    }
+                    return singleLevel;
+                } else if (c == '#') {
+                    if (end != topicFilter.length()) {
+                        throw new IllegalArgumentException("'#' must be the last level of a topic filter: " + topicFilter);
+                    }
+                    if (multiLevel == null) {
+                        multiLevel = new Node<>(MULTI_LEVEL_WILDCARD);
+                    }
+                    return multiLevel;
+                }
+            }
+            Node<T> child = findLiteral(topicFilter, start, end);
+            if (child == null) {
+                child = new Node<>(topicFilter.substring(start, end));
+                insertLiteral(child);
+            }
+            return child;
+        }
+
+        void removeChild(Node<T> child) {
+            if (child == singleLevel) {
+                singleLevel = null;
+            } else if (child == multiLevel) {
+                multiLevel = null;
+            } else if (children != null) {
+                // rebuild the table without the child, removals are rare compared to lookups
+                Node<T>[] old = children;
+                children = newTable(old.length);
+                childCount = 0;
+                for (Node<T> n : old) {
+                    if (n != null && n != child) {
+                        insertLiteral(n);
+                    }
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return value == null && singleLevel == null && multiLevel == null && childCount == 0;
+        }
+
+        void clear() {
+            value = null;
+            singleLevel = null;
+            multiLevel = null;
+            children = null;
+            childCount = 0;
+        }
+
+        private Node<T> findLiteral(String topic, int start, int end) {
+            Node<T>[] table = children;
+            if (table == null) {
+                return null;
+            }
+            int length = end - start;
+            int h = hash(topic, start, end);
+            int mask = table.length - 1;
+            for (int i = h & mask; ; i = (i + 1) & mask) {
+                Node<T> n = table[i];
+                if (n == null) {
+                    return null;
+                }
+                if (n.hash == h && n.segment.length() == length
+                        && topic.regionMatches(start, n.segment, 0, length)) {
+                    return n;
+                }
+            }
+        }
+
+        private void insertLiteral(Node<T> child) {
+            if (children == null) {
+                children = newTable(INITIAL_CAPACITY);
+            } else if ((childCount + 1) * 4 > children.length * 3) {
+                Node<T>[] old = children;
+                children = newTable(old.length << 1);
+                childCount = 0;
+                for (Node<T> n : old) {
+                    if (n != null) {
+                        insertLiteral(n);
+                    }
+                }
+            }
+            int mask = children.length - 1;
+            int i = child.hash & mask;
+            while (children[i] != null) {
+                i = (i + 1) & mask;
+            }
+            children[i] = child;
+            childCount++;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newTable(int capacity) {
+            return (Node<T>[]) new Node<?>[capacity];
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + s.charAt(i);
+            }
+            // spread the high bits, the table is indexed with the low bits only
+            return h ^ (h >>> 16);
+        }
+    }
+}
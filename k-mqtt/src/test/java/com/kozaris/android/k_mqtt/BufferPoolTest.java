@@ -0,0 +1,104 @@
+package com.kozaris.android.k_mqtt;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    private static final int ROUNDS = 1000;
+    private static final int PUBLISHES_PER_ROUND = 4;
+    private static final int FRAME_BYTES = 256;
+
+    private static final PublishPipeline.TopicSelector ALL = new PublishPipeline.TopicSelector() {
+        @Override
+        public boolean selects(String topic) {
+            return true;
+        }
+    };
+
+    private Connection connection;
+
+    @Before
+    public void setUp() {
+        // never connected, so publishes stay queued until the test completes them
+        connection = Connection.createConnection("pool", "localhost", 1883, null, false);
+        connection.setHistoryCapacity(0);
+    }
+
+    /**
+     * Completes the queued publishes as the broker acknowledging them would
+     */
+    private void acknowledgeQueued() {
+        List<PublishPipeline.PendingPublish> queued = connection.getPublishPipeline().takeQueued(ALL);
+        for (PublishPipeline.PendingPublish pending : queued) {
+            pending.callback.onSuccess(null);
+        }
+    }
+
+    @Test
+    public void directBuffersReuseThePooledArrays() {
+        ByteBuffer frame = ByteBuffer.allocateDirect(FRAME_BYTES);
+        BufferPool pool = connection.getBufferPool();
+        for (int round = 0; round < ROUNDS; round++) {
+            for (int i = 0; i < PUBLISHES_PER_ROUND; i++) {
+                frame.clear();
+                frame.putInt(round).putInt(i).position(0);
+                assertTrue(connection.publish("frames/" + i, frame, 1, false));
+                assertEquals(0, frame.position());
+            }
+            acknowledgeQueued();
+        }
+        int publishes = ROUNDS * PUBLISHES_PER_ROUND;
+        // one copy per direct buffer, and only the first round allocates
+        assertEquals(publishes, pool.getCopyCount());
+        assertEquals((long) publishes * FRAME_BYTES, pool.getCopiedBytes());
+        assertTrue("allocations: " + pool.getAllocationCount(), pool.getAllocationCount() <= PUBLISHES_PER_ROUND);
+        assertEquals(publishes, pool.getAllocationCount() + pool.getReuseCount());
+        assertEquals(PUBLISHES_PER_ROUND * FRAME_BYTES, pool.getPooledBytes());
+    }
+
+    @Test
+    public void wholeHeapArraysAreNotCopied() {
+        BufferPool pool = connection.getBufferPool();
+        for (int i = 0; i < ROUNDS; i++) {
+            assertTrue(connection.publish("frames", ByteBuffer.wrap(new byte[FRAME_BYTES]), 0, false));
+        }
+        acknowledgeQueued();
+        assertEquals(0, pool.getCopyCount());
+        assertEquals(0, pool.getAllocationCount());
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void arraysAreReusedByExactLength() {
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_MAX_POOLED_BYTES);
+        byte[] first = pool.acquire(100);
+        pool.release(first);
+        assertNotSame(first, pool.acquire(101));
+        assertSame(first, pool.acquire(100));
+        assertEquals(2, pool.getAllocationCount());
+        assertEquals(1, pool.getReuseCount());
+    }
+
+    @Test
+    public void pooledArraysStayWithinTheLimits() {
+        BufferPool pool = new BufferPool(64 * 1024);
+        for (int i = 0; i < 2 * BufferPool.MAX_BUFFERS_PER_LENGTH; i++) {
+            pool.release(new byte[FRAME_BYTES]);
+        }
+        assertEquals(BufferPool.MAX_BUFFERS_PER_LENGTH * FRAME_BYTES, pool.getPooledBytes());
+
+        for (int i = 0; i < 10; i++) {
+            pool.release(new byte[16 * 1024]);
+        }
+        assertTrue(pool.getPooledBytes() <= 64 * 1024);
+    }
+}
@@ -0,0 +1,89 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers messages from several connections at once, each benchmark thread is the callback
+ * thread of its own connection.
+ *
+ * <code>boundHandler</code> goes through {@link MqttCallbackHandler}, bound to its connection.
+ * <code>globalLookup</code> first resolves the connection through a static synchronized method,
+ * as every message and ack did through <code>MqttClient.getInstance(context).getConnection()</code>
+ * before handlers were bound. Run with {@link #main(String[])} from the test classpath.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CallbackContentionBenchmark {
+
+    private static final AtomicInteger connectionCount = new AtomicInteger();
+
+    private static Connection current;
+
+    /** The global lookup handlers used to make, one monitor for the whole process **/
+    private static synchronized Connection lookup(Connection connection) {
+        current = connection;
+        return current;
+    }
+
+    @State(Scope.Thread)
+    public static class Delivery {
+
+        Connection connection;
+        MqttCallbackHandler handler;
+        final MqttMessage message = new MqttMessage(new byte[64]);
+        String topic;
+
+        @Setup
+        public void setUp() throws Exception {
+            int n = connectionCount.getAndIncrement();
+            connection = Connection.createConnection("client" + n, "localhost", 1883, null, false);
+            connection.setHistoryCapacity(0);
+            // set as restore does, nothing is subscribed or persisted
+            connection.setSubscriptions(new ArrayList<>(Collections.singletonList(
+                    new Subscription("devices/+/state", 0, connection.getId(), false))));
+            handler = new MqttCallbackHandler(null, connection);
+            topic = "devices/" + n + "/state";
+        }
+    }
+
+    @Benchmark
+    public void boundHandler(Delivery delivery) throws Exception {
+        delivery.handler.messageArrived(delivery.topic, delivery.message);
+    }
+
+    @Benchmark
+    public void globalLookup(Delivery delivery) {
+        Connection connection = lookup(delivery.connection);
+        connection.messageArrived(delivery.topic, delivery.message);
+        connection.addReceivedAction(delivery.topic, delivery.message);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CallbackContentionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,126 @@
+package com.kozaris.android.k_mqtt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    /** Every bucket above 127 is at most 1/64 of its lowest value wide **/
+    private static final double PRECISION = 0.016;
+
+    private static void record(LatencyHistogram histogram, long micros) {
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    private static void assertWithinPrecision(String what, long expected, long actual) {
+        assertTrue(what + ": expected " + expected + " got " + actual,
+                actual >= expected && actual <= expected + (long) (expected * PRECISION));
+    }
+
+    private static long exactPercentile(long[] sorted, double percentile) {
+        int rank = (int) Math.max(1, Math.ceil(percentile / 100.0 * sorted.length));
+        return sorted[rank - 1];
+    }
+
+    @Test
+    public void valuesBelow128AreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            record(histogram, i);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(1, snapshot.getMinMicros());
+        assertEquals(100, snapshot.getMaxMicros());
+        assertEquals(50, snapshot.getP50Micros());
+        assertEquals(99, snapshot.getP99Micros());
+        assertEquals(100, snapshot.getP999Micros());
+        assertEquals(50.5, snapshot.getMeanMicros(), 0);
+    }
+
+    @Test
+    public void bucketBoundaryAt128() {
+        assertEquals(127, LatencyHistogram.indexOf(127));
+        assertEquals(127, LatencyHistogram.highestValueAt(127));
+        assertEquals(128, LatencyHistogram.indexOf(128));
+        assertEquals(128, LatencyHistogram.indexOf(129));
+        assertEquals(129, LatencyHistogram.highestValueAt(128));
+        assertEquals(129, LatencyHistogram.indexOf(130));
+
+        LatencyHistogram histogram = new LatencyHistogram();
+        record(histogram, 127);
+        record(histogram, 128);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(127, snapshot.getP50Micros());
+        assertEquals(127, snapshot.getMinMicros());
+        assertWithinPrecision("max", 128, snapshot.getMaxMicros());
+    }
+
+    @Test
+    public void everyBucketStartsAfterThePreviousOne() {
+        for (int i = 0; i < LatencyHistogram.BUCKET_COUNT - 1; i++) {
+            long highest = LatencyHistogram.highestValueAt(i);
+            assertEquals("highest of " + i, i, LatencyHistogram.indexOf(highest));
+            assertEquals("after " + i, i + 1, LatencyHistogram.indexOf(highest + 1));
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE,
+                LatencyHistogram.highestValueAt(LatencyHistogram.BUCKET_COUNT - 1));
+    }
+
+    @Test
+    public void percentilesAreWithinPrecision() {
+        Random random = new Random(7);
+        long[] values = new long[100000];
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < values.length; i++) {
+            // log-normal around a millisecond with a tail into seconds, like round trips to a broker
+            values[i] = Math.max(1, (long) Math.exp(7 + 1.5 * random.nextGaussian()));
+            record(histogram, values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertWithinPrecision("p50", exactPercentile(values, 50), snapshot.getP50Micros());
+        assertWithinPrecision("p99", exactPercentile(values, 99), snapshot.getP99Micros());
+        assertWithinPrecision("p999", exactPercentile(values, 99.9), snapshot.getP999Micros());
+        assertWithinPrecision("min", values[0], snapshot.getMinMicros());
+        assertWithinPrecision("max", values[values.length - 1], snapshot.getMaxMicros());
+    }
+
+    @Test
+    public void valuesAreClampedToTheRange() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        record(histogram, LatencyHistogram.MAX_VALUE + 1);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(3, snapshot.getCount());
+        assertEquals(0, snapshot.getMinMicros());
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMaxMicros());
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getP50Micros());
+        assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getP999Micros());
+    }
+
+    @Test
+    public void mergeAndReset() {
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            record(first, 10);
+        }
+        record(second, 5000);
+        LatencyHistogram.Snapshot merged = first.snapshot().merge(second.snapshot());
+        assertEquals(100, merged.getCount());
+        assertEquals(10, merged.getP99Micros());
+        assertWithinPrecision("p999", 5000, merged.getP999Micros());
+
+        first.reset();
+        assertEquals(0, first.snapshot().getCount());
+        assertEquals(0, first.snapshot().getP99Micros());
+    }
+}
@@ -0,0 +1,239 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageJournalTest {
+
+    private static final long FOREVER = Long.MAX_VALUE / 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private MessageJournal journal;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("journal");
+    }
+
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.shutdown();
+        }
+    }
+
+    private static MqttMessage message(String payload, int qos, boolean retained) {
+        MqttMessage message = new MqttMessage(payload.getBytes());
+        message.setQos(qos);
+        message.setRetained(retained);
+        return message;
+    }
+
+    private static List<InboundMessage> readAll(MessageJournal journal, String filter, int pageSize) {
+        ArrayList<InboundMessage> all = new ArrayList<>();
+        InboundMessage after = null;
+        while (true) {
+            List<InboundMessage> page = journal.query(filter, 0, FOREVER, after, pageSize);
+            all.addAll(page);
+            if (page.size() < pageSize) {
+                return all;
+            }
+            after = page.get(page.size() - 1);
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        journal = new MessageJournal(directory, 4096, FOREVER, FOREVER);
+        for (int i = 0; i < 1000; i++) {
+            journal.store("sensors/" + (i % 10) + "/temp", message("v" + i, i % 3, i % 2 == 0));
+        }
+        assertEquals(1000, journal.getStoredCount());
+
+        List<InboundMessage> exact = readAll(journal, "sensors/3/temp", 7);
+        assertEquals(100, exact.size());
+        for (int i = 0; i < exact.size(); i++) {
+            InboundMessage message = exact.get(i);
+            int n = i * 10 + 3;
+            assertEquals("sensors/3/temp", message.getTopic());
+            assertArrayEquals(("v" + n).getBytes(), message.getPayload());
+            assertEquals(n % 3, message.getMessage().getQos());
+            assertEquals(n % 2 == 0, message.getMessage().isRetained());
+        }
+
+        List<InboundMessage> wildcard = readAll(journal, "sensors/+/temp", 64);
+        assertEquals(1000, wildcard.size());
+        for (int i = 1; i < wildcard.size(); i++) {
+            assertTrue(wildcard.get(i).getPersistenceId() > wildcard.get(i - 1).getPersistenceId());
+            assertTrue(wildcard.get(i).getReceived() >= wildcard.get(i - 1).getReceived());
+        }
+        assertEquals(1000, readAll(journal, "#", 500).size());
+        assertEquals(0, readAll(journal, "other/#", 500).size());
+    }
+
+    @Test
+    public void timeRange() throws Exception {
+        journal = new MessageJournal(directory, 4096, FOREVER, FOREVER);
+        for (int i = 0; i < 2000; i++) {
+            journal.store("a/" + (i % 2), message("v" + i, 0, false));
+            if (i % 100 == 0) {
+                Thread.sleep(2);
+            }
+        }
+        List<InboundMessage> all = readAll(journal, "#", 2000);
+        long from = all.get(500).getReceived();
+        long to = all.get(1500).getReceived();
+        int expected = 0;
+        for (InboundMessage message : all) {
+            if (message.getTopic().equals("a/1") && message.getReceived() >= from && message.getReceived() < to) {
+                expected++;
+            }
+        }
+        List<InboundMessage> range = journal.query("a/1", from, to, null, 5000);
+        assertEquals(expected, range.size());
+        for (InboundMessage message : range) {
+            assertTrue(message.getReceived() >= from && message.getReceived() < to);
+        }
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        journal = new MessageJournal(directory, 4096, FOREVER, FOREVER);
+        for (int i = 0; i < 500; i++) {
+            journal.store("t/" + (i % 5), message("v" + i, 1, false));
+        }
+        long lastPosition = readAll(journal, "#", 1000).get(499).getPersistenceId();
+        journal.shutdown();
+
+        journal = new MessageJournal(directory, 4096, FOREVER, FOREVER);
+        assertEquals(500, journal.getStoredCount());
+        journal.store("t/new", message("after", 1, false));
+        List<InboundMessage> all = readAll(journal, "#", 1000);
+        assertEquals(501, all.size());
+        InboundMessage last = all.get(500);
+        assertEquals("t/new", last.getTopic());
+        assertTrue(last.getPersistenceId() > lastPosition);
+        assertArrayEquals("v0".getBytes(), all.get(0).getPayload());
+    }
+
+    @Test
+    public void retentionBySize() throws Exception {
+        journal = new MessageJournal(directory, 4096, FOREVER, 16 * 1024);
+        for (int i = 0; i < 5000; i++) {
+            journal.store("t", message("payload-" + i, 0, false));
+        }
+        journal.compact();
+
+        long bytes = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".seg")) {
+                bytes += file.length();
+            }
+        }
+        assertTrue("journal holds " + bytes + " bytes", bytes <= 16 * 1024 + 4096);
+        List<InboundMessage> left = readAll(journal, "t", 1000);
+        assertTrue(left.size() < 5000);
+        assertArrayEquals("payload-4999".getBytes(), left.get(left.size() - 1).getPayload());
+    }
+
+    @Test
+    public void retentionByAge() throws Exception {
+        journal = new MessageJournal(directory, 4096, 0, FOREVER);
+        for (int i = 0; i < 1000; i++) {
+            journal.store("t", message("payload-" + i, 0, false));
+        }
+        Thread.sleep(5);
+        journal.compact();
+        // only the active segment is left
+        assertEquals(1, segmentCount());
+        assertTrue(journal.getStoredCount() < 1000);
+    }
+
+    @Test
+    public void recordLargerThanEmptySegment() throws Exception {
+        journal = new MessageJournal(directory, 1024, FOREVER, FOREVER);
+        journal.store("small", message("x", 0, false));
+        journal.clear();
+        assertEquals(0, journal.getStoredCount());
+
+        // the active segment is empty, the record has to grow it rather than roll onto its file name
+        char[] big = new char[8192];
+        java.util.Arrays.fill(big, 'b');
+        journal.store("big", message(new String(big), 0, false));
+        journal.store("small", message("y", 0, false));
+        journal.compact();
+        journal.store("small", message("z", 0, false));
+
+        List<InboundMessage> all = readAll(journal, "#", 100);
+        assertEquals(3, all.size());
+        assertEquals(8192, all.get(0).getPayload().length);
+        assertArrayEquals("z".getBytes(), all.get(2).getPayload());
+
+        HashSet<String> names = new HashSet<>();
+        for (File file : directory.listFiles()) {
+            assertTrue(names.add(file.getName()));
+        }
+        journal.shutdown();
+        journal = new MessageJournal(directory, 1024, FOREVER, FOREVER);
+        assertEquals(3, journal.getStoredCount());
+    }
+
+    @Test
+    public void queryWhileNewTopicsAreStored() throws Exception {
+        journal = new MessageJournal(directory, 64 * 1024, FOREVER, FOREVER);
+        final int messages = 20000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < messages; i++) {
+                        // every message brings a topic the readers have not seen
+                        journal.store("devices/" + i + "/state", message("v" + i, 0, false));
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        writer.start();
+        int seen = 0;
+        while (writer.isAlive() || seen < messages) {
+            List<InboundMessage> page = journal.query("devices/+/state", 0, FOREVER, null, messages);
+            for (InboundMessage message : page) {
+                assertEquals("devices/" + new String(message.getPayload()).substring(1) + "/state", message.getTopic());
+            }
+            seen = page.size();
+        }
+        writer.join();
+        assertEquals(null, failure.get());
+        assertEquals(messages, seen);
+    }
+
+    private int segmentCount() {
+        int count = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().endsWith(".seg")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,184 @@
+package com.kozaris.android.k_mqtt;
+
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two received message stores: appends and a topic page read from the
+ * {@link MessageJournal}, against the same work on SQLite. The SQLite database is built by the
+ * migrations of {@link Persistence} and runs its insert and page query, written in one transaction
+ * per batch like {@link MessageStore} does.
+ *
+ * Runs on the desktop JVM with the xerial SQLite driver, so the numbers compare the layouts and
+ * not the Android framework. Run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageStoreBenchmark {
+
+    private static final String CLIENT_ID = "benchmark";
+
+    private static final int BATCH = 64;
+
+    private static final int TOPICS = 32;
+
+    /** Messages stored before measuring, enough for a full page of every topic **/
+    private static final int HISTORY = TOPICS * MessageStore.DEFAULT_PAGE_SIZE;
+
+    @Param({"64", "1024"})
+    public int payloadBytes;
+
+    private File directory;
+    private MessageJournal journal;
+    private Connection sqlite;
+    private PreparedStatement insert;
+    private PreparedStatement select;
+    private List<String> selectArgs;
+
+    private final String[] topics = new String[TOPICS];
+    private MqttMessage message;
+    private long received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        directory = File.createTempFile("store-benchmark", "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Failed to create " + directory);
+        }
+        for (int i = 0; i < TOPICS; i++) {
+            topics[i] = "building/" + (i % 4) + "/sensor/" + i;
+        }
+        message = new MqttMessage(new byte[payloadBytes]);
+        message.setQos(1);
+
+        journal = new MessageJournal(new File(directory, "journal"), 1 << 20,
+                MessageStore.DEFAULT_MAX_AGE_MILLIS, 256L << 20);
+
+        sqlite = DriverManager.getConnection("jdbc:sqlite:" + new File(directory, "inbound.db"));
+        Statement statement = sqlite.createStatement();
+        statement.execute("PRAGMA journal_mode=WAL");
+        statement.execute("PRAGMA synchronous=NORMAL");
+        for (int version = 1; version <= Persistence.DATABASE_VERSION; version++) {
+            for (String sql : Persistence.migration(version)) {
+                statement.execute(sql);
+            }
+        }
+        statement.close();
+        sqlite.setAutoCommit(false);
+        insert = sqlite.prepareStatement(Persistence.SQL_INSERT_INBOUND);
+        // the first page of a topic, as MessageStore.query reads it
+        selectArgs = new ArrayList<>();
+        select = sqlite.prepareStatement(Persistence.inboundQuery(CLIENT_ID, topics[7], 0, Long.MAX_VALUE,
+                MessageStore.DEFAULT_PAGE_SIZE, selectArgs));
+        selectArgs.add(String.valueOf(Long.MIN_VALUE));
+        selectArgs.add(String.valueOf(Long.MIN_VALUE));
+        selectArgs.add(String.valueOf(-1));
+
+        // queries read a full page of history, appends go on top of it
+        for (int i = 0; i < HISTORY / BATCH; i++) {
+            journalAppend();
+            sqliteAppend();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        journal.shutdown();
+        select.close();
+        insert.close();
+        sqlite.close();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void journalAppend() {
+        for (int i = 0; i < BATCH; i++) {
+            journal.store(topics[i % TOPICS], message);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void sqliteAppend() throws SQLException {
+        for (int i = 0; i < BATCH; i++) {
+            insert.setString(1, CLIENT_ID);
+            insert.setString(2, topics[i % TOPICS]);
+            insert.setBytes(3, message.getPayload());
+            insert.setInt(4, message.getQos());
+            insert.setInt(5, message.isRetained() ? 1 : 0);
+            insert.setLong(6, ++received);
+            insert.executeUpdate();
+        }
+        sqlite.commit();
+    }
+
+    @Benchmark
+    public void journalQuery(Blackhole blackhole) {
+        blackhole.consume(journal.query(topics[7], 0, Long.MAX_VALUE, null, MessageStore.DEFAULT_PAGE_SIZE));
+    }
+
+    @Benchmark
+    public void sqliteQuery(Blackhole blackhole) throws SQLException {
+        for (int i = 0; i < selectArgs.size(); i++) {
+            select.setString(i + 1, selectArgs.get(i));
+        }
+        ResultSet rows = select.executeQuery();
+        while (rows.next()) {
+            blackhole.consume(rows.getLong(1));
+            blackhole.consume(rows.getString(2));
+            blackhole.consume(rows.getBytes(3));
+        }
+        rows.close();
+        sqlite.commit();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MessageStoreBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,93 @@
+package com.kozaris.android.k_mqtt;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class PayloadCodecsTest {
+
+    private static final PayloadCodec[] CODECS = {PayloadCodecs.DEFLATE, PayloadCodecs.LZ};
+
+    @Test
+    public void roundTrip() {
+        Random random = new Random(42);
+        for (PayloadCodec codec : CODECS) {
+            for (int length : new int[]{100, 4096, 100000}) {
+                StringBuilder text = new StringBuilder();
+                while (text.length() < length) {
+                    text.append("{\"sensor\":").append(random.nextInt(8)).append(",\"value\":").append(random.nextInt(100)).append('}');
+                }
+                byte[] payload = text.substring(0, length).getBytes();
+                byte[] encoded = PayloadCodecs.encode(codec, payload, 0, length);
+                assertNotNull(encoded);
+                assertTrue(PayloadCodecs.isEncoded(encoded));
+                assertArrayEquals(payload, PayloadCodecs.decode(encoded));
+            }
+        }
+    }
+
+    @Test
+    public void highlyCompressiblePayloadsStayWithinTheBound() {
+        for (PayloadCodec codec : CODECS) {
+            for (int length = 8; length <= 1 << 22; length *= 2) {
+                byte[] payload = new byte[length];
+                byte[] encoded = PayloadCodecs.encode(codec, payload, 0, length);
+                if (encoded != null) {
+                    assertArrayEquals("codec " + codec.getId() + " length " + length,
+                            payload, PayloadCodecs.decode(encoded));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void forgedLengthIsNotAllocated() {
+        for (PayloadCodec codec : CODECS) {
+            byte[] forged = PayloadCodecs.encode(codec, new byte[1000], 0, 1000);
+            assertNotNull(forged);
+            // claims 2 GB from a few bytes
+            forged[4] = 0x7F;
+            forged[5] = (byte) 0xFF;
+            forged[6] = (byte) 0xFF;
+            forged[7] = (byte) 0xFF;
+            assertSame(forged, PayloadCodecs.decode(forged));
+        }
+    }
+
+    @Test
+    public void expansionRatioOfACodec() {
+        PayloadCodec codec = new PayloadCodec() {
+            @Override
+            public byte getId() {
+                return 100;
+            }
+
+            @Override
+            public int maxEncodedLength(int length) {
+                return 4;
+            }
+
+            @Override
+            public int encode(byte[] src, int srcOffset, int length, byte[] dst, int dstOffset) {
+                dst[dstOffset] = src[srcOffset];
+                return 1;
+            }
+
+            @Override
+            public void decode(byte[] src, int srcOffset, int length, byte[] dst) {
+                Arrays.fill(dst, src[srcOffset]);
+            }
+        };
+        PayloadCodecs.register(codec, 2);
+        byte[] small = PayloadCodecs.encode(codec, new byte[100], 0, 100);
+        assertArrayEquals(new byte[100], PayloadCodecs.decode(small));
+        byte[] large = PayloadCodecs.encode(codec, new byte[1000], 0, 1000);
+        assertSame(large, PayloadCodecs.decode(large));
+    }
+}
@@ -0,0 +1,179 @@
+package com.kozaris.android.k_mqtt;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the migrations of {@link Persistence} on SQLite through JDBC, the statements are the ones
+ * the Android database runs
+ */
+public class PersistenceMigrationTest {
+
+    private static final int CONNECTIONS = 1000;
+    private static final int SUBSCRIPTIONS_PER_CONNECTION = 10;
+
+    private static final String HOST_LOOKUP = "SELECT clientID FROM mqttclient WHERE host=?";
+    private static final String CLIENT_LOOKUP = "SELECT topic,notify,qos FROM subscriptions WHERE clientID=?";
+
+    private Connection db;
+
+    @Before
+    public void setUp() throws SQLException {
+        db = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        db.close();
+    }
+
+    private static void migrate(Connection db, int from, int to) throws SQLException {
+        Statement statement = db.createStatement();
+        for (int version = from + 1; version <= to; version++) {
+            for (String sql : Persistence.migration(version)) {
+                statement.execute(sql);
+            }
+        }
+        statement.close();
+    }
+
+    private static void populate(Connection db) throws SQLException {
+        db.setAutoCommit(false);
+        PreparedStatement connection = db.prepareStatement("INSERT INTO mqttclient " +
+                "(host,clientID,port,ssl,timeout,keepalive,cleanSession,qos,retained) VALUES (?,?,1883,0,30,60,1,0,0)");
+        PreparedStatement subscription = db.prepareStatement("INSERT INTO subscriptions " +
+                "(clientID,host,topic,notify,qos) VALUES (?,?,?,0,1)");
+        for (int i = 0; i < CONNECTIONS; i++) {
+            connection.setString(1, "host" + i);
+            connection.setString(2, "client" + i);
+            connection.executeUpdate();
+            for (int j = 0; j < SUBSCRIPTIONS_PER_CONNECTION; j++) {
+                subscription.setString(1, "client" + i);
+                subscription.setString(2, "host" + i);
+                subscription.setString(3, "sensors/" + j + "/#");
+                subscription.executeUpdate();
+            }
+        }
+        db.commit();
+        db.setAutoCommit(true);
+    }
+
+    private static int count(Connection db, String sql) throws SQLException {
+        Statement statement = db.createStatement();
+        int count = count(statement.executeQuery(sql));
+        statement.close();
+        return count;
+    }
+
+    private static int count(ResultSet rows) throws SQLException {
+        int count = 0;
+        while (rows.next()) {
+            count++;
+        }
+        rows.close();
+        return count;
+    }
+
+    private static Set<String> schema(Connection db) throws SQLException {
+        Statement statement = db.createStatement();
+        ResultSet rows = statement.executeQuery("SELECT type, name, sql FROM sqlite_master WHERE name NOT LIKE 'sqlite_%'");
+        TreeSet<String> schema = new TreeSet<>();
+        while (rows.next()) {
+            schema.add(rows.getString(1) + " " + rows.getString(2) + " " + rows.getString(3));
+        }
+        statement.close();
+        return schema;
+    }
+
+    @Test
+    public void upgradeKeepsRows() throws SQLException {
+        migrate(db, 0, 1);
+        populate(db);
+        migrate(db, 1, Persistence.DATABASE_VERSION);
+
+        assertEquals(CONNECTIONS, count(db, Persistence.SQL_RESTORE_CONNECTIONS));
+        assertEquals(CONNECTIONS * SUBSCRIPTIONS_PER_CONNECTION, count(db, Persistence.SQL_RESTORE_SUBSCRIPTIONS));
+    }
+
+    @Test
+    public void upgradeFromEveryVersionMatchesANewDatabase() throws SQLException {
+        migrate(db, 0, Persistence.DATABASE_VERSION);
+        Set<String> created = schema(db);
+        for (int version = 1; version < Persistence.DATABASE_VERSION; version++) {
+            Connection upgraded = DriverManager.getConnection("jdbc:sqlite::memory:");
+            try {
+                migrate(upgraded, 0, version);
+                migrate(upgraded, version, Persistence.DATABASE_VERSION);
+                assertEquals("upgraded from version " + version, created, schema(upgraded));
+            } finally {
+                upgraded.close();
+            }
+        }
+    }
+
+    private static String plan(Connection db, String sql) throws SQLException {
+        Statement statement = db.createStatement();
+        ResultSet rows = statement.executeQuery("EXPLAIN QUERY PLAN " + sql);
+        StringBuilder plan = new StringBuilder();
+        while (rows.next()) {
+            plan.append(rows.getString(4)).append('\n');
+        }
+        statement.close();
+        return plan.toString();
+    }
+
+    /**
+     * Looks up every connection by host and the subscriptions of every client
+     * @return the fastest of three rounds, in nanoseconds
+     */
+    private static long timeLookups(Connection db) throws SQLException {
+        PreparedStatement byHost = db.prepareStatement(HOST_LOOKUP);
+        PreparedStatement byClient = db.prepareStatement(CLIENT_LOOKUP);
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < CONNECTIONS; i++) {
+                byHost.setString(1, "host" + i);
+                assertEquals(1, count(byHost.executeQuery()));
+                byClient.setString(1, "client" + i);
+                assertEquals(SUBSCRIPTIONS_PER_CONNECTION, count(byClient.executeQuery()));
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        byHost.close();
+        byClient.close();
+        return best;
+    }
+
+    @Test
+    public void lookupsUseTheIndexesAfterTheUpgrade() throws SQLException {
+        migrate(db, 0, 1);
+        populate(db);
+        long before = timeLookups(db);
+        assertTrue(plan(db, Persistence.SQL_RESTORE_CONNECTIONS).contains("TEMP B-TREE"));
+
+        migrate(db, 1, Persistence.DATABASE_VERSION);
+        long after = timeLookups(db);
+
+        assertTrue(plan(db, CLIENT_LOOKUP).contains("COVERING INDEX subscriptions_client_id"));
+        assertTrue(plan(db, HOST_LOOKUP).contains("INDEX mqttclient_host"));
+        // the restore scan reads connections in index order instead of sorting them
+        String restore = plan(db, Persistence.SQL_RESTORE_CONNECTIONS);
+        assertTrue(restore, restore.contains("INDEX mqttclient_host") && !restore.contains("TEMP B-TREE"));
+        // table scans before, index searches after: a wide margin so a busy machine does not fail it
+        assertTrue("before " + before / 1000000 + " ms, after " + after / 1000000 + " ms", after * 10 < before);
+    }
+}
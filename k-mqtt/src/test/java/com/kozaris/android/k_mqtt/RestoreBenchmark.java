@@ -0,0 +1,147 @@
+package com.kozaris.android.k_mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restores 1k connections with 100 subscriptions each from a database migrated to the current
+ * schema.
+ *
+ * <code>twoScans</code> runs the statements of {@link Persistence#restoreConnections} and groups
+ * the subscriptions by client id in memory. <code>queryPerConnection</code> is the restore it
+ * replaced, one subscription query per connection. Runs on the desktop JVM with the xerial SQLite
+ * driver, run with {@link #main(String[])} from the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestoreBenchmark {
+
+    private static final int CONNECTIONS = 1000;
+    private static final int SUBSCRIPTIONS_PER_CONNECTION = 100;
+
+    private File file;
+    private Connection db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        file = File.createTempFile("restore-benchmark", ".db");
+        db = DriverManager.getConnection("jdbc:sqlite:" + file);
+        Statement statement = db.createStatement();
+        for (int version = 1; version <= Persistence.DATABASE_VERSION; version++) {
+            for (String sql : Persistence.migration(version)) {
+                statement.execute(sql);
+            }
+        }
+        statement.close();
+
+        db.setAutoCommit(false);
+        PreparedStatement connection = db.prepareStatement("INSERT INTO mqttclient " +
+                "(host,clientID,port,ssl,timeout,keepalive,cleanSession,qos,retained) VALUES (?,?,1883,0,30,60,1,0,0)");
+        PreparedStatement subscription = db.prepareStatement("INSERT INTO subscriptions " +
+                "(clientID,host,topic,notify,qos) VALUES (?,?,?,0,1)");
+        // subscriptions are added over time, so the rows of a client are spread over the table
+        for (int j = 0; j < SUBSCRIPTIONS_PER_CONNECTION; j++) {
+            for (int i = 0; i < CONNECTIONS; i++) {
+                if (j == 0) {
+                    connection.setString(1, "host" + i);
+                    connection.setString(2, "client" + i);
+                    connection.executeUpdate();
+                }
+                subscription.setString(1, "client" + i);
+                subscription.setString(2, "host" + i);
+                subscription.setString(3, "devices/" + j + "/#");
+                subscription.executeUpdate();
+            }
+        }
+        db.commit();
+        db.setAutoCommit(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        db.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void twoScans(Blackhole blackhole) throws SQLException {
+        HashMap<String, ArrayList<String>> subscriptionsByClient = new HashMap<>(CONNECTIONS * 2);
+        Statement statement = db.createStatement();
+        ResultSet connections = statement.executeQuery(Persistence.SQL_RESTORE_CONNECTIONS);
+        while (connections.next()) {
+            blackhole.consume(connections.getString(2));
+            subscriptionsByClient.put(connections.getString(3), new ArrayList<String>());
+        }
+        connections.close();
+        ResultSet subscriptions = statement.executeQuery(Persistence.SQL_RESTORE_SUBSCRIPTIONS);
+        while (subscriptions.next()) {
+            ArrayList<String> list = subscriptionsByClient.get(subscriptions.getString(2));
+            if (list != null) {
+                list.add(subscriptions.getString(3));
+            }
+        }
+        subscriptions.close();
+        statement.close();
+        blackhole.consume(subscriptionsByClient);
+    }
+
+    @Benchmark
+    public void queryPerConnection(Blackhole blackhole) throws SQLException {
+        HashMap<String, ArrayList<String>> subscriptionsByClient = new HashMap<>(CONNECTIONS * 2);
+        Statement statement = db.createStatement();
+        PreparedStatement query = db.prepareStatement("SELECT topic FROM subscriptions WHERE clientID=? ORDER BY host");
+        ResultSet connections = statement.executeQuery(Persistence.SQL_RESTORE_CONNECTIONS);
+        while (connections.next()) {
+            blackhole.consume(connections.getString(2));
+            String clientId = connections.getString(3);
+            ArrayList<String> list = new ArrayList<>();
+            query.setString(1, clientId);
+            ResultSet subscriptions = query.executeQuery();
+            while (subscriptions.next()) {
+                list.add(subscriptions.getString(1));
+            }
+            subscriptions.close();
+            subscriptionsByClient.put(clientId, list);
+        }
+        connections.close();
+        query.close();
+        statement.close();
+        blackhole.consume(subscriptionsByClient);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RestoreBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
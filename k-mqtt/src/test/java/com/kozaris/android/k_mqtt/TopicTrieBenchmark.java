@@ -0,0 +1,82 @@
+package com.kozaris.android.k_mqtt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TopicTrie#match(String, java.util.List)} as the number of filters grows from
+ * 10 to 100k, a lookup only walks the levels of the topic so its cost should stay flat.
+ *
+ * A tenth of the filters use <code>+</code> and a few use <code>#</code>, like the
+ * subscriptions of a client listening to a fleet of devices. Run with {@link #main(String[])}
+ * from the test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopicTrieBenchmark {
+
+    private static final int TOPICS = 1024;
+
+    @Param({"10", "1000", "100000"})
+    public int filters;
+
+    private TopicTrie<String> trie;
+    private String[] topics;
+    private final ArrayList<String> matches = new ArrayList<>();
+    private int next;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        trie = new TopicTrie<>();
+        for (int i = 0; i < filters; i++) {
+            String filter;
+            if (i % 10 == 0) {
+                filter = "site/" + random.nextInt(100) + "/+/temperature";
+            } else if (i % 100 == 1) {
+                filter = "site/" + random.nextInt(100) + "/#";
+            } else {
+                filter = "site/" + (i % 100) + "/device" + i + "/temperature";
+            }
+            trie.put(filter, filter);
+        }
+        topics = new String[TOPICS];
+        for (int i = 0; i < TOPICS; i++) {
+            int device = random.nextInt(filters);
+            topics[i] = "site/" + (device % 100) + "/device" + device + "/temperature";
+        }
+    }
+
+    @Benchmark
+    public int match() {
+        matches.clear();
+        String topic = topics[next++ & (TOPICS - 1)];
+        return trie.match(topic, matches);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(TopicTrieBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
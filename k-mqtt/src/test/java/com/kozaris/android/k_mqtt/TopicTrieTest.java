@@ -0,0 +1,236 @@
+package com.kozaris.android.k_mqtt;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TopicTrieTest {
+
+    private static TopicTrie<String> trie(String... filters) {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (String filter : filters) {
+            trie.put(filter, filter);
+        }
+        return trie;
+    }
+
+    private static List<String> sorted(List<String> values) {
+        ArrayList<String> copy = new ArrayList<>(values);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static void assertMatches(TopicTrie<String> trie, String topic, String... expected) {
+        List<String> wanted = new ArrayList<>(Arrays.asList(expected));
+        Collections.sort(wanted);
+        assertEquals(topic, wanted, sorted(trie.match(topic)));
+    }
+
+    @Test
+    public void exactFilters() {
+        TopicTrie<String> trie = trie("a/b", "a/b/c", "a");
+        assertMatches(trie, "a/b", "a/b");
+        assertMatches(trie, "a", "a");
+        assertMatches(trie, "a/b/c", "a/b/c");
+        assertMatches(trie, "a/c");
+        assertMatches(trie, "A/b");
+    }
+
+    @Test
+    public void singleLevelWildcard() {
+        TopicTrie<String> trie = trie("sport/tennis/+", "+/tennis/player1", "+", "+/+");
+        assertMatches(trie, "sport/tennis/player1", "sport/tennis/+", "+/tennis/player1");
+        assertMatches(trie, "sport/tennis/player1/ranking");
+        assertMatches(trie, "sport", "+");
+        assertMatches(trie, "sport/tennis", "+/+");
+    }
+
+    @Test
+    public void multiLevelWildcard() {
+        TopicTrie<String> trie = trie("sport/tennis/player1/#", "#", "sport/#");
+        assertMatches(trie, "sport/tennis/player1", "sport/tennis/player1/#", "#", "sport/#");
+        assertMatches(trie, "sport/tennis/player1/ranking", "sport/tennis/player1/#", "#", "sport/#");
+        // '#' also matches its parent level
+        assertMatches(trie, "sport", "#", "sport/#");
+        assertMatches(trie, "other", "#");
+    }
+
+    @Test
+    public void systemTopicsAreNotMatchedByLeadingWildcards() {
+        TopicTrie<String> trie = trie("#", "+/monitor/Clients", "$SYS/#", "$SYS/monitor/+", "+");
+        assertMatches(trie, "$SYS/monitor/Clients", "$SYS/#", "$SYS/monitor/+");
+        assertMatches(trie, "$SYS", "$SYS/#");
+        assertMatches(trie, "other/monitor/Clients", "#", "+/monitor/Clients");
+    }
+
+    @Test
+    public void emptyLevels() {
+        TopicTrie<String> trie = trie("+/+", "/+", "+", "a//b", "a/+/b", "/", "#");
+        assertMatches(trie, "/finance", "+/+", "/+", "#");
+        assertMatches(trie, "/", "+/+", "/+", "/", "#");
+        assertMatches(trie, "a//b", "a//b", "a/+/b", "#");
+        assertMatches(trie, "finance", "+", "#");
+    }
+
+    @Test
+    public void removePrunesAndKeepsOtherFilters() {
+        TopicTrie<String> trie = trie("a/b/c", "a/+/c", "a/#");
+        assertEquals(3, trie.size());
+        assertEquals("a/+/c", trie.remove("a/+/c"));
+        assertNull(trie.remove("a/+/c"));
+        assertNull(trie.remove("a/b"));
+        assertMatches(trie, "a/b/c", "a/b/c", "a/#");
+        assertEquals("a/#", trie.remove("a/#"));
+        assertMatches(trie, "a/b/c", "a/b/c");
+        assertEquals(1, trie.size());
+        assertTrue(trie.containsKey("a/b/c"));
+        assertFalse(trie.containsKey("a/b"));
+        trie.clear();
+        assertEquals(0, trie.size());
+        assertMatches(trie, "a/b/c");
+    }
+
+    @Test
+    public void putReplacesTheValue() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        assertNull(trie.put("a/+", "first"));
+        assertEquals("first", trie.put("a/+", "second"));
+        assertEquals(1, trie.size());
+        assertEquals(Collections.singletonList("second"), trie.match("a/b"));
+    }
+
+    @Test
+    public void manyChildrenOfOneLevel() {
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (int i = 0; i < 10000; i++) {
+            trie.put("devices/" + i + "/state", "devices/" + i + "/state");
+        }
+        for (int i = 0; i < 10000; i += 7) {
+            assertMatches(trie, "devices/" + i + "/state", "devices/" + i + "/state");
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            trie.remove("devices/" + i + "/state");
+        }
+        assertEquals(5000, trie.size());
+        assertMatches(trie, "devices/2/state");
+        assertMatches(trie, "devices/3/state", "devices/3/state");
+        assertEquals(5000, new HashSet<>(trie.values()).size());
+    }
+
+    @Test
+    public void agreesWithTheSpecificationOnRandomFilters() {
+        Random random = new Random(7);
+        String[] levels = {"a", "b", "c", "", "$SYS"};
+        ArrayList<String> filters = new ArrayList<>();
+        TopicTrie<String> trie = new TopicTrie<>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder filter = new StringBuilder();
+            int depth = 1 + random.nextInt(4);
+            for (int level = 0; level < depth; level++) {
+                if (level > 0) {
+                    filter.append('/');
+                }
+                int pick = random.nextInt(levels.length + 2);
+                if (pick == levels.length + 1 && level == depth - 1) {
+                    filter.append('#');
+                } else if (pick >= levels.length) {
+                    filter.append('+');
+                } else {
+                    filter.append(levels[pick]);
+                }
+            }
+            filters.add(filter.toString());
+            trie.put(filter.toString(), filter.toString());
+        }
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder topic = new StringBuilder();
+            int depth = 1 + random.nextInt(5);
+            for (int level = 0; level < depth; level++) {
+                if (level > 0) {
+                    topic.append('/');
+                }
+                topic.append(levels[random.nextInt(levels.length)]);
+            }
+            HashSet<String> expected = new HashSet<>();
+            for (String filter : filters) {
+                if (matches(filter, topic.toString())) {
+                    expected.add(filter);
+                }
+            }
+            assertEquals(topic.toString(), expected, new HashSet<>(trie.match(topic.toString())));
+        }
+    }
+
+    @Test
+    public void matchesWhileFiltersChange() throws Exception {
+        final TopicTrie<String> trie = trie("devices/+/state");
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ArrayList<String> out = new ArrayList<>();
+                    try {
+                        while (!done.get()) {
+                            out.clear();
+                            trie.match("devices/7/state", out);
+                            // the stable filter is always found, the changing ones come and go
+                            assertTrue(out.contains("devices/+/state"));
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        for (int i = 0; i < 20000; i++) {
+            String filter = "devices/" + (i % 50) + "/#";
+            trie.put(filter, filter);
+            trie.remove("devices/" + ((i + 25) % 50) + "/#");
+        }
+        done.set(true);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(26, trie.size());
+    }
+
+    /**
+     * Matches a filter level by level, as the MQTT 3.1.1 specification describes it
+     */
+    private static boolean matches(String filter, String topic) {
+        String[] f = filter.split("/", -1);
+        String[] t = topic.split("/", -1);
+        if (topic.startsWith("$") && (f[0].equals("+") || f[0].equals("#"))) {
+            return false;
+        }
+        for (int i = 0; i < f.length; i++) {
+            if (f[i].equals("#")) {
+                return true;
+            }
+            if (i >= t.length) {
+                return false;
+            }
+            if (!f[i].equals("+") && !f[i].equals(t[i])) {
+                return false;
+            }
+        }
+        return f.length == t.length;
+    }
+}